@@ -7,6 +7,11 @@ Parse Android log data. Usage:
     cd ..
     cat data/logs/* | python parse_logs.py
 
+By default, the app logs the sightings to the binary file logs/sightings.bin
+instead. It is converted to the same output format by
+
+    cd ../tools; gradle journalToJson --args=../android/data/logs/sightings.bin
+
 """
 import datetime, json, sys
 
@@ -0,0 +1,226 @@
+package org.example.coronasniffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the writing of SightingRecords off the producer (ranging) thread. The records
+ * are passed through a bounded single-producer single-consumer ring buffer of
+ * preallocated records to a dedicated writer thread, which writes them to the Sink in
+ * batches and flushes ("group commits") at most every flushIntervalMillis.
+ *
+ * The producer side is lock-free: claim() returns null and counts a drop if the ring
+ * is full. Only drain() and close(), meant for shutdown, block.
+ */
+class AsyncSightingLog implements Closeable {
+    private static final Metrics.Counter LOGGED = new Metrics.Counter("logged");
+    private static final Metrics.Counter LOG_DROPPED = new Metrics.Counter("log_dropped");
+
+    interface Sink extends Closeable {
+        void write(SightingRecord r) throws IOException;
+        void flush() throws IOException;
+    }
+
+    private final Sink sink;
+    private final SightingRecord[] ring;
+    private final int mask;
+    private final long flushIntervalNanos;
+    private final Thread writer;
+
+    // sequence numbers: records [consumed, published) are waiting in the ring
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private long claimed = 0; // producer only
+
+    // guards flushedSeq, drainTarget and the waits in drain()
+    private final Object flushLock = new Object();
+    private long flushedSeq = 0;
+    private long drainTarget = 0;
+    // the records flushed without an error
+    private volatile long committedSeq = 0;
+    private volatile boolean running = true;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private volatile IOException lastError = null;
+
+    /** @param capacity ring size, rounded up to a power of two */
+    AsyncSightingLog(Sink sink, int capacity, long flushIntervalMillis) {
+        int size = 1;
+        while (size < capacity) size *= 2;
+        this.sink = sink;
+        this.ring = new SightingRecord[size];
+        for (int i = 0; i < size; ++i) ring[i] = new SightingRecord();
+        this.mask = size - 1;
+        this.flushIntervalNanos = flushIntervalMillis * 1000000L;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, AsyncSightingLog.class.getSimpleName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Producer side: get the next free record to fill, then call publish(). Not thread-safe:
+     * only one thread may produce records.
+     *
+     * @param block if false, return null (and count a drop) if the ring is full. If true,
+     *  wait for the writer instead
+     */
+    SightingRecord claim(boolean block) {
+        if (claimed != published.get()) throw new IllegalStateException("previous record not published");
+        if (claimed - consumed.get() >= ring.length) {
+            if (!block || !running) {
+                dropped.incrementAndGet();
+                LOG_DROPPED.inc();
+                return null;
+            }
+            backpressureWaits.incrementAndGet();
+            while (claimed - consumed.get() >= ring.length && writer.isAlive()) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100000);
+            }
+        }
+        return ring[(int) (claimed++ & mask)];
+    }
+
+    void publish() {
+        published.lazySet(claimed);
+        LOGGED.inc();
+        // wake up the writer early if the ring is getting full
+        if (claimed - consumed.get() > ring.length / 2) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Blocks until all the records published so far have been written and flushed
+     * (or the writer has stopped)
+     */
+    void drain() {
+        final long target = published.get();
+        synchronized (flushLock) {
+            drainTarget = Math.max(drainTarget, target);
+            LockSupport.unpark(writer);
+            while (flushedSeq < target && writer.isAlive()) {
+                try {
+                    flushLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Drains the ring, stops the writer thread and closes the sink */
+    @Override
+    public void close() throws IOException {
+        drain();
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.nanoTime();
+        long flushed = 0, flushedErrors = 0;
+        while (true) {
+            // read before writing, so that everything published before close() gets written
+            final boolean stopping = !running;
+            final long written = published.get();
+            for (long seq = consumed.get(); seq < written; ++seq) {
+                try {
+                    sink.write(ring[(int) (seq & mask)]);
+                } catch (IOException e) {
+                    writeErrors.incrementAndGet();
+                    lastError = e;
+                }
+            }
+            consumed.lazySet(written);
+
+            final long now = System.nanoTime();
+            final boolean drainRequested;
+            synchronized (flushLock) {
+                drainRequested = drainTarget > flushedSeq;
+            }
+            if (written > flushed && (drainRequested || stopping || now - lastFlush >= flushIntervalNanos)) {
+                try {
+                    sink.flush();
+                    // no write failed since the previous flush
+                    if (writeErrors.get() == flushedErrors) committedSeq = written;
+                } catch (IOException e) {
+                    writeErrors.incrementAndGet();
+                    lastError = e;
+                }
+                flushedErrors = writeErrors.get();
+                flushes.incrementAndGet();
+                lastFlush = now;
+                flushed = written;
+                synchronized (flushLock) {
+                    flushedSeq = flushed;
+                    flushLock.notifyAll();
+                }
+            }
+
+            if (published.get() != written) continue;
+            if (stopping) return;
+            final long wait = written > flushed ? flushIntervalNanos - (now - lastFlush) : flushIntervalNanos;
+            LockSupport.parkNanos(Math.max(1, wait));
+        }
+    }
+
+    long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return the sequence number of the records written and flushed to the sink as of
+     * the latest flush without errors. A record is committed once this reaches the value
+     * of getPublished() after its publish()
+     */
+    long getCommitted() {
+        return committedSeq;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getBackpressureWaits() {
+        return backpressureWaits.get();
+    }
+
+    long getFlushes() {
+        return flushes.get();
+    }
+
+    long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    IOException getLastError() {
+        return lastError;
+    }
+
+    /** Number of records waiting in the ring */
+    int getQueued() {
+        return (int) (published.get() - consumed.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d published, %d queued, %d dropped, %d backpressure waits, %d flushes, %d write errors",
+                getPublished(), getQueued(), getDropped(), getBackpressureWaits(), getFlushes(), getWriteErrors());
+    }
+}
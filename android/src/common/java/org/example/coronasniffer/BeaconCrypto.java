@@ -0,0 +1,434 @@
+package org.example.coronasniffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import at.favre.lib.crypto.HKDF;
+
+/**
+ * Contact tracing cryptography without Android dependencies, shared by the apps
+ * (see BeaconBuilder) and the JVM tools
+ */
+class BeaconCrypto {
+    static String bytesToHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)  sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0)
+            throw new IllegalArgumentException("odd number of hex digits in '" + hex + "'");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("invalid hex string '" + hex + "'");
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    static byte[] fixedLengthKeyFromString(String str, int length) {
+        byte[] key = new byte[length];
+        byte[] strBytes = str.getBytes();
+        if (strBytes.length > key.length)
+            throw new IllegalArgumentException("'" + str + "' is too long to be used as a key");
+        System.arraycopy(strBytes, 0, key, 0, strBytes.length);
+        return key;
+    }
+
+    /**
+     * Apple|Google Exposure Notification protocol (v1.2)
+     */
+    static class AppleGoogleEN {
+        static final int SERVICE_UUID_16 = 0xFD6F;
+        static final int KEY_LENGTH_BYTES = 16;
+        static final int EN_INTERVAL_SECONDS = 60 * 10;
+        static final int AEM_BYTES = 4;
+        // major version 1 in bits 7:6, minor version 0 in bits 5:4 of the first byte
+        static final int METADATA_VERSION_1_0 = 0x40;
+        private static final int RPI_GENERATOR_CACHE_SIZE = 64;
+
+        private static final ThreadLocal<RpiGeneratorCache> rpiGenerators =
+                new ThreadLocal<RpiGeneratorCache>() {
+                    @Override
+                    protected RpiGeneratorCache initialValue() {
+                        return new RpiGeneratorCache(RPI_GENERATOR_CACHE_SIZE);
+                    }
+                };
+
+        static byte[] keyFromString(String str) {
+            return fixedLengthKeyFromString(str, KEY_LENGTH_BYTES);
+        }
+
+        static byte[] paddedData(int enInterval) {
+            ByteBuffer padded = ByteBuffer.allocate(KEY_LENGTH_BYTES);
+            padded.put("EN-RPI".getBytes());
+            for (int i=6; i<=11; ++i) padded.put((byte)0);
+            padded.order(ByteOrder.LITTLE_ENDIAN);
+            padded.putInt(enInterval);
+            return padded.array();
+        }
+
+        static byte[] aes128(byte[] key, byte[] data) {
+            try {
+                final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+                byte[] zeroIV = new byte[KEY_LENGTH_BYTES];
+                cipher.init(Cipher.ENCRYPT_MODE,
+                        new SecretKeySpec(key, "AES"),
+                        new IvParameterSpec(zeroIV));
+                return cipher.doFinal(data);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        static int enIntervalNumber(long unixTime) {
+            return (int)(unixTime / EN_INTERVAL_SECONDS);
+        }
+
+        /** Rolling Proximity ID (RPI), based on RPIK and time */
+        static byte[] rollingProximityID(byte[] temporaryExposureKey, long unixTime) {
+            byte[] rpik = rollingProximityIdentifierKeyFromTEK(temporaryExposureKey);
+            final int enInterval = enIntervalNumber(unixTime);
+            byte[] data = paddedData(enInterval);
+            byte[] proxId = aes128(rpik, data);
+
+            return proxId;
+        }
+
+        /**
+         * Writes the RPIs of the EN intervals firstEnInterval ... firstEnInterval + count - 1
+         * to out[offset ...] as consecutive 16-byte blocks. The ciphers are cached per thread.
+         */
+        static void rollingProximityIDs(byte[] temporaryExposureKey, int firstEnInterval, int count,
+                                        byte[] out, int offset) {
+            rpiGenerators.get().get(temporaryExposureKey)
+                    .rollingProximityIDs(firstEnInterval, count, out, offset);
+        }
+
+        /** Like above, but writes to the current position of a ByteBuffer */
+        static void rollingProximityIDs(byte[] temporaryExposureKey, int firstEnInterval, int count,
+                                        ByteBuffer out) {
+            rpiGenerators.get().get(temporaryExposureKey)
+                    .rollingProximityIDs(firstEnInterval, count, out);
+        }
+
+        static byte[] rollingProximityIdentifierKeyFromTEK(byte[] tek) {
+            final SecretKey salt = null;
+            byte[] prk = HKDF.fromHmacSha256().extract(salt, tek);
+            return HKDF.fromHmacSha256().expand(prk, "EN-RPIK".getBytes(), KEY_LENGTH_BYTES);
+        }
+
+        static byte[] associatedEncryptedMetadataKeyFromTEK(byte[] tek) {
+            final SecretKey salt = null;
+            byte[] prk = HKDF.fromHmacSha256().extract(salt, tek);
+            return HKDF.fromHmacSha256().expand(prk, "EN-AEMK".getBytes(), KEY_LENGTH_BYTES);
+        }
+
+        /** Service data of the advertisement: the RPI followed by the AEM */
+        static byte[] buildPayload(byte[] proxID, byte[] aem) {
+            byte[] payload = new byte[KEY_LENGTH_BYTES + AEM_BYTES];
+            System.arraycopy(proxID, 0, payload, 0, KEY_LENGTH_BYTES);
+            System.arraycopy(aem, 0, payload, KEY_LENGTH_BYTES, AEM_BYTES);
+            return payload;
+        }
+
+        /**
+         * Metadata of version 1.0 with the transmit power level (dBm, signed byte) in the
+         * second byte. Like the AEMs, as a big-endian int of the 4 bytes
+         */
+        static int metadata(int txPowerDbm) {
+            return METADATA_VERSION_1_0 << 24 | (txPowerDbm & 0xff) << 16;
+        }
+
+        /** @return true if the major version of the (decrypted) metadata is 1 */
+        static boolean isMetadataVersion1(int metadata) {
+            return (metadata >>> 30) == 1;
+        }
+
+        static int txPowerOf(int metadata) {
+            return (byte) (metadata >>> 16);
+        }
+
+        /** Associated Encrypted Metadata (AEM), AES-CTR with the AEMK and the RPI as the IV */
+        static int associatedEncryptedMetadata(byte[] temporaryExposureKey, byte[] rpi, int metadata) {
+            return new AemCipher().init(temporaryExposureKey).apply(rpi, 0, metadata);
+        }
+
+        /**
+         * Encrypts or decrypts AEMs of a single TEK. In AES-CTR, the keystream of a 4-byte
+         * AEM is the first 4 bytes of AES(AEMK, RPI), so the keystreams of any number of
+         * AEMs can be computed with a single ECB call. HKDF is run once per TEK. Not
+         * thread-safe.
+         */
+        static class AemCipher {
+            private final Cipher cipher;
+            private byte[] keystream = new byte[0];
+
+            AemCipher() {
+                try {
+                    cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            /** Re-key the cipher */
+            AemCipher init(byte[] temporaryExposureKey) {
+                byte[] aemk = associatedEncryptedMetadataKeyFromTEK(temporaryExposureKey);
+                try {
+                    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aemk, "AES"));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return this;
+            }
+
+            /** @return the AEM of the metadata, or the metadata of the AEM */
+            int apply(byte[] rpi, int rpiOffset, int aem) {
+                final int[] aems = { aem };
+                apply(rpi, rpiOffset, aems, 0, 1);
+                return aems[0];
+            }
+
+            /**
+             * Encrypts or decrypts aems[aemOffset ... aemOffset + count - 1] in place, with
+             * the RPIs in rpis[rpiOffset ...] as consecutive 16-byte blocks
+             */
+            void apply(byte[] rpis, int rpiOffset, int[] aems, int aemOffset, int count) {
+                final int length = count * KEY_LENGTH_BYTES;
+                if (keystream.length < length) keystream = new byte[length];
+                try {
+                    cipher.doFinal(rpis, rpiOffset, length, keystream, 0);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                for (int i = 0; i < count; ++i) {
+                    final int o = i * KEY_LENGTH_BYTES;
+                    aems[aemOffset + i] ^= (keystream[o] & 0xff) << 24 | (keystream[o + 1] & 0xff) << 16
+                            | (keystream[o + 2] & 0xff) << 8 | (keystream[o + 3] & 0xff);
+                }
+            }
+        }
+
+        /**
+         * Derives consecutive RPIs of a single TEK: HKDF is run once and the AES cipher
+         * is initialized once. Not thread-safe.
+         */
+        static class RpiGenerator {
+            private final Cipher cipher;
+            private byte[] paddedBlocks = new byte[0];
+
+            RpiGenerator() {
+                try {
+                    // AES-CBC with a zero IV equals AES-ECB for a single block. ECB also
+                    // allows encrypting all the padded data blocks with a single call
+                    cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            RpiGenerator(byte[] temporaryExposureKey) {
+                this();
+                init(temporaryExposureKey);
+            }
+
+            /** Re-key the generator. Cheaper than creating a new one */
+            RpiGenerator init(byte[] temporaryExposureKey) {
+                byte[] rpik = rollingProximityIdentifierKeyFromTEK(temporaryExposureKey);
+                try {
+                    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(rpik, "AES"));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return this;
+            }
+
+            void rollingProximityIDs(int firstEnInterval, int count, byte[] out, int offset) {
+                final int length = count * KEY_LENGTH_BYTES;
+                try {
+                    cipher.doFinal(paddedBlocks(firstEnInterval, count), 0, length, out, offset);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            void rollingProximityIDs(int firstEnInterval, int count, ByteBuffer out) {
+                final int length = count * KEY_LENGTH_BYTES;
+                try {
+                    cipher.doFinal(ByteBuffer.wrap(paddedBlocks(firstEnInterval, count), 0, length), out);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private byte[] paddedBlocks(int firstEnInterval, int count) {
+                if (count < 0) throw new IllegalArgumentException("negative count");
+                if (paddedBlocks.length < count * KEY_LENGTH_BYTES) {
+                    // the "EN-RPI" prefix and the zero padding never change
+                    paddedBlocks = new byte[count * KEY_LENGTH_BYTES];
+                    final byte[] template = paddedData(0);
+                    for (int i = 0; i < count; ++i) {
+                        System.arraycopy(template, 0, paddedBlocks, i * KEY_LENGTH_BYTES, KEY_LENGTH_BYTES);
+                    }
+                }
+                for (int i = 0; i < count; ++i) {
+                    final int enInterval = firstEnInterval + i;
+                    final int o = i * KEY_LENGTH_BYTES + 12;
+                    paddedBlocks[o] = (byte) enInterval;
+                    paddedBlocks[o + 1] = (byte) (enInterval >>> 8);
+                    paddedBlocks[o + 2] = (byte) (enInterval >>> 16);
+                    paddedBlocks[o + 3] = (byte) (enInterval >>> 24);
+                }
+                return paddedBlocks;
+            }
+        }
+
+        /** LRU cache of initialized RPI generators, keyed by TEK. Not thread-safe. */
+        static class RpiGeneratorCache {
+            private final Map<ByteBuffer, RpiGenerator> generators;
+
+            RpiGeneratorCache(final int maxSize) {
+                generators = new LinkedHashMap<ByteBuffer, RpiGenerator>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, RpiGenerator> eldest) {
+                        return size() > maxSize;
+                    }
+                };
+            }
+
+            RpiGenerator get(byte[] temporaryExposureKey) {
+                RpiGenerator generator = generators.get(ByteBuffer.wrap(temporaryExposureKey));
+                if (generator == null) {
+                    generator = new RpiGenerator(temporaryExposureKey);
+                    generators.put(ByteBuffer.wrap(temporaryExposureKey.clone()), generator);
+                }
+                return generator;
+            }
+
+            int size() {
+                return generators.size();
+            }
+        }
+    }
+
+    /**
+     * DP-3T protocol (the "low-cost design")
+     */
+    static class DP3T {
+        static final int SERVICE_UUID_16 = 0xFD68;
+        static final int KEY_LENGTH_BYTES = 16;
+        static final int EPOCHS_PER_DAY = 24 * 4;
+
+        static byte[] keyFromString(String str) {
+            return fixedLengthKeyFromString(str, KEY_LENGTH_BYTES);
+        }
+
+        static byte[] generateEphId(byte[] secretKey, int epochIdx) {
+            if (epochIdx < 0 || epochIdx >= EPOCHS_PER_DAY) {
+                throw new IllegalArgumentException("invalid epoch number");
+            }
+            try {
+                Cipher cipher = ephIdCipher(secretKey);
+                byte[] zeros = new byte[KEY_LENGTH_BYTES];
+                byte[] result = zeros;
+                for (int i = 0; i <= epochIdx; i++) result = cipher.update(zeros);
+                return result;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Writes all the EphIDs of the day to out[offset ...] as EPOCHS_PER_DAY consecutive
+         * 16-byte blocks. Unlike calling generateEphId for each epoch, this runs the
+         * keystream only once.
+         */
+        static void generateEphIds(byte[] secretKey, byte[] out, int offset) {
+            try {
+                // the EphIDs are the AES-CTR keystream, i.e., encrypted zeros
+                ephIdCipher(secretKey).doFinal(
+                        new byte[EPOCHS_PER_DAY * KEY_LENGTH_BYTES], 0,
+                        EPOCHS_PER_DAY * KEY_LENGTH_BYTES, out, offset);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        static byte[][] generateEphIds(byte[] secretKey) {
+            byte[] all = new byte[EPOCHS_PER_DAY * KEY_LENGTH_BYTES];
+            generateEphIds(secretKey, all, 0);
+            byte[][] ephIds = new byte[EPOCHS_PER_DAY][KEY_LENGTH_BYTES];
+            for (int i = 0; i < EPOCHS_PER_DAY; ++i) {
+                System.arraycopy(all, i * KEY_LENGTH_BYTES, ephIds[i], 0, KEY_LENGTH_BYTES);
+            }
+            return ephIds;
+        }
+
+        /** The secret key of the next day: SK_t = SHA-256(SK_{t-1}) */
+        static byte[] nextDayKey(byte[] secretKey) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(secretKey);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static Cipher ephIdCipher(byte[] secretKey) throws Exception {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secretKey, "HmacSHA256"));
+            mac.update("broadcast key".getBytes());
+            byte[] prf = mac.doFinal();
+            SecretKeySpec keySpec = new SecretKeySpec(prf, "AES");
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(new byte[KEY_LENGTH_BYTES]));
+            return cipher;
+        }
+
+        /**
+         * The day keys SK_t, SK_{t+1}, ... derived from a secret key reported for day t.
+         * The intermediate keys are cached, so the EphIDs of several days can be generated
+         * without re-hashing the chain from the start. Not thread-safe.
+         */
+        static class DayKeyChain {
+            private final List<byte[]> dayKeys = new ArrayList<>();
+
+            DayKeyChain(byte[] secretKey) {
+                dayKeys.add(secretKey.clone());
+            }
+
+            byte[] dayKey(int daysAfter) {
+                if (daysAfter < 0) throw new IllegalArgumentException("negative day");
+                while (dayKeys.size() <= daysAfter) {
+                    dayKeys.add(nextDayKey(dayKeys.get(dayKeys.size() - 1)));
+                }
+                return dayKeys.get(daysAfter);
+            }
+
+            /**
+             * Writes the EphIDs of the days t + firstDay, ..., t + firstDay + nDays - 1
+             * to out[offset ...], EPOCHS_PER_DAY 16-byte blocks per day
+             */
+            void generateEphIds(int firstDay, int nDays, byte[] out, int offset) {
+                for (int d = 0; d < nDays; ++d) {
+                    DP3T.generateEphIds(dayKey(firstDay + d), out,
+                            offset + d * EPOCHS_PER_DAY * KEY_LENGTH_BYTES);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package org.example.coronasniffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregates the ranged beacons per RPI. The beacons of a ranging batch are added with
+ * beginBatch(), add() for each beacon and endBatch().
+ *
+ * The live entries can be checkpointed incrementally to a StatsCheckpoint and restored
+ * after the process has been killed, see startCheckpoints().
+ *
+ * Threading: the batches, flush(), size(), getNearbyDeviceCount() and the checkpoints
+ * are only called from a single writer thread (the range notifier). onLocationChanged() and
+ * getSnapshot() may be called from any thread and never block the writer.
+ */
+class BeaconStats {
+    // RPI window is 10 minutes. use 11 to avoid any clock sync issues
+    private static final long PRUNE_AGE_SECONDS = 60 * 11;
+    // count devices seen during this window as "recent", for showing the number of
+    // currently active devices
+    private static final long RECENT_AGE_SECONDS = 30;
+    // sightings are counted as geotagged if the latest fix is at most this old
+    static final long GEOTAG_MAX_FIX_AGE_MILLIS = 2 * 60 * 1000;
+
+    // the RSSI histograms have 1 dB bins from MIN_RSSI to 0 dBm, stronger values are clamped
+    static final int MIN_RSSI = -127;
+    static final int RSSI_BINS = 1 - MIN_RSSI;
+    // per-second presence is tracked for the first PRESENCE_SECONDS after the first sighting,
+    // a bit more than the 10-minute RPI window
+    static final int PRESENCE_SECONDS = 640;
+    // the location track is trimmed to the fixes the entries refer to when it has grown to
+    // twice its size after the previous trim, and at least this many fixes
+    private static final int MIN_TRACK_TRIM_SIZE = 64;
+
+    private static final String TAG = BeaconStats.class.getSimpleName();
+
+    // high-volume events, only formatted if enabled and below the rate limit
+    private static final EventLog.Type BATCH_EVENT =
+            new EventLog.Type(TAG, "beacon_batch", EventLog.VERBOSE, 5);
+    private static final EventLog.Type SIGHTING_EVENT =
+            new EventLog.Type(TAG, "sighting", EventLog.VERBOSE, 50);
+    private static final EventLog.Type NEW_DEVICE_EVENT =
+            new EventLog.Type(TAG, "new_device", EventLog.DEBUG, 20);
+    private static final EventLog.Type CHECKPOINT_ERROR_EVENT =
+            new EventLog.Type(TAG, "checkpoint_error", EventLog.WARN, 1);
+
+    private static final Metrics.Histogram BATCH_SIZE =
+            new Metrics.Histogram("batch_size", Metrics.bounds125(1, 1000));
+    // sampled: every ADD_SAMPLE_INTERVAL-th add() is timed, to keep the overhead negligible
+    private static final Metrics.Histogram ADD_NANOS =
+            new Metrics.Histogram("add_ns", Metrics.bounds125(100, 10000000));
+    private static final int ADD_SAMPLE_INTERVAL = 16;
+    private static final Metrics.Histogram PRUNE_NANOS =
+            new Metrics.Histogram("prune_ns", Metrics.bounds125(100, 100000000));
+    private static final Metrics.Gauge LIVE_RPIS = new Metrics.Gauge("live_rpis");
+    // per sighting, only if there is a fix
+    private static final Metrics.Histogram FIX_AGE_MILLIS =
+            new Metrics.Histogram("fix_age_ms", Metrics.bounds125(1000, 10000000));
+    private static final Metrics.Histogram CHECKPOINT_NANOS =
+            new Metrics.Histogram("checkpoint_ns", Metrics.bounds125(1000, 100000000));
+
+    /**
+     * Aggregated sightings of a single RPI. The entries are recycled after they have
+     * been logged, so they must not be retained outside BeaconStats.
+     */
+    static class Entry {
+        long rpiHigh, rpiLow;
+        int aem;
+        int maxRssi;
+        int nScans;
+        double meanRssi;
+
+        final FirstOrLast first = new FirstOrLast();
+        final FirstOrLast last = new FirstOrLast();
+
+        // fixed-size distribution of the scans, saturating counts
+        final short[] rssiHistogram = new short[RSSI_BINS];
+        // bit i: seen during the i-th second after the first sighting
+        final long[] presence = new long[PRESENCE_SECONDS / 64];
+        long lastSecond;
+        int secondsAfterPresenceWindow;
+
+        static class FirstOrLast {
+            long seen; // unix time in milliseconds
+            int fix; // the latest fix in the LocationTrack when seen
+
+            void set(long seen, int fix) {
+                this.seen = seen;
+                this.fix = fix;
+            }
+
+            void toPosition(LocationTrack track, SightingRecord.Position p) {
+                if (track == null) p.clear();
+                else track.positionAt(fix, seen, p);
+            }
+        }
+
+        void init(long rpiHigh, long rpiLow, int aem, int rssi, double runningAverageRssi,
+                  int fix, long now) {
+            this.rpiHigh = rpiHigh;
+            this.rpiLow = rpiLow;
+            this.aem = aem;
+            nScans = 1;
+            meanRssi = runningAverageRssi;
+            maxRssi = Math.max(rssi, (int) Math.round(meanRssi));
+            first.set(now, fix);
+            last.set(now, fix);
+
+            Arrays.fill(rssiHistogram, (short) 0);
+            addToHistogram(rssi);
+            Arrays.fill(presence, 0);
+            presence[0] = 1;
+            lastSecond = 0;
+            secondsAfterPresenceWindow = 0;
+        }
+
+        void update(int rssi, double runningAverageRssi, int fix, long now) {
+            maxRssi = Math.max(maxRssi, Math.max(rssi, (int) Math.round(runningAverageRssi)));
+            // some sort of mixture of running means, close enough
+            meanRssi = (meanRssi * nScans + runningAverageRssi) / (nScans + 1);
+            nScans++;
+            last.set(now, fix);
+
+            addToHistogram(rssi);
+            final long second = (now - first.seen) / 1000;
+            // the clock stepped back to before the first sighting, nothing to mark
+            if (second < 0) return;
+            if (second != lastSecond) {
+                lastSecond = second;
+                if (second < PRESENCE_SECONDS) presence[(int) second >>> 6] |= 1L << second;
+                else secondsAfterPresenceWindow++;
+            }
+        }
+
+        private void addToHistogram(int rssi) {
+            final int bin = Math.max(MIN_RSSI, Math.min(0, rssi)) - MIN_RSSI;
+            if (rssiHistogram[bin] < Short.MAX_VALUE) rssiHistogram[bin]++;
+        }
+
+        /** @return the RSSI percentile of the scans (nearest-rank), exact up to the clamping */
+        int rssiPercentile(int percent) {
+            int total = 0;
+            for (short count : rssiHistogram) total += count;
+            final long rank = Math.max(1, ((long) total * percent + 99) / 100);
+            int cumulative = 0;
+            for (int bin = 0; bin < RSSI_BINS; ++bin) {
+                cumulative += rssiHistogram[bin];
+                if (cumulative >= rank) return bin + MIN_RSSI;
+            }
+            return 0;
+        }
+
+        /** @return the number of distinct seconds during which the RPI was seen */
+        int secondsPresent() {
+            int seconds = secondsAfterPresenceWindow;
+            for (long word : presence) seconds += Long.bitCount(word);
+            return seconds;
+        }
+
+        String rpiHex() {
+            return String.format("%016x%016x", rpiHigh, rpiLow);
+        }
+
+        String aemHex() {
+            return String.format("%08x", aem);
+        }
+
+        /** The JSON log line, without the locations */
+        @Override
+        public String toString() {
+            SightingRecord r = new SightingRecord();
+            toRecord(r, null);
+            return r.toJson();
+        }
+
+        /** @param track the track for interpolating the locations, or null to omit them */
+        void toRecord(SightingRecord r, LocationTrack track) {
+            r.rpiHigh = rpiHigh;
+            r.rpiLow = rpiLow;
+            r.aem = aem;
+            r.firstSeen = first.seen / 1000;
+            r.lastSeen = last.seen / 1000;
+            r.nScans = nScans;
+            r.maxRssi = maxRssi;
+            r.meanRssi = meanRssi;
+            r.p10Rssi = rssiPercentile(10);
+            r.medianRssi = rssiPercentile(50);
+            r.p90Rssi = rssiPercentile(90);
+            r.secondsPresent = secondsPresent();
+            first.toPosition(track, r.first);
+            last.toPosition(track, r.last);
+        }
+
+        long ageSeconds(long now) {
+            return (now - last.seen) / 1000;
+        }
+    }
+
+    private static final int NIL = -1;
+
+    // RPI -> index in slots. The Entry objects in slots are reused once freed
+    private final RpiTable table = new RpiTable();
+    private Entry[] slots = new Entry[16];
+    private int[] freeSlots = new int[16];
+    private int nFreeSlots = 0;
+    private int slotLimit = 0;
+
+    // the live slots as a doubly linked list in the order they were last seen, oldest first
+    private int[] prev = new int[16];
+    private int[] next = new int[16];
+    private int head = NIL, tail = NIL;
+
+    // the recently seen entries are a suffix of the list, starting from recentHead
+    private boolean[] recent = new boolean[16];
+    private int recentHead = NIL;
+    private int recentCount = 0;
+
+    // the logged entries are written asynchronously
+    private final AsyncSightingLog sightingLog;
+    private final Clock clock;
+
+    // the latest location fix, published by the location thread
+    private final AtomicReference<GeoPosition> location = new AtomicReference<>();
+    // the fixes seen by the writer, for interpolating the sighting locations
+    private final LocationTrack track = new LocationTrack();
+    private GeoPosition trackedLocation = null;
+    private int trackTrimSize = MIN_TRACK_TRIM_SIZE;
+    // the state after the latest batch, for readers on other threads
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private long totalBatches = 0, totalSightings = 0, totalGeotagged = 0;
+    private long totalArrivals = 0, totalDepartures = 0;
+    private long adds = 0;
+
+    // the slots changed since the latest checkpoint
+    private StatsCheckpoint checkpoint = null;
+    private long checkpointIntervalMillis, lastCheckpoint;
+    private boolean[] dirty = new boolean[16];
+    private int[] dirtySlots = new int[16];
+    private int nDirty = 0;
+    // the slots of the logged entries that stay live in the checkpoint until their records
+    // have been committed by sightingLog, in the order they were logged
+    private boolean[] retired = new boolean[16];
+    private int[] retiredSlots = new int[16];
+    private long[] retiredSequences = new long[16];
+    private int nRetired = 0;
+
+    /** Immutable state of the aggregate after a batch, safe to read from any thread */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+        final long time; // batch time, unix milliseconds
+        final long batches, sightings; // totals since start
+        final long geotaggedSightings; // with a recent location fix
+        final long arrivals, departures; // new and pruned RPIs since start
+        final int batchSize;
+        final int devices; // RPIs not pruned yet
+        final int nearbyDevices;
+        // the strongest beacon of the batch, valid if batchSize > 0
+        final long strongestRpiHigh, strongestRpiLow;
+        final int strongestAem, strongestRssi;
+
+        Snapshot(long time, long batches, long sightings, long geotaggedSightings, long arrivals,
+                 long departures, int batchSize, int devices, int nearbyDevices,
+                 long strongestRpiHigh, long strongestRpiLow, int strongestAem, int strongestRssi) {
+            this.time = time;
+            this.batches = batches;
+            this.sightings = sightings;
+            this.geotaggedSightings = geotaggedSightings;
+            this.arrivals = arrivals;
+            this.departures = departures;
+            this.batchSize = batchSize;
+            this.devices = devices;
+            this.nearbyDevices = nearbyDevices;
+            this.strongestRpiHigh = strongestRpiHigh;
+            this.strongestRpiLow = strongestRpiLow;
+            this.strongestAem = strongestAem;
+            this.strongestRssi = strongestRssi;
+        }
+
+        String strongestRpiHex() {
+            return String.format("%016x%016x", strongestRpiHigh, strongestRpiLow);
+        }
+    }
+
+    BeaconStats(AsyncSightingLog sightingLog) {
+        this(sightingLog, Clock.SYSTEM);
+    }
+
+    BeaconStats(AsyncSightingLog sightingLog, Clock clock) {
+        this.sightingLog = sightingLog;
+        this.clock = clock;
+    }
+
+    // state of the current batch
+    private long batchTime;
+    private int batchFix = LocationTrack.NO_FIX;
+    private int batchSize;
+    private long strongestRpiHigh, strongestRpiLow;
+    private int strongestAem, batchMaxRssi;
+
+    void beginBatch(int size) {
+        EventLog.Event event = EventLog.begin(BATCH_EVENT);
+        if (event != null) event.num("size", size).num("mapSize", table.size()).emit();
+
+        batchTime = clock.currentTimeMillis();
+        final GeoPosition latest = location.get();
+        if (latest != trackedLocation && latest != null) {
+            trackedLocation = latest;
+            batchFix = track.append(latest);
+        }
+        batchSize = 0;
+        batchMaxRssi = Integer.MIN_VALUE;
+    }
+
+    /** Add a ranged beacon with the RPI given as two longs (big-endian halves) */
+    void add(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+        final boolean timed = ++adds % ADD_SAMPLE_INTERVAL == 0;
+        final long start = timed ? System.nanoTime() : 0;
+        final long now = batchTime;
+        Entry entry = add(rpiHigh, rpiLow, aem, rssi, meanRssi, now);
+        if (timed) ADD_NANOS.record(System.nanoTime() - start);
+        EventLog.Event event = EventLog.begin(SIGHTING_EVENT);
+        if (event != null) {
+            event.hex("rpi", rpiHigh, rpiLow).num("rssi", rssi).num("meanRssi", meanRssi)
+                    .num("nScans", entry.nScans).emit();
+        }
+
+        batchSize++;
+        final int observedMax = Math.max(rssi, (int) Math.round(meanRssi));
+        if (observedMax > batchMaxRssi) {
+            strongestRpiHigh = rpiHigh;
+            strongestRpiLow = rpiLow;
+            strongestAem = aem;
+            batchMaxRssi = observedMax;
+        }
+    }
+
+    /** Prunes and publishes the new snapshot. @return the snapshot */
+    Snapshot endBatch() {
+        final long start = System.nanoTime();
+        prune(batchTime);
+        PRUNE_NANOS.record(System.nanoTime() - start);
+        if (track.size() - track.first() >= trackTrimSize) trimTrack();
+        totalBatches++;
+        totalSightings += batchSize;
+        if (trackedLocation != null && batchTime - trackedLocation.time <= GEOTAG_MAX_FIX_AGE_MILLIS) {
+            totalGeotagged += batchSize;
+        }
+        BATCH_SIZE.record(batchSize);
+        LIVE_RPIS.set(table.size());
+        if (trackedLocation != null) FIX_AGE_MILLIS.record(batchTime - trackedLocation.time, batchSize);
+        if (checkpoint != null && batchTime - lastCheckpoint >= checkpointIntervalMillis) checkpoint();
+        final Snapshot s = new Snapshot(batchTime, totalBatches, totalSightings, totalGeotagged,
+                totalArrivals, totalDepartures, batchSize, table.size(), nearbyDeviceCount(batchTime),
+                strongestRpiHigh, strongestRpiLow, strongestAem, batchMaxRssi);
+        snapshot = s;
+        return s;
+    }
+
+    /** @return the state after the latest batch, from any thread */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private Entry add(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi, long now) {
+        final int slot = table.get(rpiHigh, rpiLow);
+        if (slot != RpiTable.ABSENT) {
+            Entry entry = slots[slot];
+            entry.update(rssi, meanRssi, batchFix, now);
+            touch(slot);
+            markDirty(slot);
+            return entry;
+        }
+
+        totalArrivals++;
+        final int newSlot = allocateSlot();
+        Entry entry = slots[newSlot];
+        entry.init(rpiHigh, rpiLow, aem, rssi, meanRssi, batchFix, now);
+        table.put(rpiHigh, rpiLow, newSlot);
+        append(newSlot);
+        markDirty(newSlot);
+        EventLog.Event event = EventLog.begin(NEW_DEVICE_EVENT);
+        if (event != null) {
+            event.hex("rpi", rpiHigh, rpiLow).hex("aem", aem).num("rssi", rssi)
+                    .num("devices", table.size()).emit();
+        }
+        return entry;
+    }
+
+    private int allocateSlot() {
+        if (nFreeSlots > 0) return freeSlots[--nFreeSlots];
+
+        final int slot = slotLimit++;
+        if (slot == slots.length) {
+            slots = Arrays.copyOf(slots, 2 * slot);
+            freeSlots = Arrays.copyOf(freeSlots, 2 * slot);
+            prev = Arrays.copyOf(prev, 2 * slot);
+            next = Arrays.copyOf(next, 2 * slot);
+            recent = Arrays.copyOf(recent, 2 * slot);
+            dirty = Arrays.copyOf(dirty, 2 * slot);
+            dirtySlots = Arrays.copyOf(dirtySlots, 2 * slot);
+            retired = Arrays.copyOf(retired, 2 * slot);
+            retiredSlots = Arrays.copyOf(retiredSlots, 2 * slot);
+            retiredSequences = Arrays.copyOf(retiredSequences, 2 * slot);
+        }
+        slots[slot] = new Entry();
+        return slot;
+    }
+
+    /** @param sequence the log sequence number of the record of the entry, see log() */
+    private void freeSlot(int slot, long sequence) {
+        Entry e = slots[slot];
+        table.remove(e.rpiHigh, e.rpiLow);
+        unlink(slot);
+        if (checkpoint == null) {
+            freeSlots[nFreeSlots++] = slot;
+            return;
+        }
+        // not reused before it is cleared in the checkpoint, see releaseRetired()
+        retired[slot] = true;
+        retiredSlots[nRetired] = slot;
+        retiredSequences[nRetired++] = sequence;
+    }
+
+    /** Frees the retired slots whose records have been committed, and clears them from the checkpoint */
+    private void releaseRetired() {
+        final long committed = sightingLog.getCommitted();
+        int n = 0;
+        while (n < nRetired && retiredSequences[n] <= committed) {
+            final int slot = retiredSlots[n++];
+            retired[slot] = false;
+            freeSlots[nFreeSlots++] = slot;
+            markDirty(slot);
+        }
+        if (n == 0) return;
+        nRetired -= n;
+        System.arraycopy(retiredSlots, n, retiredSlots, 0, nRetired);
+        System.arraycopy(retiredSequences, n, retiredSequences, 0, nRetired);
+    }
+
+    private void markDirty(int slot) {
+        if (checkpoint == null || dirty[slot]) return;
+        dirty[slot] = true;
+        dirtySlots[nDirty++] = slot;
+    }
+
+    /** Add a slot that was just seen to the end of the list */
+    private void append(int slot) {
+        prev[slot] = tail;
+        next[slot] = NIL;
+        if (tail == NIL) head = slot;
+        else next[tail] = slot;
+        tail = slot;
+
+        if (!recent[slot]) {
+            recent[slot] = true;
+            recentCount++;
+        }
+        if (recentHead == NIL) recentHead = slot;
+    }
+
+    private void unlink(int slot) {
+        if (slot == recentHead) recentHead = next[slot];
+        if (prev[slot] == NIL) head = next[slot];
+        else next[prev[slot]] = next[slot];
+        if (next[slot] == NIL) tail = prev[slot];
+        else prev[next[slot]] = prev[slot];
+    }
+
+    /** Move a slot that was just seen to the end of the list */
+    private void touch(int slot) {
+        unlink(slot);
+        append(slot);
+    }
+
+    /** Logs all entries and blocks until they have been written. Call after the scans have stopped */
+    void flush() {
+        while (head != NIL) removeHead(log(slots[head], true));
+        sightingLog.drain();
+        // nothing to restore anymore
+        if (checkpoint != null) checkpoint();
+    }
+
+    /**
+     * Restores the entries of a checkpoint written by a previous process and from now on
+     * writes the changed entries to it at the end of a batch, at most every intervalMillis.
+     * Restored entries outside the prune window are logged right away, the others are
+     * aggregated further. The fixes of the restored sightings are added to the location
+     * track. Call before the first batch.
+     *
+     * A logged entry stays in the checkpoint until sightingLog has committed its record,
+     * so the entries logged shortly before the process was killed may be logged again
+     * after the restore.
+     *
+     * @return the number of restored entries
+     */
+    int startCheckpoints(StatsCheckpoint checkpoint, long intervalMillis) {
+        final List<StatsCheckpoint.Saved> saved = checkpoint.readAll();
+        this.checkpoint = checkpoint;
+        this.checkpointIntervalMillis = intervalMillis;
+
+        final List<GeoPosition> fixes = new ArrayList<>();
+        for (StatsCheckpoint.Saved s : saved) {
+            if (s.firstFix != null) fixes.add(s.firstFix);
+            if (s.lastFix != null) fixes.add(s.lastFix);
+        }
+        // the track needs the fixes in time order
+        Collections.sort(fixes, new Comparator<GeoPosition>() {
+            @Override
+            public int compare(GeoPosition a, GeoPosition b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+        final Map<GeoPosition, Integer> fixIndices = new IdentityHashMap<>();
+        for (GeoPosition fix : fixes) fixIndices.put(fix, track.append(fix));
+
+        // the list is ordered by the time last seen
+        Collections.sort(saved, new Comparator<StatsCheckpoint.Saved>() {
+            @Override
+            public int compare(StatsCheckpoint.Saved a, StatsCheckpoint.Saved b) {
+                return Long.compare(a.entry.last.seen, b.entry.last.seen);
+            }
+        });
+        for (StatsCheckpoint.Saved s : saved) {
+            final Entry e = s.entry;
+            if (table.get(e.rpiHigh, e.rpiLow) != RpiTable.ABSENT) continue;
+            if (s.firstFix != null) e.first.fix = fixIndices.get(s.firstFix);
+            if (s.lastFix != null) e.last.fix = fixIndices.get(s.lastFix);
+            final int slot = allocateSlot();
+            slots[slot] = e;
+            table.put(e.rpiHigh, e.rpiLow, slot);
+            append(slot);
+        }
+
+        // the slots are not the same as in the file
+        checkpoint.clearAll();
+        for (int slot = head; slot != NIL; slot = next[slot]) markDirty(slot);
+        final long now = clock.currentTimeMillis();
+        prune(now);
+        nearbyDeviceCount(now);
+        checkpoint();
+        return saved.size();
+    }
+
+    /** Writes the slots changed since the previous checkpoint. Called automatically, see startCheckpoints() */
+    void checkpoint() {
+        if (checkpoint == null) return;
+        final long start = System.nanoTime();
+        try {
+            checkpoint.ensureCapacity(slotLimit);
+        } catch (IOException e) {
+            EventLog.Event event = EventLog.begin(CHECKPOINT_ERROR_EVENT);
+            if (event != null) event.str("error", e.toString()).emit();
+            // stop checkpointing, the state file is left as it was
+            checkpoint = null;
+            nDirty = 0;
+            for (int i = 0; i < nRetired; ++i) {
+                retired[retiredSlots[i]] = false;
+                freeSlots[nFreeSlots++] = retiredSlots[i];
+            }
+            nRetired = 0;
+            return;
+        }
+        releaseRetired();
+        for (int i = 0; i < nDirty; ++i) {
+            final int slot = dirtySlots[i];
+            dirty[slot] = false;
+            final Entry e = slots[slot];
+            // freed slots are not in the table, or not with this RPI
+            if (retired[slot] || table.get(e.rpiHigh, e.rpiLow) == slot) checkpoint.write(slot, e, track);
+            else checkpoint.clear(slot);
+        }
+        nDirty = 0;
+        lastCheckpoint = clock.currentTimeMillis();
+        CHECKPOINT_NANOS.record(System.nanoTime() - start);
+    }
+
+    /** @return the log sequence number of the record, see AsyncSightingLog.getCommitted() */
+    private long log(Entry e, boolean block) {
+        SightingRecord r = sightingLog.claim(block);
+        if (r == null) return sightingLog.getPublished(); // dropped, counted by sightingLog
+        e.toRecord(r, track);
+        sightingLog.publish();
+        return sightingLog.getPublished();
+    }
+
+    private void removeHead(long sequence) {
+        final int slot = head;
+        if (recent[slot]) {
+            recent[slot] = false;
+            recentCount--;
+        }
+        freeSlot(slot, sequence);
+    }
+
+    /** Sets the location of the following batches, from any thread */
+    void onLocationChanged(GeoPosition location) {
+        this.location.set(location);
+    }
+
+    /** Only touches the expired entries, which are at the beginning of the list */
+    private void prune(long now) {
+        while (head != NIL && slots[head].ageSeconds(now) > PRUNE_AGE_SECONDS) {
+            totalDepartures++;
+            removeHead(log(slots[head], false));
+        }
+    }
+
+    /** Discards the location fixes before the oldest one a live or retired entry refers to */
+    private void trimTrack() {
+        int oldest = batchFix == LocationTrack.NO_FIX ? track.size() : batchFix;
+        for (int slot = head; slot != NIL; slot = next[slot]) oldest = oldestFix(slots[slot], oldest);
+        for (int i = 0; i < nRetired; ++i) oldest = oldestFix(slots[retiredSlots[i]], oldest);
+        track.trimBefore(oldest);
+        trackTrimSize = Math.max(MIN_TRACK_TRIM_SIZE, 2 * (track.size() - track.first()));
+    }
+
+    private static int oldestFix(Entry e, int oldest) {
+        if (e.first.fix != LocationTrack.NO_FIX) oldest = Math.min(oldest, e.first.fix);
+        if (e.last.fix != LocationTrack.NO_FIX) oldest = Math.min(oldest, e.last.fix);
+        return oldest;
+    }
+
+    /** @return the number of RPIs that have not been pruned yet */
+    int size() {
+        return table.size();
+    }
+
+    int getNearbyDeviceCount() {
+        return nearbyDeviceCount(clock.currentTimeMillis());
+    }
+
+    private int nearbyDeviceCount(long now) {
+        // sliding window: advance the start of the recent suffix past the entries
+        // that are no longer recent
+        while (recentHead != NIL && slots[recentHead].ageSeconds(now) >= RECENT_AGE_SECONDS) {
+            recent[recentHead] = false;
+            recentCount--;
+            recentHead = next[recentHead];
+        }
+        return recentCount;
+    }
+}
@@ -0,0 +1,79 @@
+package org.example.coronasniffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Ground truth of a spoofer session as JSON lines: the configuration of the virtual
+ * devices (see IdentityMultiplexer)
+ *
+ *     {"advertisingSets":4,"identities":100,"sliceMillis":2000}
+ *
+ * each key of each virtual device once, in the same format as the diagnosis keys read by
+ * BulkMatcher, e.g.,
+ *
+ *     {"diagnosisKey":"6578...","identity":0,"maxUnixTime":1600041599,"minUnixTime":1599955200,"rollingPeriod":144,"rollingStartIntervalNumber":2666592}
+ *
+ * and each RPI from the time it became current, being on the air during the time slices of
+ * its virtual device
+ *
+ *     {"aem":"00000000","enInterval":2666600,"identity":0,"rpi":"8f3a...","time":1599960000012}
+ *
+ * Write errors do not throw but stop the log and are available from getError().
+ */
+class BroadcastLog implements Closeable {
+    private final Writer out;
+    private IOException error = null;
+
+    BroadcastLog(Writer out) {
+        this.out = out;
+    }
+
+    void manifest(int identities, int advertisingSets, long sliceMillis) {
+        write("{\"advertisingSets\":" + advertisingSets
+                + ",\"identities\":" + identities
+                + ",\"sliceMillis\":" + sliceMillis + "}");
+    }
+
+    void key(int identity, byte[] tek, int rollingStartInterval, int rollingPeriod) {
+        final long minUnixTime = rollingStartInterval * (long) BeaconCrypto.AppleGoogleEN.EN_INTERVAL_SECONDS;
+        final long maxUnixTime = minUnixTime + rollingPeriod * (long) BeaconCrypto.AppleGoogleEN.EN_INTERVAL_SECONDS - 1;
+        write("{\"diagnosisKey\":\"" + BeaconCrypto.bytesToHex(tek)
+                + "\",\"identity\":" + identity
+                + ",\"maxUnixTime\":" + maxUnixTime
+                + ",\"minUnixTime\":" + minUnixTime
+                + ",\"rollingPeriod\":" + rollingPeriod
+                + ",\"rollingStartIntervalNumber\":" + rollingStartInterval + "}");
+    }
+
+    /** @param unixMillis when the RPI actually became current */
+    void broadcast(long unixMillis, int identity, int enInterval, byte[] rpi, byte[] aem) {
+        write("{\"aem\":\"" + BeaconCrypto.bytesToHex(aem)
+                + "\",\"enInterval\":" + enInterval
+                + ",\"identity\":" + identity
+                + ",\"rpi\":\"" + BeaconCrypto.bytesToHex(rpi)
+                + "\",\"time\":" + unixMillis + "}");
+    }
+
+    private void write(String line) {
+        if (error != null) return;
+        try {
+            out.write(line);
+            out.write('\n');
+            // few lines, and the end of the session is usually not clean
+            out.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
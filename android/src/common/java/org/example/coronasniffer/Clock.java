@@ -0,0 +1,14 @@
+package org.example.coronasniffer;
+
+/** Source of the current time, replaceable for deterministic tests and trace replays */
+interface Clock {
+    /** @return unix time in milliseconds */
+    long currentTimeMillis();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+}
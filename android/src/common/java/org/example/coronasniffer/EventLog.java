@@ -0,0 +1,147 @@
+package org.example.coronasniffer;
+
+/**
+ * Structured, level-guarded logging for hot paths. An event is only formatted if its
+ * level is enabled and its type is not over its rate limit, e.g.,
+ *
+ *     EventLog.Event e = EventLog.begin(NEW_DEVICE);
+ *     if (e != null) e.hex("rpi", high, low).num("rssi", rssi).emit();
+ *
+ * which logs "new_device rpi=... rssi=-67". Like FL, configured globally with init().
+ */
+class EventLog {
+    // same as android.util.Log
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    interface Output {
+        void write(int level, String tag, String message);
+    }
+
+    private static volatile Output output = null;
+    private static volatile int minLevel = Integer.MAX_VALUE;
+
+    private static final ThreadLocal<Event> events = new ThreadLocal<Event>() {
+        @Override
+        protected Event initialValue() {
+            return new Event();
+        }
+    };
+
+    static void init(Output output, int minLevel) {
+        EventLog.output = output;
+        EventLog.minLevel = minLevel;
+    }
+
+    static boolean isEnabled(int level) {
+        return level >= minLevel && output != null;
+    }
+
+    /**
+     * A kind of event with a fixed tag, name and level, limited to at most maxPerSecond
+     * emitted events (on average, with bursts up to the same number)
+     */
+    static class Type {
+        final String tag;
+        final String name;
+        final int level;
+        private final double maxPerSecond;
+
+        // token bucket
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long suppressed = 0;
+
+        Type(String tag, String name, int level, double maxPerSecond) {
+            this.tag = tag;
+            this.name = name;
+            this.level = level;
+            this.maxPerSecond = maxPerSecond;
+            this.tokens = maxPerSecond;
+        }
+
+        /** @return -1 if rate limited, otherwise the number of events suppressed before this */
+        synchronized long tryAcquire() {
+            final long now = System.nanoTime();
+            tokens = Math.min(maxPerSecond, tokens + (now - lastRefill) * 1e-9 * maxPerSecond);
+            lastRefill = now;
+            if (tokens < 1) {
+                suppressed++;
+                return -1;
+            }
+            tokens -= 1;
+            final long s = suppressed;
+            suppressed = 0;
+            return s;
+        }
+    }
+
+    /** @return a (reused, per-thread) event to fill and emit, or null if it should not be logged */
+    static Event begin(Type type) {
+        if (!isEnabled(type.level)) return null;
+        final long suppressed = type.tryAcquire();
+        if (suppressed < 0) return null;
+        return events.get().start(type, suppressed);
+    }
+
+    static class Event {
+        private final StringBuilder sb = new StringBuilder(256);
+        private Type type;
+        private long suppressed;
+
+        private Event start(Type type, long suppressed) {
+            this.type = type;
+            this.suppressed = suppressed;
+            sb.setLength(0);
+            sb.append(type.name);
+            return this;
+        }
+
+        private StringBuilder key(String key) {
+            return sb.append(' ').append(key).append('=');
+        }
+
+        Event num(String key, long value) {
+            key(key).append(value);
+            return this;
+        }
+
+        Event num(String key, double value) {
+            key(key).append(value);
+            return this;
+        }
+
+        Event str(String key, CharSequence value) {
+            key(key).append(value);
+            return this;
+        }
+
+        Event hex(String key, int value) {
+            appendHex(key(key), value & 0xffffffffL, 8);
+            return this;
+        }
+
+        /** a 128-bit identifier stored as two longs */
+        Event hex(String key, long high, long low) {
+            appendHex(appendHex(key(key), high, 16), low, 16);
+            return this;
+        }
+
+        void emit() {
+            if (suppressed > 0) sb.append(" suppressed=").append(suppressed);
+            Output out = output;
+            if (out != null) out.write(type.level, type.tag, sb.toString());
+            type = null;
+        }
+
+        private static StringBuilder appendHex(StringBuilder sb, long value, int digits) {
+            for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4) {
+                sb.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+            }
+            return sb;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.example.coronasniffer;
+
+/** An immutable location fix, the Android-independent part of android.location.Location */
+class GeoPosition {
+    final double latitude, longitude;
+    final float accuracy; // meters
+    final long time; // unix time in milliseconds
+
+    GeoPosition(double latitude, double longitude, float accuracy, long time) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.time = time;
+    }
+}
@@ -0,0 +1,129 @@
+package org.example.coronasniffer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Schedules K virtual EN devices, each with its own RpiRotation, on the advertising sets
+ * of one radio. Identity i is advertised on set i % sets; if a set has more than one
+ * identity, they take turns in time slices of sliceMillis (preferably a divisor of the
+ * 10-minute EN interval), so each one is on the air 1 / ceil(K / sets) of the time.
+ * Not thread-safe.
+ */
+class IdentityMultiplexer {
+    static final long DEFAULT_SLICE_MILLIS = 2000;
+
+    private final RpiRotation[] identities;
+    private final int sets;
+    private final long sliceMillis;
+    private final int metadata;
+
+    private final int[] onAir;
+    private final int[] onAirInterval;
+    private final boolean[] changed;
+
+    /** @param txPowerDbm the transmit power level in the AEM metadata */
+    IdentityMultiplexer(int identities, int advertisingSets, long sliceMillis, int txPowerDbm, Random keyRandom) {
+        if (identities < 1) throw new IllegalArgumentException("no identities");
+        if (advertisingSets < 1) throw new IllegalArgumentException("no advertising sets");
+        if (sliceMillis < 1) throw new IllegalArgumentException("invalid slice " + sliceMillis);
+        this.identities = new RpiRotation[identities];
+        for (int i = 0; i < identities; ++i) this.identities[i] = new RpiRotation(keyRandom);
+        this.sets = Math.min(identities, advertisingSets);
+        this.sliceMillis = sliceMillis;
+        this.metadata = BeaconCrypto.AppleGoogleEN.metadata(txPowerDbm);
+        onAir = new int[sets];
+        onAirInterval = new int[sets];
+        Arrays.fill(onAir, -1);
+        changed = new boolean[sets];
+    }
+
+    int getIdentityCount() {
+        return identities.length;
+    }
+
+    /** @return the number of advertising sets in use, at most the number of identities */
+    int getSetCount() {
+        return sets;
+    }
+
+    private int identitiesOn(int set) {
+        return (identities.length - set + sets - 1) / sets;
+    }
+
+    /**
+     * Moves all identities and sets to the given time. New keys and RPIs are logged to
+     * the log, if not null, as they start.
+     * @return true if a key rolled, so the next days should be prepared, see prepareNextDays()
+     */
+    boolean advanceTo(long unixMillis, BroadcastLog log) {
+        boolean keyRolled = false;
+        for (int i = 0; i < identities.length; ++i) {
+            final RpiRotation identity = identities[i];
+            if (!identity.advanceTo(unixMillis)) continue;
+            keyRolled |= identity.isKeyRolled();
+            if (log != null) {
+                if (identity.isKeyRolled()) logKey(log, i);
+                logRpi(log, unixMillis, i);
+            }
+        }
+        final long slice = Math.max(0, unixMillis) / sliceMillis;
+        for (int s = 0; s < sets; ++s) {
+            final int identity = s + sets * (int) (slice % identitiesOn(s));
+            final int interval = identities[identity].getInterval();
+            changed[s] = identity != onAir[s] || interval != onAirInterval[s];
+            onAir[s] = identity;
+            onAirInterval[s] = interval;
+        }
+        return keyRolled;
+    }
+
+    /** Generates the keys of the next day of all identities, see RpiRotation.prepareNextDay() */
+    void prepareNextDays() {
+        for (RpiRotation identity : identities) identity.prepareNextDay();
+    }
+
+    /** Logs the configuration and the current key and RPI of each identity */
+    void logState(BroadcastLog log, long unixMillis) {
+        log.manifest(identities.length, sets, sliceMillis);
+        for (int i = 0; i < identities.length; ++i) {
+            logKey(log, i);
+            logRpi(log, unixMillis, i);
+        }
+    }
+
+    private void logKey(BroadcastLog log, int i) {
+        log.key(i, identities[i].getTemporaryExposureKey(),
+                identities[i].getRollingStartInterval(), RpiRotation.ROLLING_PERIOD);
+    }
+
+    private void logRpi(BroadcastLog log, long unixMillis, int i) {
+        log.broadcast(unixMillis, i, identities[i].getInterval(), identities[i].getRpi(), getAem(i));
+    }
+
+    /** @return the identity advertised on the set since the last advanceTo */
+    int identityOn(int set) {
+        return onAir[set];
+    }
+
+    /** @return true if the advertisement of the set changed at the last advanceTo */
+    boolean hasChanged(int set) {
+        return changed[set];
+    }
+
+    byte[] getRpi(int identity) {
+        return identities[identity].getRpi();
+    }
+
+    byte[] getAem(int identity) {
+        final int aem = identities[identity].getAem(metadata);
+        return new byte[] { (byte) (aem >>> 24), (byte) (aem >>> 16), (byte) (aem >>> 8), (byte) aem };
+    }
+
+    /** @return the unix time (ms) of the next change on any set after the given time */
+    long nextChangeMillis(long unixMillis) {
+        final long nextInterval = RpiRotation.nextIntervalMillis(unixMillis);
+        if (identities.length == sets) return nextInterval;
+        return Math.min(nextInterval, (Math.max(0, unixMillis) / sliceMillis + 1) * sliceMillis);
+    }
+}
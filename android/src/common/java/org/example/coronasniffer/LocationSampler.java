@@ -0,0 +1,98 @@
+package org.example.coronasniffer;
+
+import java.util.Locale;
+
+/**
+ * Decides how often and how accurately to request location fixes, from the BeaconStats
+ * snapshot after each batch: frequent, accurate fixes while new devices show up, the
+ * old balanced request while devices are around, and passive fixes (only those requested
+ * by other apps) when nobody is nearby. A pure policy, the requests are made by the caller.
+ *
+ * Also counts the fixes received against the sightings geotagged with a recent fix, for
+ * tuning the energy spent per geotagged contact. update() is called by the BeaconStats
+ * writer and onFix() by the location thread.
+ */
+class LocationSampler {
+    enum Priority { PASSIVE, LOW_POWER, BALANCED, HIGH_ACCURACY }
+
+    static final class Mode {
+        final String name;
+        final Priority priority;
+        final long intervalMillis;
+        final float smallestDisplacementMeters;
+
+        Mode(String name, Priority priority, long intervalMillis, float smallestDisplacementMeters) {
+            this.name = name;
+            this.priority = priority;
+            this.intervalMillis = intervalMillis;
+            this.smallestDisplacementMeters = smallestDisplacementMeters;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s (%s, %d ms, %.0f m)",
+                    name, priority, intervalMillis, smallestDisplacementMeters);
+        }
+    }
+
+    static final Mode IDLE = new Mode("idle", Priority.PASSIVE, 60 * 1000, 50);
+    static final Mode ACTIVE = new Mode("active", Priority.BALANCED, 30 * 1000, 30);
+    static final Mode BUSY = new Mode("busy", Priority.HIGH_ACCURACY, 5 * 1000, 5);
+
+    // stay busy for this long after the latest new device
+    private final long busyHoldMillis;
+
+    private Mode mode = ACTIVE;
+    private long lastArrivals = -1;
+    private long lastArrivalTime;
+
+    private volatile long fixes = 0;
+    private volatile long sightings = 0, geotaggedSightings = 0;
+
+    LocationSampler() {
+        this(60 * 1000);
+    }
+
+    LocationSampler(long busyHoldMillis) {
+        this.busyHoldMillis = busyHoldMillis;
+    }
+
+    /** @return true if the mode changed */
+    boolean update(BeaconStats.Snapshot snapshot) {
+        sightings = snapshot.sightings;
+        geotaggedSightings = snapshot.geotaggedSightings;
+        if (lastArrivals >= 0 && snapshot.arrivals > lastArrivals) lastArrivalTime = snapshot.time;
+        final boolean first = lastArrivals < 0;
+        lastArrivals = snapshot.arrivals;
+
+        final Mode previous = mode;
+        if (!first && snapshot.time - lastArrivalTime < busyHoldMillis) mode = BUSY;
+        else if (snapshot.nearbyDevices == 0) mode = IDLE;
+        else mode = ACTIVE;
+        return mode != previous;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /** Counts a received fix, from the location thread only */
+    void onFix() {
+        fixes++;
+    }
+
+    long getFixes() {
+        return fixes;
+    }
+
+    long getGeotaggedSightings() {
+        return geotaggedSightings;
+    }
+
+    @Override
+    public String toString() {
+        final long f = fixes, geotagged = geotaggedSightings, total = sightings;
+        return String.format(Locale.ROOT, "%s, %d fixes, %d/%d sightings geotagged (%.1f per fix)",
+                mode.name, f, geotagged, total, f > 0 ? geotagged / (double) f : 0.0);
+    }
+}
@@ -0,0 +1,135 @@
+package org.example.coronasniffer;
+
+import java.util.Arrays;
+
+/**
+ * Append-only track of the location fixes of a session, referenced by index. Each fix
+ * takes 20 bytes: the time (unix ms), the latitude and longitude as int deltas from the
+ * first fix (1e-7 degrees) and the accuracy in decimeters. The fixes no longer referenced
+ * can be discarded with trimBefore(), which keeps the indices of the others.
+ * Not thread-safe.
+ */
+class LocationTrack {
+    static final int NO_FIX = -1;
+
+    private static final double DEGREE_SCALE = 1e7;
+
+    private int originLatitude, originLongitude;
+
+    private long[] times = new long[64];
+    private int[] latitudes = new int[64];
+    private int[] longitudes = new int[64];
+    private int[] accuracies = new int[64];
+    private int size = 0;
+    // the index of the first fix kept in the arrays
+    private int first = 0;
+
+    /**
+     * Adds a fix. The fix times must not decrease (later fixes with an earlier time are
+     * stored with the time of the previous one).
+     * @return the index of the fix
+     */
+    int append(GeoPosition p) {
+        final int lat = (int) Math.round(p.latitude * DEGREE_SCALE);
+        final int lng = (int) Math.round(p.longitude * DEGREE_SCALE);
+        if (size == 0) {
+            originLatitude = lat;
+            originLongitude = lng;
+        }
+        final int n = size - first;
+        if (n == times.length) {
+            times = Arrays.copyOf(times, 2 * n);
+            latitudes = Arrays.copyOf(latitudes, 2 * n);
+            longitudes = Arrays.copyOf(longitudes, 2 * n);
+            accuracies = Arrays.copyOf(accuracies, 2 * n);
+        }
+        times[n] = n > 0 ? Math.max(times[n - 1], p.time) : p.time;
+        // wraps around for large differences, which undoes itself when decoding
+        latitudes[n] = lat - originLatitude;
+        longitudes[n] = lng - originLongitude;
+        accuracies[n] = Math.round(p.accuracy * 10);
+        return size++;
+    }
+
+    /** @return the number of fixes appended, including the discarded ones */
+    int size() {
+        return size;
+    }
+
+    /** @return the index of the first fix kept */
+    int first() {
+        return first;
+    }
+
+    /** Discards the fixes before the given one. The later fixes keep their indices */
+    void trimBefore(int fix) {
+        final int n = Math.min(fix, size) - first;
+        if (n <= 0) return;
+        final int kept = size - first - n;
+        System.arraycopy(times, n, times, 0, kept);
+        System.arraycopy(latitudes, n, latitudes, 0, kept);
+        System.arraycopy(longitudes, n, longitudes, 0, kept);
+        System.arraycopy(accuracies, n, accuracies, 0, kept);
+        first += n;
+    }
+
+    long time(int fix) {
+        return times[fix - first];
+    }
+
+    double latitude(int fix) {
+        return (originLatitude + latitudes[fix - first]) / DEGREE_SCALE;
+    }
+
+    double longitude(int fix) {
+        return (originLongitude + longitudes[fix - first]) / DEGREE_SCALE;
+    }
+
+    float accuracy(int fix) {
+        return accuracies[fix - first] / 10f;
+    }
+
+    /** @return the last fix kept at or before the time, or NO_FIX. O(log n) */
+    int fixAt(long time) {
+        int lo = first, hi = size - 1, found = NO_FIX;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (time(mid) <= time) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /** The position at any time, interpolated between the fixes around it */
+    void positionAt(long time, SightingRecord.Position out) {
+        positionAt(fixAt(time), time, out);
+    }
+
+    /**
+     * The position at the given time, linearly interpolated between the given fix (the
+     * latest one known at the time) and the next fix if there is one already. The
+     * accuracy is the worse of the two.
+     */
+    void positionAt(int fix, long time, SightingRecord.Position out) {
+        if (fix == NO_FIX) {
+            out.clear();
+            return;
+        }
+        final int next = fix + 1;
+        final long t0 = time(fix);
+        if (next == size || time <= t0 || time(next) <= t0) {
+            out.set(latitude(fix), longitude(fix), accuracy(fix));
+            return;
+        }
+        final double f = Math.min(1.0, (time - t0) / (double) (time(next) - t0));
+        final int lat0 = originLatitude + latitudes[fix - first], lng0 = originLongitude + longitudes[fix - first];
+        final int lat1 = originLatitude + latitudes[next - first], lng1 = originLongitude + longitudes[next - first];
+        out.set((lat0 + (lat1 - (double) lat0) * f) / DEGREE_SCALE,
+                (lng0 + (lng1 - (double) lng0) * f) / DEGREE_SCALE,
+                Math.max(accuracy(fix), accuracy(next)));
+    }
+}
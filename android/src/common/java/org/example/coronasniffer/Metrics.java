@@ -0,0 +1,263 @@
+package org.example.coronasniffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters, gauges and fixed-bucket histograms of the hot paths. Like the
+ * EventLog types, the metrics are static constants of the classes that record them,
+ * e.g.,
+ *
+ *     private static final Metrics.Histogram ADD_NANOS = new Metrics.Histogram("add_ns", NANOS);
+ *     ...
+ *     ADD_NANOS.record(System.nanoTime() - start);
+ *
+ * Recording is lock-free and does not allocate. A Reporter logs a compact snapshot of all
+ * the metrics periodically, and dump() formats them in full on demand.
+ */
+class Metrics {
+    private static final List<Metric> registry = new CopyOnWriteArrayList<>();
+
+    /** Bounds of 1-2-5 series buckets from min to max, e.g., 1, 2, 5, 10, 20 */
+    static long[] bounds125(long min, long max) {
+        final List<Long> bounds = new ArrayList<>();
+        for (long decade = min; decade <= max; decade *= 10) {
+            for (int step : new int[] { 1, 2, 5 }) {
+                if (decade * step <= max) bounds.add(decade * step);
+            }
+        }
+        final long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; ++i) result[i] = bounds.get(i);
+        return result;
+    }
+
+    abstract static class Metric {
+        final String name;
+
+        Metric(String name) {
+            for (Metric m : registry) {
+                if (m.name.equals(name)) throw new IllegalArgumentException("duplicate metric " + name);
+            }
+            this.name = name;
+            registry.add(this);
+        }
+
+        abstract void report(EventLog.Event event, Reporter reporter, double minutes);
+
+        abstract void dump(StringBuilder sb);
+    }
+
+    /** Monotonic count. The snapshots also have its rate since the previous one */
+    static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        void inc() {
+            value.incrementAndGet();
+        }
+
+        void add(long n) {
+            value.addAndGet(n);
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        @Override
+        void report(EventLog.Event event, Reporter reporter, double minutes) {
+            final long v = get();
+            final Long previous = reporter.previousCounts.put(this, v);
+            event.num(name, v);
+            if (minutes > 0) {
+                final long delta = v - (previous == null ? 0 : previous);
+                event.num(name + "_per_min", Math.round(10 * delta / minutes) / 10.0);
+            }
+        }
+
+        @Override
+        void dump(StringBuilder sb) {
+            sb.append(name).append(' ').append(get());
+        }
+    }
+
+    /** The latest value of a quantity */
+    static class Gauge extends Metric {
+        private volatile long value = 0;
+
+        Gauge(String name) {
+            super(name);
+        }
+
+        void set(long value) {
+            this.value = value;
+        }
+
+        long get() {
+            return value;
+        }
+
+        @Override
+        void report(EventLog.Event event, Reporter reporter, double minutes) {
+            event.num(name, get());
+        }
+
+        @Override
+        void dump(StringBuilder sb) {
+            sb.append(name).append(' ').append(get());
+        }
+    }
+
+    /**
+     * Distribution over fixed buckets: bucket i counts the values at most bounds[i] (and
+     * greater than the previous bound), the last bucket the values over all the bounds.
+     * The percentiles are the upper bounds of their buckets.
+     */
+    static class Histogram extends Metric {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        // reused by the reporter thread
+        private final StringBuilder summary = new StringBuilder();
+
+        /** @param bounds the increasing upper bounds of the buckets */
+        Histogram(String name, long[] bounds) {
+            super(name);
+            for (int i = 1; i < bounds.length; ++i) {
+                if (bounds[i] <= bounds[i - 1]) throw new IllegalArgumentException("bounds not increasing");
+            }
+            this.bounds = bounds.clone();
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            record(value, 1);
+        }
+
+        /** Records n occurrences of the value */
+        void record(long value, long n) {
+            if (n <= 0) return;
+            final int i = Arrays.binarySearch(bounds, value);
+            counts.addAndGet(i >= 0 ? i : -i - 1, n);
+            count.addAndGet(n);
+            sum.addAndGet(value * n);
+            for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get()) ;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMax() {
+            return count.get() == 0 ? 0 : max.get();
+        }
+
+        double getMean() {
+            final long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        long getBucketCount(int bucket) {
+            return counts.get(bucket);
+        }
+
+        /** @return the upper bound of the bucket of the percentile, or the maximum if over the bounds */
+        long percentile(int percent) {
+            final long n = count.get();
+            if (n == 0) return 0;
+            final long rank = Math.max(1, (n * percent + 99) / 100);
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; ++i) {
+                cumulative += counts.get(i);
+                if (cumulative >= rank) return Math.min(bounds[i], getMax());
+            }
+            return getMax();
+        }
+
+        @Override
+        void report(EventLog.Event event, Reporter reporter, double minutes) {
+            summary.setLength(0);
+            summary.append(getCount()).append('/').append(percentile(50)).append('/')
+                    .append(percentile(99)).append('/').append(getMax());
+            event.str(name, summary);
+        }
+
+        @Override
+        void dump(StringBuilder sb) {
+            sb.append(name).append(" n=").append(getCount()).append(" mean=")
+                    .append(Math.round(getMean() * 10) / 10.0).append(" max=").append(getMax());
+            for (int i = 0; i <= bounds.length; ++i) {
+                final long c = counts.get(i);
+                if (c == 0) continue;
+                if (i < bounds.length) sb.append(" <=").append(bounds[i]);
+                else sb.append(" >").append(bounds[bounds.length - 1]);
+                sb.append(':').append(c);
+            }
+        }
+    }
+
+    /**
+     * Logs the snapshot of all the metrics as a "metrics" event at most every
+     * intervalMillis, with the histograms as count/p50/p99/max
+     */
+    static class Reporter {
+        private static final EventLog.Type METRICS_EVENT =
+                new EventLog.Type(Metrics.class.getSimpleName(), "metrics", EventLog.INFO, 1);
+
+        private final Clock clock;
+        private final long intervalMillis;
+        private final Map<Counter, Long> previousCounts = new IdentityHashMap<>();
+        private long lastReport;
+
+        Reporter(Clock clock, long intervalMillis) {
+            this.clock = clock;
+            this.intervalMillis = intervalMillis;
+            this.lastReport = clock.currentTimeMillis();
+            for (Metric m : registry) {
+                if (m instanceof Counter) previousCounts.put((Counter) m, ((Counter) m).get());
+            }
+        }
+
+        /** @return true if the interval had elapsed and a snapshot was logged */
+        boolean maybeReport() {
+            final long now = clock.currentTimeMillis();
+            if (now - lastReport < intervalMillis) return false;
+            report(now);
+            return true;
+        }
+
+        void report() {
+            report(clock.currentTimeMillis());
+        }
+
+        private void report(long now) {
+            final double minutes = (now - lastReport) / 60000.0;
+            lastReport = now;
+            final EventLog.Event event = EventLog.begin(METRICS_EVENT);
+            if (event == null) return;
+            for (Metric m : registry) m.report(event, this, minutes);
+            event.emit();
+        }
+    }
+
+    /** @return all the metrics in full, one per line */
+    static String dump() {
+        final StringBuilder sb = new StringBuilder();
+        for (Metric m : registry) {
+            m.dump(sb);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package org.example.coronasniffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Bloom filter of RPIs. The bit indices are derived with double hashing (h1 + i * h2)
+ * from the two halves of the RPI, mixed with the SplitMix64 finalizer. RPIs are AES
+ * outputs and thus random anyway, but structured ones, e.g. in tests, must work too.
+ * Not thread-safe.
+ *
+ * The file format is MAGIC | number of hashes (i32) | number of bits (i32) | bits (i64...)
+ */
+class RpiBloomFilter {
+    static final int MAGIC = 0x43524231; // "CRB1"
+
+    private final long[] words;
+    private final int bitCount;
+    private final int hashes;
+
+    RpiBloomFilter(int bitCount, int hashes) {
+        if (bitCount < 64 || hashes < 1) throw new IllegalArgumentException("invalid filter size");
+        this.words = new long[(bitCount + 63) >>> 6];
+        this.bitCount = bitCount;
+        this.hashes = hashes;
+    }
+
+    /** The optimal filter for the expected number of RPIs and false positive rate */
+    static RpiBloomFilter create(int expectedRpis, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("invalid false positive rate " + falsePositiveRate);
+        }
+        final double ln2 = Math.log(2);
+        final double bits = Math.ceil(-Math.max(1, expectedRpis) * Math.log(falsePositiveRate) / (ln2 * ln2));
+        final int bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        final int hashes = (int) Math.max(1, Math.round(bitCount / (double) Math.max(1, expectedRpis) * ln2));
+        return new RpiBloomFilter(bitCount, hashes);
+    }
+
+    // maps the upper 32 bits of the hash to [0, bitCount) without a division
+    private int index(long hash) {
+        return (int) (((hash >>> 32) * bitCount) >>> 32);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    void put(long rpiHigh, long rpiLow) {
+        long hash = mix(rpiHigh), step = mix(rpiLow);
+        for (int i = 0; i < hashes; ++i) {
+            final int bit = index(hash);
+            words[bit >>> 6] |= 1L << bit;
+            hash += step;
+        }
+    }
+
+    boolean mightContain(long rpiHigh, long rpiLow) {
+        long hash = mix(rpiHigh), step = mix(rpiLow);
+        for (int i = 0; i < hashes; ++i) {
+            final int bit = index(hash);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) return false;
+            hash += step;
+        }
+        return true;
+    }
+
+    boolean mightContain(byte[] rpis, int offset) {
+        return mightContain(RpiTable.high(rpis, offset), RpiTable.low(rpis, offset));
+    }
+
+    /** @return the expected false positive rate, estimated from the set bits */
+    double falsePositiveRate() {
+        long set = 0;
+        for (long w : words) set += Long.bitCount(w);
+        return Math.pow(set / (double) bitCount, hashes);
+    }
+
+    int sizeBytes() {
+        return words.length * 8;
+    }
+
+    int getBitCount() {
+        return bitCount;
+    }
+
+    int getHashCount() {
+        return hashes;
+    }
+
+    /** Writes the filter to a temporary file first, which replaces the file atomically */
+    void write(File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(hashes);
+            out.writeInt(bitCount);
+            for (long w : words) out.writeLong(w);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("failed to rename " + tmp + " to " + file);
+    }
+
+    static RpiBloomFilter read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not an RPI filter");
+            final int hashes = in.readInt(), bitCount = in.readInt();
+            // before allocating the words for a corrupted bit count
+            if (file.length() != 12 + 8 * (((long) bitCount + 63) >> 6)) {
+                throw new IOException(file + ": " + bitCount + " bits do not match the file size");
+            }
+            final RpiBloomFilter filter;
+            try {
+                filter = new RpiBloomFilter(bitCount, hashes);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": " + e.getMessage());
+            }
+            for (int i = 0; i < filter.words.length; ++i) filter.words[i] = in.readLong();
+            return filter;
+        }
+    }
+}
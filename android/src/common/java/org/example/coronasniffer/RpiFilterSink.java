@@ -0,0 +1,176 @@
+package org.example.coronasniffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Adds the RPIs of the logged sightings to a Bloom filter per EN day (144 EN intervals,
+ * the lifetime of a TEK) before passing them on to another sink. The filters are saved
+ * as DIR/rpis-DAY.bloom at most every saveIntervalMillis and on close, and the existing
+ * ones are extended after a restart. A matcher can then check the RPIs of a diagnosis
+ * key against the filter of its day and only read the full logs for the hits.
+ *
+ * An RPI is added to every day within MATCH_TOLERANCE_SECONDS of its sighting, since the
+ * clocks of the broadcasting phone and the sniffer may differ.
+ *
+ * The RPIs added after the last save are lost if the process is killed, and a matcher
+ * would miss them. If the records go to a SightingJournal, see replayJournal().
+ */
+class RpiFilterSink implements AsyncSightingLog.Sink {
+    // same as the GAEN matching tolerance
+    static final int MATCH_TOLERANCE_SECONDS = 2 * 60 * 60;
+    static final int RETENTION_DAYS = 14;
+    // about 100 kB per day
+    static final int DEFAULT_EXPECTED_RPIS_PER_DAY = 80000;
+    static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final EventLog.Type LOAD_ERROR_EVENT =
+            new EventLog.Type(RpiFilterSink.class.getSimpleName(), "rpi_filter_load_error", EventLog.WARN, 1);
+
+    private final AsyncSightingLog.Sink next;
+    private final File dir;
+    private final int expectedRpisPerDay;
+    private final double falsePositiveRate;
+    private final Clock clock;
+    private final long saveIntervalMillis;
+
+    private final TreeMap<Integer, RpiBloomFilter> filters = new TreeMap<>();
+    private final Set<Integer> dirty = new TreeSet<>();
+    private long lastSave;
+    private File journal;
+    private SightingJournal.Mark mark;
+
+    RpiFilterSink(AsyncSightingLog.Sink next, File dir, int expectedRpisPerDay, double falsePositiveRate,
+                  Clock clock, long saveIntervalMillis) {
+        this.next = next;
+        this.dir = dir;
+        this.expectedRpisPerDay = expectedRpisPerDay;
+        this.falsePositiveRate = falsePositiveRate;
+        this.clock = clock;
+        this.saveIntervalMillis = saveIntervalMillis;
+        lastSave = clock.currentTimeMillis();
+    }
+
+    static int enDay(long unixSeconds) {
+        return BeaconCrypto.AppleGoogleEN.enIntervalNumber(unixSeconds) / RpiRotation.ROLLING_PERIOD;
+    }
+
+    static File file(File dir, int enDay) {
+        return new File(dir, "rpis-" + enDay + ".bloom");
+    }
+
+    /** @return the filter of the EN day, or null if there is none */
+    static RpiBloomFilter load(File dir, int enDay) throws IOException {
+        final File file = file(dir, enDay);
+        return file.exists() ? RpiBloomFilter.read(file) : null;
+    }
+
+    /**
+     * Adds the records the journal got after the last save, and keeps the journal offset
+     * of every later save in DIR/journal.mark. The next sink must write the records to
+     * the journal. Call before writing.
+     * @return the number of records replayed
+     */
+    int replayJournal(File journal) throws IOException {
+        this.journal = journal;
+        mark = new SightingJournal.Mark(new File(dir, "journal.mark"));
+        if (!mark.exists()) {
+            // the filters are complete up to now, or there are none yet
+            if (!dir.exists() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+            mark.save(journal.length());
+            return 0;
+        }
+        final SightingRecord r = new SightingRecord();
+        int n = 0;
+        try (SightingJournal.Reader reader = mark.replay(journal)) {
+            while (reader != null && reader.next(r)) {
+                add(r);
+                n++;
+            }
+        }
+        if (n > 0) save();
+        return n;
+    }
+
+    @Override
+    public void write(SightingRecord r) throws IOException {
+        next.write(r);
+        add(r);
+    }
+
+    private void add(SightingRecord r) {
+        final int last = enDay(r.lastSeen + MATCH_TOLERANCE_SECONDS);
+        for (int day = enDay(r.firstSeen - MATCH_TOLERANCE_SECONDS); day <= last; ++day) {
+            filter(day).put(r.rpiHigh, r.rpiLow);
+            dirty.add(day);
+        }
+    }
+
+    private RpiBloomFilter filter(int day) {
+        RpiBloomFilter filter = filters.get(day);
+        if (filter != null) return filter;
+        // saved before a restart or an earlier eviction, keeping the size it was created with
+        try {
+            filter = load(dir, day);
+        } catch (IOException e) {
+            // e.g., the file was torn, and is replaced on the next save
+            final EventLog.Event event = EventLog.begin(LOAD_ERROR_EVENT);
+            if (event != null) event.num("day", day).str("error", e.toString()).emit();
+        }
+        if (filter == null) filter = RpiBloomFilter.create(expectedRpisPerDay, falsePositiveRate);
+        filters.put(day, filter);
+        return filter;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        next.flush();
+        final long now = clock.currentTimeMillis();
+        if (now - lastSave < saveIntervalMillis) return;
+        lastSave = now;
+        save();
+    }
+
+    /** Call after flushing the next sink, so that the journal has all the records added */
+    private void save() throws IOException {
+        if (!dirty.isEmpty() && !dir.exists() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+        final boolean saved = !dirty.isEmpty();
+        for (Integer day : dirty) filters.get(day).write(file(dir, day));
+        dirty.clear();
+        if (saved && mark != null) mark.save(journal.length());
+        if (filters.isEmpty()) return;
+
+        // the sightings arrive roughly in time order, so only the latest days get more RPIs
+        final int newest = filters.lastKey();
+        for (Iterator<Map.Entry<Integer, RpiBloomFilter>> it = filters.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getKey() < newest - 1) it.remove();
+        }
+        final File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            final String name = f.getName();
+            if (!name.startsWith("rpis-") || !name.endsWith(".bloom")) continue;
+            try {
+                final int day = Integer.parseInt(name.substring(5, name.length() - 6));
+                if (day <= newest - RETENTION_DAYS && !f.delete()) throw new IOException("failed to delete " + f);
+            } catch (NumberFormatException e) {
+                // not ours
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            next.flush();
+            save();
+        } finally {
+            next.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.example.coronasniffer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.example.coronasniffer.BeaconCrypto.AppleGoogleEN.EN_INTERVAL_SECONDS;
+import static org.example.coronasniffer.BeaconCrypto.AppleGoogleEN.KEY_LENGTH_BYTES;
+import static org.example.coronasniffer.BeaconCrypto.AppleGoogleEN.enIntervalNumber;
+
+/**
+ * The changing identity of a simulated EN device: a random TEK per EN day (rolling period
+ * 144, aligned like GAEN) and its RPIs. The RPIs of a whole day are derived when its key
+ * is generated. The following day's are derived ahead with prepareNextDay(), so that
+ * switching to the next EN interval, even across a day boundary, costs no crypto.
+ * Not thread-safe.
+ */
+class RpiRotation {
+    static final int ROLLING_PERIOD = 144;
+
+    /** A TEK and all its RPIs */
+    private static class Day {
+        final int rollingStartInterval;
+        final byte[] tek = new byte[KEY_LENGTH_BYTES];
+        final byte[] rpis = new byte[ROLLING_PERIOD * KEY_LENGTH_BYTES];
+
+        Day(int rollingStartInterval) {
+            this.rollingStartInterval = rollingStartInterval;
+        }
+    }
+
+    private final Random keyRandom;
+    private final BeaconCrypto.AppleGoogleEN.RpiGenerator generator =
+            new BeaconCrypto.AppleGoogleEN.RpiGenerator();
+    private final BeaconCrypto.AppleGoogleEN.AemCipher aemCipher = new BeaconCrypto.AppleGoogleEN.AemCipher();
+    private Day aemDay = null;
+
+    private Day today = null, tomorrow = null;
+    private int interval = -1;
+    private boolean keyRolled = false;
+
+    /** @param keyRandom source of the TEKs, a SecureRandom unless testing */
+    RpiRotation(Random keyRandom) {
+        this.keyRandom = keyRandom;
+    }
+
+    static int rollingStartInterval(int enInterval) {
+        return enInterval - enInterval % ROLLING_PERIOD;
+    }
+
+    /** @return the unix time (ms) at which the EN interval after the given time starts */
+    static long nextIntervalMillis(long unixMillis) {
+        return (enIntervalNumber(unixMillis / 1000) + 1L) * EN_INTERVAL_SECONDS * 1000;
+    }
+
+    /**
+     * Moves to the EN interval of the given time, rolling the key if it is on another day.
+     * The key of a day not prepared with prepareNextDay() is generated here.
+     * @return true if the interval (and thus the RPI) changed
+     */
+    boolean advanceTo(long unixMillis) {
+        final int newInterval = enIntervalNumber(unixMillis / 1000);
+        if (newInterval == interval) return false;
+        final int start = rollingStartInterval(newInterval);
+        keyRolled = today == null || today.rollingStartInterval != start;
+        if (keyRolled) {
+            today = tomorrow != null && tomorrow.rollingStartInterval == start ? tomorrow : newDay(start);
+        }
+        interval = newInterval;
+        return true;
+    }
+
+    /**
+     * Generates the key and RPIs of the day after the current one, if not done yet. Call
+     * after the key has rolled, outside the time-critical path of the swap.
+     * @return true if the day was generated
+     */
+    boolean prepareNextDay() {
+        final int start = today.rollingStartInterval + ROLLING_PERIOD;
+        if (tomorrow != null && tomorrow.rollingStartInterval == start) return false;
+        tomorrow = newDay(start);
+        return true;
+    }
+
+    /** @return true if the last interval change also rolled the key */
+    boolean isKeyRolled() {
+        return keyRolled;
+    }
+
+    private Day newDay(int rollingStartInterval) {
+        final Day day = new Day(rollingStartInterval);
+        keyRandom.nextBytes(day.tek);
+        generator.init(day.tek).rollingProximityIDs(rollingStartInterval, ROLLING_PERIOD, day.rpis, 0);
+        return day;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    int getRollingStartInterval() {
+        return today.rollingStartInterval;
+    }
+
+    byte[] getTemporaryExposureKey() {
+        return today.tek.clone();
+    }
+
+    byte[] getRpi() {
+        final int offset = (interval - today.rollingStartInterval) * KEY_LENGTH_BYTES;
+        return Arrays.copyOfRange(today.rpis, offset, offset + KEY_LENGTH_BYTES);
+    }
+
+    /** @return the AEM of the metadata (see BeaconCrypto.AppleGoogleEN.metadata) for the current RPI */
+    int getAem(int metadata) {
+        if (aemDay != today) {
+            aemCipher.init(today.tek);
+            aemDay = today;
+        }
+        return aemCipher.apply(today.rpis, (interval - today.rollingStartInterval) * KEY_LENGTH_BYTES, metadata);
+    }
+}
@@ -0,0 +1,141 @@
+package org.example.coronasniffer;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from 128-bit identifiers (RPIs, EphIDs) to non-negative
+ * ints. The identifiers are stored as two longs and probed linearly, so lookups do not
+ * allocate. Not thread-safe for writes, but concurrent reads of a filled table are OK.
+ */
+class RpiTable {
+    static final int ABSENT = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys; // high and low halves interleaved
+    private int[] values; // ABSENT marks an empty slot
+    private int size = 0;
+
+    RpiTable() {
+        this(MIN_CAPACITY);
+    }
+
+    RpiTable(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long high, long low) {
+        final int mask = values.length - 1;
+        for (int i = slot(high, low, mask); ; i = (i + 1) & mask) {
+            if (values[i] == ABSENT) return ABSENT;
+            if (keys[2 * i] == high && keys[2 * i + 1] == low) return values[i];
+        }
+    }
+
+    /** Look up the 16 bytes at bytes[offset ...] */
+    int get(byte[] bytes, int offset) {
+        return get(high(bytes, offset), low(bytes, offset));
+    }
+
+    /** @return the previous value or ABSENT */
+    int put(long high, long low, int value) {
+        if (value < 0) throw new IllegalArgumentException("negative value");
+        if (2 * (size + 1) > values.length) rehash(values.length * 2);
+        final int mask = values.length - 1;
+        for (int i = slot(high, low, mask); ; i = (i + 1) & mask) {
+            if (values[i] == ABSENT) {
+                keys[2 * i] = high;
+                keys[2 * i + 1] = low;
+                values[i] = value;
+                size++;
+                return ABSENT;
+            }
+            if (keys[2 * i] == high && keys[2 * i + 1] == low) {
+                final int prev = values[i];
+                values[i] = value;
+                return prev;
+            }
+        }
+    }
+
+    /** @return the removed value or ABSENT */
+    int remove(long high, long low) {
+        final int mask = values.length - 1;
+        int i = slot(high, low, mask);
+        while (true) {
+            if (values[i] == ABSENT) return ABSENT;
+            if (keys[2 * i] == high && keys[2 * i + 1] == low) break;
+            i = (i + 1) & mask;
+        }
+        final int removed = values[i];
+
+        // backward-shift deletion: move the following entries of the probe sequence
+        // to the freed slot, unless they are already at or after their home slot
+        for (int j = (i + 1) & mask; values[j] != ABSENT; j = (j + 1) & mask) {
+            final int home = slot(keys[2 * j], keys[2 * j + 1], mask);
+            final boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (stays) continue;
+            keys[2 * i] = keys[2 * j];
+            keys[2 * i + 1] = keys[2 * j + 1];
+            values[i] = values[j];
+            i = j;
+        }
+        values[i] = ABSENT;
+        size--;
+        return removed;
+    }
+
+    void clear() {
+        Arrays.fill(values, ABSENT);
+        size = 0;
+    }
+
+    int put(byte[] bytes, int offset, int value) {
+        return put(high(bytes, offset), low(bytes, offset), value);
+    }
+
+    static long high(byte[] bytes, int offset) {
+        return readLong(bytes, offset);
+    }
+
+    static long low(byte[] bytes, int offset) {
+        return readLong(bytes, offset + 8);
+    }
+
+    static long readLong(byte[] bytes, int offset) {
+        long r = 0;
+        for (int i = 0; i < 8; ++i) r = (r << 8) | (bytes[offset + i] & 0xff);
+        return r;
+    }
+
+    private static int slot(long high, long low, int mask) {
+        // RPIs are AES outputs and therefore already well mixed, but cheap to mix anyway
+        long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) capacity *= 2;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[2 * capacity];
+        values = new int[capacity];
+        Arrays.fill(values, ABSENT);
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldValues.length; ++i) {
+            if (oldValues[i] != ABSENT) put(oldKeys[2 * i], oldKeys[2 * i + 1], oldValues[i]);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.example.coronasniffer;
+
+import java.util.Arrays;
+
+/**
+ * Extracts the GAEN (0xFD6F) and DP-3T (0xFD68) identifiers from raw BLE advertisements,
+ * i.e., the AD structures of ScanRecord.getBytes(), in place and without allocating.
+ * Each AD structure is
+ *
+ *     length (u8, excluding itself) | AD type (u8) | data
+ *
+ * and the identifiers are in "Service Data - 16-bit UUID" structures (type 0x16), whose
+ * data starts with the little-endian service UUID. The GAEN service data is the RPI and
+ * the AEM (see BeaconCrypto.AppleGoogleEN.buildPayload), the DP-3T one the EphID.
+ */
+class ScanRecordDecoder {
+    static final int AD_TYPE_SERVICE_DATA_16 = 0x16;
+
+    // protocols
+    static final int NONE = 0, GAEN = 1, DP3T = 2;
+
+    private static final int GAEN_DATA_BYTES =
+            BeaconCrypto.AppleGoogleEN.KEY_LENGTH_BYTES + BeaconCrypto.AppleGoogleEN.AEM_BYTES;
+
+    /** Reusable holder of a decoded identifier, RPI or EphID as big-endian halves */
+    static class Key {
+        int protocol = NONE;
+        long high, low;
+        // zero for DP-3T
+        int aem;
+    }
+
+    /**
+     * Decodes the first GAEN or DP-3T identifier in record[offset ... offset + length).
+     * Malformed and truncated structures end the decoding.
+     *
+     * @return the protocol of the identifier, which is stored to out, or NONE
+     */
+    static int decode(byte[] record, int offset, int length, Key out) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final int n = record[i] & 0xff;
+            // zero-length structures pad the rest of the record
+            if (n == 0 || i + 1 + n > end) break;
+            final int type = record[i + 1] & 0xff;
+            if (type == AD_TYPE_SERVICE_DATA_16 && n >= 3) {
+                final int uuid = (record[i + 2] & 0xff) | (record[i + 3] & 0xff) << 8;
+                final int data = i + 4, dataBytes = n - 3;
+                if (uuid == BeaconCrypto.AppleGoogleEN.SERVICE_UUID_16 && dataBytes == GAEN_DATA_BYTES) {
+                    return set(out, GAEN, record, data,
+                            readInt(record, data + BeaconCrypto.AppleGoogleEN.KEY_LENGTH_BYTES));
+                }
+                if (uuid == BeaconCrypto.DP3T.SERVICE_UUID_16 && dataBytes == BeaconCrypto.DP3T.KEY_LENGTH_BYTES) {
+                    return set(out, DP3T, record, data, 0);
+                }
+            }
+            i += 1 + n;
+        }
+        out.protocol = NONE;
+        return NONE;
+    }
+
+    static int decode(byte[] record, Key out) {
+        return decode(record, 0, record.length, out);
+    }
+
+    private static int set(Key out, int protocol, byte[] record, int offset, int aem) {
+        out.protocol = protocol;
+        out.high = RpiTable.high(record, offset);
+        out.low = RpiTable.low(record, offset);
+        out.aem = aem;
+        return protocol;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * The distinct identifiers received during one scan cycle, with the latest and the
+     * mean RSSI of each. Grows as needed, but does not allocate once large enough.
+     */
+    static class Batch {
+        private final RpiTable index = new RpiTable();
+        private long[] keys = new long[2 * 16]; // high and low halves interleaved
+        private int[] protocols = new int[16];
+        private int[] aems = new int[16];
+        private int[] rssis = new int[16];
+        private int[] counts = new int[16];
+        private long[] rssiSums = new long[16];
+        private int size = 0;
+
+        void add(Key key, int rssi) {
+            int i = index.get(key.high, key.low);
+            if (i == RpiTable.ABSENT) {
+                if (size == protocols.length) grow();
+                i = size++;
+                index.put(key.high, key.low, i);
+                keys[2 * i] = key.high;
+                keys[2 * i + 1] = key.low;
+                protocols[i] = key.protocol;
+                aems[i] = key.aem;
+                counts[i] = 0;
+                rssiSums[i] = 0;
+            }
+            rssis[i] = rssi;
+            counts[i]++;
+            rssiSums[i] += rssi;
+        }
+
+        private void grow() {
+            final int capacity = 2 * protocols.length;
+            keys = Arrays.copyOf(keys, 2 * capacity);
+            protocols = Arrays.copyOf(protocols, capacity);
+            aems = Arrays.copyOf(aems, capacity);
+            rssis = Arrays.copyOf(rssis, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            rssiSums = Arrays.copyOf(rssiSums, capacity);
+        }
+
+        void clear() {
+            if (size == 0) return;
+            index.clear();
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getProtocol(int i) {
+            return protocols[i];
+        }
+
+        long getHigh(int i) {
+            return keys[2 * i];
+        }
+
+        long getLow(int i) {
+            return keys[2 * i + 1];
+        }
+
+        int getAem(int i) {
+            return aems[i];
+        }
+
+        /** @return the RSSI of the latest advertisement */
+        int getRssi(int i) {
+            return rssis[i];
+        }
+
+        /** @return the mean RSSI of the advertisements in this batch */
+        double getMeanRssi(int i) {
+            return (double) rssiSums[i] / counts[i];
+        }
+
+        /** @return the number of advertisements in this batch */
+        int getCount(int i) {
+            return counts[i];
+        }
+    }
+
+    /**
+     * Collects the decoded advertisements of a scanner thread into batches taken by a
+     * single consumer thread (the range notifier feeding BeaconStats). Two batches are
+     * swapped, so the consumer does not hold the lock while processing a batch.
+     */
+    static class Collector {
+        private final Key key = new Key();
+        private Batch filling = new Batch(), taken = new Batch();
+
+        /** From the scanner thread. @return the protocol of the advertisement, or NONE */
+        synchronized int onScanRecord(byte[] record, int rssi) {
+            final int protocol = decode(record, key);
+            if (protocol != NONE) filling.add(key, rssi);
+            return protocol;
+        }
+
+        /** From the consumer thread: the identifiers since the previous call, valid until the next one */
+        Batch takeBatch() {
+            taken.clear();
+            synchronized (this) {
+                final Batch b = filling;
+                filling = taken;
+                taken = b;
+            }
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.example.coronasniffer;
+
+/**
+ * Decides the BLE scan duty cycle: the scan period is the length of a ranging batch and
+ * the between-scan period the pause after it. The implementations are pure policies, fed
+ * with the BeaconStats snapshot after each batch; applying the periods is up to the caller.
+ */
+interface ScanScheduler {
+    long DEFAULT_SCAN_PERIOD_MILLIS = 1100;
+
+    /** @return true if the periods changed */
+    boolean update(BeaconStats.Snapshot snapshot);
+
+    long getScanPeriodMillis();
+
+    long getBetweenScanPeriodMillis();
+
+    /** Scans all the time */
+    class Continuous implements ScanScheduler {
+        @Override
+        public boolean update(BeaconStats.Snapshot snapshot) {
+            return false;
+        }
+
+        @Override
+        public long getScanPeriodMillis() {
+            return DEFAULT_SCAN_PERIOD_MILLIS;
+        }
+
+        @Override
+        public long getBetweenScanPeriodMillis() {
+            return 0;
+        }
+    }
+
+    /**
+     * Scans continuously while new RPIs show up. After quietMillis without any arrivals or
+     * departures of RPIs, the pause between the scans is doubled, from minBetweenMillis up
+     * to maxBetweenMillis. A departure resets the quiet time, since the crowd is changing,
+     * and an arrival returns to continuous scanning. An RPI is broadcast for at least
+     * 10 minutes, so the maximum pause should stay well below that.
+     */
+    class Adaptive implements ScanScheduler {
+        private final long scanPeriodMillis, quietMillis, minBetweenMillis, maxBetweenMillis;
+
+        private long lastArrivals = -1, lastDepartures = -1;
+        private long quietSince;
+        private long betweenMillis = 0;
+
+        Adaptive() {
+            this(DEFAULT_SCAN_PERIOD_MILLIS, 60 * 1000, 2000, 30 * 1000);
+        }
+
+        Adaptive(long scanPeriodMillis, long quietMillis, long minBetweenMillis, long maxBetweenMillis) {
+            this.scanPeriodMillis = scanPeriodMillis;
+            this.quietMillis = quietMillis;
+            this.minBetweenMillis = minBetweenMillis;
+            this.maxBetweenMillis = maxBetweenMillis;
+        }
+
+        @Override
+        public boolean update(BeaconStats.Snapshot snapshot) {
+            final long now = snapshot.time;
+            if (lastArrivals < 0) {
+                lastArrivals = snapshot.arrivals;
+                lastDepartures = snapshot.departures;
+                quietSince = now;
+                return false;
+            }
+            final long arrivals = snapshot.arrivals - lastArrivals;
+            final long departures = snapshot.departures - lastDepartures;
+            lastArrivals = snapshot.arrivals;
+            lastDepartures = snapshot.departures;
+
+            final long previous = betweenMillis;
+            if (arrivals > 0) {
+                betweenMillis = 0;
+                quietSince = now;
+            } else if (departures > 0) {
+                quietSince = now;
+            } else if (now - quietSince >= quietMillis) {
+                betweenMillis = betweenMillis == 0 ? minBetweenMillis : Math.min(maxBetweenMillis, 2 * betweenMillis);
+                quietSince = now;
+            }
+            return betweenMillis != previous;
+        }
+
+        @Override
+        public long getScanPeriodMillis() {
+            return scanPeriodMillis;
+        }
+
+        @Override
+        public long getBetweenScanPeriodMillis() {
+            return betweenMillis;
+        }
+    }
+}
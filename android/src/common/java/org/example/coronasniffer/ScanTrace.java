@@ -0,0 +1,156 @@
+package org.example.coronasniffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Raw ranging batches and location fixes, as fed to BeaconStats, for replaying a
+ * recorded session faster than real time. The file starts with a 4-byte header (MAGIC)
+ * followed by records, each starting with a one-byte tag
+ *
+ *     'B' batch:    time (i64, unix ms) | number of beacons that follow (i32)
+ *     'R' beacon:   rpi (16 bytes) | aem (i32) | rssi (i16, dBm) | mean rssi (f64, dBm)
+ *     'L' location: time (i64, unix ms) | latitude, longitude (f64, deg) | accuracy (f32, m)
+ *
+ * with all numbers big-endian. A truncated record ends the readable part of the file.
+ */
+class ScanTrace {
+    static final int MAGIC = 0x43535431; // "CST1"
+
+    private static final int BATCH = 'B';
+    private static final int BEACON = 'R';
+    private static final int LOCATION = 'L';
+
+    /** Receives the contents of a trace in order. Each batch is followed by its beacons */
+    interface Listener {
+        void onBatch(long time, int size);
+        void onBeacon(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi);
+        void onLocation(GeoPosition location);
+    }
+
+    /**
+     * Appends to a trace file. Write errors do not throw, since the trace is only a
+     * diagnostic, but stop the writer and are available from getError(). Thread-safe, as
+     * the locations and the scans are recorded on different threads.
+     */
+    static class Writer implements Listener, Closeable {
+        private final DataOutputStream out;
+        private IOException error = null;
+
+        Writer(File file) throws IOException {
+            final boolean empty = file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+            if (empty) out.writeInt(MAGIC);
+        }
+
+        @Override
+        public synchronized void onBatch(long time, int size) {
+            if (error != null) return;
+            try {
+                out.writeByte(BATCH);
+                out.writeLong(time);
+                out.writeInt(size);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public synchronized void onBeacon(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+            if (error != null) return;
+            try {
+                out.writeByte(BEACON);
+                out.writeLong(rpiHigh);
+                out.writeLong(rpiLow);
+                out.writeInt(aem);
+                out.writeShort(rssi);
+                out.writeDouble(meanRssi);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public synchronized void onLocation(GeoPosition location) {
+            if (error != null) return;
+            try {
+                out.writeByte(LOCATION);
+                out.writeLong(location.time);
+                out.writeDouble(location.latitude);
+                out.writeDouble(location.longitude);
+                out.writeFloat(location.accuracy);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        synchronized IOException getError() {
+            return error;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+        private boolean corrupted = false;
+
+        Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC) throw new IOException(file + " is not a scan trace");
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** Passes the next record to the listener. @return false at the end of the trace */
+        boolean next(Listener listener) throws IOException {
+            final int tag = in.read();
+            if (tag < 0) return false;
+            try {
+                switch (tag) {
+                    case BATCH:
+                        listener.onBatch(in.readLong(), in.readInt());
+                        return true;
+                    case BEACON:
+                        listener.onBeacon(in.readLong(), in.readLong(), in.readInt(),
+                                in.readShort(), in.readDouble());
+                        return true;
+                    case LOCATION:
+                        final long time = in.readLong();
+                        final double latitude = in.readDouble(), longitude = in.readDouble();
+                        listener.onLocation(new GeoPosition(latitude, longitude, in.readFloat(), time));
+                        return true;
+                    default:
+                        corrupted = true;
+                        return false;
+                }
+            } catch (EOFException e) {
+                corrupted = true;
+                return false;
+            }
+        }
+
+        boolean isCorrupted() {
+            return corrupted;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
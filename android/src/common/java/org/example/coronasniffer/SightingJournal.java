@@ -0,0 +1,381 @@
+package org.example.coronasniffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary log of SightingRecords, an alternative to logging the entries
+ * as JSON lines. The file starts with a 4-byte header (MAGIC) and each record is
+ * framed as
+ *
+ *     u16 payload length | payload (RECORD_BYTES) | u32 CRC32 of the payload
+ *
+ * with all numbers big-endian. A frame that is truncated or fails the CRC check
+ * (e.g., the process was killed mid-write) ends the readable part of the file.
+ */
+class SightingJournal {
+    static final int MAGIC = 0x43534a31; // "CSJ1"
+    static final int RECORD_BYTES = 61;
+    // records written by older versions, without the RSSI percentiles and presence
+    static final int V1_RECORD_BYTES = 56;
+    static final int FRAME_BYTES = 2 + RECORD_BYTES + 4;
+
+    private static final double DEGREE_SCALE = 1e7;
+    private static final int NO_ACCURACY = -1;
+
+    /*
+     * Payload layout:
+     *  0 rpi (16 bytes) | 16 aem (4) | 20 first seen (4, unix s) | 24 last seen (4, unix s)
+     * 28 nScans (4) | 32 maxRssi (2, dBm) | 34 meanRssi (2, 0.01 dBm)
+     * 36 first latitude, longitude (4 + 4, 1e-7 deg), accuracy (2, m, -1 if no location)
+     * 46 last latitude, longitude, accuracy (as above)
+     * 56 p10, median, p90 RSSI (1 + 1 + 1, dBm) | 59 seconds present (2, unsigned)
+     */
+    static void encode(SightingRecord r, ByteBuffer out) {
+        out.putLong(r.rpiHigh);
+        out.putLong(r.rpiLow);
+        out.putInt(r.aem);
+        out.putInt((int) r.firstSeen);
+        out.putInt((int) r.lastSeen);
+        out.putInt(r.nScans);
+        out.putShort(clampToShort(r.maxRssi));
+        out.putShort(clampToShort(Math.round(r.meanRssi * 100)));
+        encode(r.first, out);
+        encode(r.last, out);
+        out.put(clampToByte(r.p10Rssi));
+        out.put(clampToByte(r.medianRssi));
+        out.put(clampToByte(r.p90Rssi));
+        out.putShort((short) Math.max(0, Math.min(0xffff, r.secondsPresent)));
+    }
+
+    static void decode(ByteBuffer in, SightingRecord r) {
+        decode(in, r, RECORD_BYTES);
+    }
+
+    /** Decodes a payload of the given length, which may be a shorter V1 record */
+    static void decode(ByteBuffer in, SightingRecord r, int length) {
+        r.rpiHigh = in.getLong();
+        r.rpiLow = in.getLong();
+        r.aem = in.getInt();
+        r.firstSeen = in.getInt() & 0xffffffffL;
+        r.lastSeen = in.getInt() & 0xffffffffL;
+        r.nScans = in.getInt();
+        r.maxRssi = in.getShort();
+        r.meanRssi = in.getShort() / 100.0;
+        decode(in, r.first);
+        decode(in, r.last);
+        if (length >= RECORD_BYTES) {
+            r.p10Rssi = in.get();
+            r.medianRssi = in.get();
+            r.p90Rssi = in.get();
+            r.secondsPresent = in.getShort() & 0xffff;
+        } else {
+            r.p10Rssi = r.medianRssi = r.p90Rssi = r.secondsPresent = 0;
+        }
+    }
+
+    private static void encode(SightingRecord.Position p, ByteBuffer out) {
+        if (p.valid) {
+            out.putInt((int) Math.round(p.latitude * DEGREE_SCALE));
+            out.putInt((int) Math.round(p.longitude * DEGREE_SCALE));
+            out.putShort(clampToShort(Math.round(p.accuracy)));
+        } else {
+            out.putInt(0);
+            out.putInt(0);
+            out.putShort((short) NO_ACCURACY);
+        }
+    }
+
+    private static void decode(ByteBuffer in, SightingRecord.Position p) {
+        final int lat = in.getInt(), lng = in.getInt(), accuracy = in.getShort();
+        if (accuracy == NO_ACCURACY) p.clear();
+        else p.set(lat / DEGREE_SCALE, lng / DEGREE_SCALE, accuracy);
+    }
+
+    private static byte clampToByte(int value) {
+        return (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, value));
+    }
+
+    private static short clampToShort(long value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    /** Appends records to a journal file. Not thread-safe. */
+    static class Writer implements AsyncSightingLog.Sink {
+        private static final int BUFFER_BYTES = 64 * FRAME_BYTES;
+        // roughly 15000 records to check on open after the process was killed
+        static final long MARK_INTERVAL_BYTES = 1 << 20;
+        private static final Metrics.Counter LOG_BYTES = new Metrics.Counter("log_bytes");
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private final byte[] payload = new byte[RECORD_BYTES];
+        private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        private final CRC32 crc = new CRC32();
+        private final Mark mark; // null if none
+        private long markedBytes;
+        private long bytesWritten = 0;
+
+        Writer(File file) throws IOException {
+            this(file, null);
+        }
+
+        /**
+         * Opens the journal for appending. A torn frame at the end (the process was killed
+         * mid-write) is cut off first, as the readers would stop at it and miss the records
+         * appended after it. A file shorter than the header is started over.
+         *
+         * @param mark if not null, the length of the checked part of the journal is saved
+         *  there every MARK_INTERVAL_BYTES and on close, so that only the frames after it
+         *  are checked on the next open instead of the whole journal
+         */
+        Writer(File file, Mark mark) throws IOException {
+            final long validBytes = file.length() < 4 ? 0 : validBytes(file, mark);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            try {
+                channel.truncate(validBytes);
+                channel.position(validBytes);
+                if (validBytes == 0) {
+                    buffer.putInt(MAGIC);
+                    flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            this.mark = mark;
+            markedBytes = validBytes;
+        }
+
+        /** @return the length of the readable part of the journal, checked from the mark if any */
+        private static long validBytes(File file, Mark mark) throws IOException {
+            final SightingRecord r = new SightingRecord();
+            try (Reader reader = mark != null && mark.exists() ? mark.replay(file) : new Reader(file)) {
+                while (reader.next(r)) ;
+                return reader.getValidBytes();
+            }
+        }
+
+        /** Buffers the record. It is written to the file when the buffer is full or on flush */
+        @Override
+        public void write(SightingRecord r) throws IOException {
+            if (buffer.remaining() < FRAME_BYTES) flush();
+            payloadBuffer.clear();
+            encode(r, payloadBuffer);
+            crc.reset();
+            crc.update(payload, 0, RECORD_BYTES);
+            buffer.putShort((short) RECORD_BYTES);
+            buffer.put(payload);
+            buffer.putInt((int) crc.getValue());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                final int n = channel.write(buffer);
+                bytesWritten += n;
+                LOG_BYTES.add(n);
+            }
+            buffer.clear();
+            if (mark != null && channel.position() - markedBytes >= MARK_INTERVAL_BYTES) saveMark();
+        }
+
+        private void saveMark() throws IOException {
+            markedBytes = channel.position();
+            mark.save(markedBytes);
+        }
+
+        long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                if (mark != null) saveMark();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /** Reads a journal file through a read-only memory map */
+    static class Reader implements Closeable {
+        private final FileInputStream stream;
+        private final ByteBuffer data;
+        private final CRC32 crc = new CRC32();
+        private final byte[] payload = new byte[RECORD_BYTES];
+        private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        private boolean corrupted = false;
+        private long validBytes = 4;
+
+        Reader(File file) throws IOException {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.remaining() < 4 || data.getInt() != MAGIC) {
+                stream.close();
+                throw new IOException(file + " is not a sighting journal");
+            }
+        }
+
+        /** @return false at the end of the readable data */
+        boolean next(SightingRecord r) {
+            if (corrupted || !data.hasRemaining()) return false;
+            final int length = data.remaining() < 2 ? 0 : data.getShort(data.position()) & 0xffff;
+            if (length < V1_RECORD_BYTES || data.remaining() < 2 + length + 4) {
+                corrupted = true;
+                return false;
+            }
+            data.position(data.position() + 2);
+            final int known = Math.min(length, RECORD_BYTES);
+            data.get(payload, 0, known);
+            // newer versions may append fields after the known ones
+            final int extra = length - known;
+            crc.reset();
+            crc.update(payload, 0, known);
+            for (int i = 0; i < extra; ++i) crc.update(data.get());
+            if ((int) crc.getValue() != data.getInt()) {
+                corrupted = true;
+                return false;
+            }
+            validBytes = data.position();
+            payloadBuffer.clear();
+            decode(payloadBuffer, r, known);
+            return true;
+        }
+
+        /** @return true if reading stopped at a truncated or corrupted frame */
+        boolean isCorrupted() {
+            return corrupted;
+        }
+
+        /** Continues reading at the frame starting at the file offset */
+        void seek(long offset) {
+            if (offset < 4 || offset > data.limit()) throw new IllegalArgumentException("invalid offset " + offset);
+            data.position((int) offset);
+            validBytes = offset;
+            corrupted = false;
+        }
+
+        long size() {
+            return data.limit();
+        }
+
+        /** @return the file offset after the last frame read */
+        long getValidBytes() {
+            return validBytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * The journal offset up to which a store derived from the journal (see RpiFilterSink,
+     * SightingSegmentSink) has been saved, so that the records after it can be replayed
+     * into the store when the process was killed before saving them. The Writer also keeps
+     * the length of the journal it has checked in one. A store saved day by
+     * day can also mark the EN days saved after the offset. The file format is
+     *
+     *     MAGIC | offset (i64) | number of days (i32) | EN day (i32), offset (i64)...
+     *
+     * and it is replaced atomically. A missing or unreadable mark file is no mark.
+     */
+    static class Mark {
+        static final int MAGIC = 0x43534d31; // "CSM1"
+
+        private final File file;
+        private long offset = -1;
+        private final TreeMap<Integer, Long> days = new TreeMap<>();
+
+        Mark(File file) {
+            this.file = file;
+            if (!file.exists()) return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) return;
+                final long o = in.readLong();
+                for (int n = in.readInt(); n > 0; --n) days.put(in.readInt(), in.readLong());
+                offset = o;
+            } catch (IOException e) {
+                days.clear();
+            }
+        }
+
+        boolean exists() {
+            return offset >= 0;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return a reader of the journal at the mark, or null if there is no mark or
+         * journal. Check the records with covers()
+         */
+        Reader replay(File journal) throws IOException {
+            if (offset < 0 || !journal.exists()) return null;
+            final Reader reader = new Reader(journal);
+            if (offset > reader.size()) {
+                // the journal was started over after the mark
+                offset = 0;
+                days.clear();
+            } else if (offset >= 4) {
+                reader.seek(offset);
+            }
+            return reader;
+        }
+
+        /** @return true if the record of the EN day, whose frame ends at the journal offset, was saved */
+        boolean covers(int day, long end) {
+            if (end <= offset) return true;
+            final Long saved = days.get(day);
+            return saved != null && end <= saved;
+        }
+
+        /** Marks the records of the EN day up to the journal offset saved */
+        void saveDay(int day, long end) throws IOException {
+            days.put(day, end);
+            write();
+        }
+
+        /** Marks all the records up to the journal offset saved */
+        void save(long end) throws IOException {
+            offset = end;
+            days.clear();
+            write();
+        }
+
+        private void write() throws IOException {
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(offset);
+                out.writeInt(days.size());
+                for (Map.Entry<Integer, Long> e : days.entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+            }
+            if (!tmp.renameTo(file)) throw new IOException("failed to rename " + tmp + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.example.coronasniffer;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Aggregated sightings of a single RPI in a plain, reusable form, as written to
+ * and read from the binary SightingJournal
+ */
+class SightingRecord {
+    // SimpleDateFormat is not thread-safe
+    private static final ThreadLocal<DateFormat> ISO8601 = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.UK);
+        }
+    };
+
+    long rpiHigh, rpiLow;
+    int aem;
+    long firstSeen, lastSeen; // unix time in seconds
+    int nScans;
+    int maxRssi;
+    double meanRssi;
+    // exact percentiles of the scanned RSSIs and the number of distinct seconds with
+    // scans, 0 if unknown (journals written by older versions)
+    int p10Rssi, medianRssi, p90Rssi;
+    int secondsPresent;
+
+    final Position first = new Position();
+    final Position last = new Position();
+
+    static class Position {
+        boolean valid;
+        double latitude, longitude;
+        float accuracy; // meters
+
+        void set(double latitude, double longitude, float accuracy) {
+            this.valid = true;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+        }
+
+        void clear() {
+            valid = false;
+            latitude = longitude = accuracy = 0;
+        }
+
+        void copyFrom(Position p) {
+            valid = p.valid;
+            latitude = p.latitude;
+            longitude = p.longitude;
+            accuracy = p.accuracy;
+        }
+
+        private void appendJson(StringBuilder sb, long seen) {
+            sb.append('{');
+            if (valid) {
+                sb.append("\"accuracy\":").append(Math.round(accuracy));
+                sb.append(",\"latitude\":").append(latitude);
+                sb.append(",\"longitude\":").append(longitude);
+                sb.append(',');
+            }
+            sb.append("\"seen\":\"").append(ISO8601.get().format(new Date(seen * 1000))).append("\"}");
+        }
+    }
+
+    /** Copies all the fields of r, e.g., to keep a record that its writer reuses */
+    SightingRecord copyFrom(SightingRecord r) {
+        rpiHigh = r.rpiHigh;
+        rpiLow = r.rpiLow;
+        aem = r.aem;
+        firstSeen = r.firstSeen;
+        lastSeen = r.lastSeen;
+        nScans = r.nScans;
+        maxRssi = r.maxRssi;
+        meanRssi = r.meanRssi;
+        p10Rssi = r.p10Rssi;
+        medianRssi = r.medianRssi;
+        p90Rssi = r.p90Rssi;
+        secondsPresent = r.secondsPresent;
+        first.copyFrom(r.first);
+        last.copyFrom(r.last);
+        return this;
+    }
+
+    String rpiHex() {
+        return String.format("%016x%016x", rpiHigh, rpiLow);
+    }
+
+    String aemHex() {
+        return String.format("%08x", aem);
+    }
+
+    /** The JSON log line format parsed by parse_logs.py, keys in alphabetical order */
+    String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"aem\":\"").append(aemHex()).append('"');
+        sb.append(",\"first\":");
+        first.appendJson(sb, firstSeen);
+        sb.append(",\"last\":");
+        last.appendJson(sb, lastSeen);
+        sb.append(",\"maxRssi\":").append(maxRssi);
+        sb.append(",\"meanRssi\":").append(String.format(Locale.ROOT, "%.4g", meanRssi));
+        if (secondsPresent > 0) sb.append(",\"medianRssi\":").append(medianRssi);
+        sb.append(",\"nScans\":").append(nScans);
+        if (secondsPresent > 0) {
+            sb.append(",\"p10Rssi\":").append(p10Rssi);
+            sb.append(",\"p90Rssi\":").append(p90Rssi);
+        }
+        sb.append(",\"rpi\":\"").append(rpiHex()).append('"');
+        if (secondsPresent > 0) sb.append(",\"secondsPresent\":").append(secondsPresent);
+        sb.append('}');
+        return sb.toString();
+    }
+}
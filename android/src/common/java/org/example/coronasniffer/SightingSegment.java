@@ -0,0 +1,289 @@
+package org.example.coronasniffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable file of the SightingRecords of one EN day, sorted by RPI, so that an RPI can
+ * be looked up with a binary search through a read-only memory map. The segments are
+ * named DAY-SEQ.seg, where SEQ increases with every segment written to the directory
+ * (see SightingSegmentSink). The file format is
+ *
+ *     MAGIC | EN day (i32) | base SEQ (i32) | number of records (i32) | payloads
+ *
+ * with SightingJournal payloads of RECORD_BYTES, sorted by the RPI (as an unsigned 128-bit
+ * number) and the first seen time. A segment merged from others has the lowest SEQ of
+ * its inputs as its base SEQ and supersedes the segments of its day in [base SEQ, SEQ),
+ * in case the process died before they were deleted.
+ */
+class SightingSegment implements Closeable {
+    static final int MAGIC = 0x43535331; // "CSS1"
+    static final int HEADER_BYTES = 16;
+    private static final Pattern NAME = Pattern.compile("(\\d+)-(\\d+)\\.seg");
+
+    private final FileInputStream stream;
+    private final ByteBuffer data;
+    private final File file;
+    private final int day;
+    private final int sequence;
+    private final int baseSequence;
+    private final int count;
+
+    private SightingSegment(File file, int sequence) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        stream = new FileInputStream(file);
+        try {
+            final FileChannel channel = stream.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.remaining() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a sighting segment");
+            }
+            day = data.getInt(4);
+            baseSequence = data.getInt(8);
+            count = data.getInt(12);
+            if (count < 0 || data.capacity() != HEADER_BYTES + (long) count * SightingJournal.RECORD_BYTES) {
+                throw new IOException(file + " is truncated");
+            }
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    static SightingSegment open(File file) throws IOException {
+        final Matcher m = NAME.matcher(file.getName());
+        if (!m.matches()) throw new IOException("invalid segment name " + file);
+        return new SightingSegment(file, Integer.parseInt(m.group(2)));
+    }
+
+    static File file(File dir, int day, int sequence) {
+        return new File(dir, day + "-" + sequence + ".seg");
+    }
+
+    /** @return the SEQ of a segment file name, or -1 if it is not a segment */
+    static int sequenceOf(File file) {
+        final Matcher m = NAME.matcher(file.getName());
+        return m.matches() ? Integer.parseInt(m.group(2)) : -1;
+    }
+
+    /**
+     * Opens the segments in the directory that have not been superseded by a merged one,
+     * ordered by day and SEQ. Segments merged and deleted meanwhile are retried.
+     *
+     * @param superseded if not null, gets the files of the superseded segments
+     */
+    static List<SightingSegment> openAll(File dir, List<File> superseded) throws IOException {
+        for (int attempt = 0; ; ++attempt) {
+            final List<SightingSegment> segments = new ArrayList<>();
+            try {
+                final File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (sequenceOf(f) >= 0) segments.add(open(f));
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                closeAll(segments);
+                if (attempt == 2) throw e;
+                continue;
+            }
+            return live(segments, superseded);
+        }
+    }
+
+    private static List<SightingSegment> live(List<SightingSegment> segments, List<File> superseded)
+            throws IOException {
+        Collections.sort(segments, new Comparator<SightingSegment>() {
+            @Override
+            public int compare(SightingSegment a, SightingSegment b) {
+                if (a.day != b.day) return Integer.compare(a.day, b.day);
+                return Integer.compare(a.sequence, b.sequence);
+            }
+        });
+        final List<SightingSegment> live = new ArrayList<>();
+        for (int i = 0; i < segments.size(); ++i) {
+            final SightingSegment s = segments.get(i);
+            boolean isSuperseded = false;
+            for (int j = i + 1; j < segments.size() && segments.get(j).day == s.day; ++j) {
+                if (segments.get(j).supersedes(s)) isSuperseded = true;
+            }
+            if (isSuperseded) {
+                s.close();
+                if (superseded != null) superseded.add(s.file);
+            } else {
+                live.add(s);
+            }
+        }
+        return live;
+    }
+
+    /** Appends the records of the RPI in all the segments to out and returns their number */
+    static int lookup(List<SightingSegment> segments, long rpiHigh, long rpiLow, List<SightingRecord> out) {
+        int n = 0;
+        for (SightingSegment s : segments) n += s.lookup(rpiHigh, rpiLow, out);
+        return n;
+    }
+
+    static void closeAll(List<SightingSegment> segments) throws IOException {
+        for (SightingSegment s : segments) s.close();
+    }
+
+    boolean supersedes(SightingSegment other) {
+        return other.day == day && other.sequence >= baseSequence && other.sequence < sequence;
+    }
+
+    /** Unsigned 128-bit RPI order */
+    static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+        if (aHigh != bHigh) return Long.compare(aHigh + Long.MIN_VALUE, bHigh + Long.MIN_VALUE);
+        return Long.compare(aLow + Long.MIN_VALUE, bLow + Long.MIN_VALUE);
+    }
+
+    /** Segment order: RPI, then first seen time, of two encoded payloads */
+    static int compare(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset) {
+        final int c = compare(a.getLong(aOffset), a.getLong(aOffset + 8), b.getLong(bOffset), b.getLong(bOffset + 8));
+        if (c != 0) return c;
+        return Long.compare(a.getInt(aOffset + 20) & 0xffffffffL, b.getInt(bOffset + 20) & 0xffffffffL);
+    }
+
+    private int offset(int index) {
+        return HEADER_BYTES + index * SightingJournal.RECORD_BYTES;
+    }
+
+    /** @return the index of the first record of the RPI, or -1 if there is none */
+    int find(long rpiHigh, long rpiLow) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int off = offset(mid);
+            if (compare(data.getLong(off), data.getLong(off + 8), rpiHigh, rpiLow) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        if (lo == count) return -1;
+        final int off = offset(lo);
+        return data.getLong(off) == rpiHigh && data.getLong(off + 8) == rpiLow ? lo : -1;
+    }
+
+    /** Appends the records of the RPI to out and returns their number */
+    int lookup(long rpiHigh, long rpiLow, List<SightingRecord> out) {
+        int n = 0;
+        for (int i = find(rpiHigh, rpiLow); i >= 0 && i < count; ++i, ++n) {
+            final int off = offset(i);
+            if (data.getLong(off) != rpiHigh || data.getLong(off + 8) != rpiLow) break;
+            final SightingRecord r = new SightingRecord();
+            read(i, r);
+            out.add(r);
+        }
+        return n;
+    }
+
+    void read(int index, SightingRecord r) {
+        final ByteBuffer in = data.duplicate();
+        in.position(offset(index));
+        SightingJournal.decode(in, r);
+    }
+
+    /** Copies the encoded payload of the record to out */
+    void copy(int index, ByteBuffer out) {
+        final ByteBuffer in = data.duplicate();
+        in.position(offset(index)).limit(offset(index) + SightingJournal.RECORD_BYTES);
+        out.put(in);
+    }
+
+    ByteBuffer data() {
+        return data;
+    }
+
+    int offsetOf(int index) {
+        return offset(index);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getDay() {
+        return day;
+    }
+
+    int getSequence() {
+        return sequence;
+    }
+
+    int getBaseSequence() {
+        return baseSequence;
+    }
+
+    int size() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    /** Writes a segment to a temporary file, which replaces the segment file on finish() */
+    static class Writer implements Closeable {
+        private static final int BUFFER_BYTES = 64 * SightingJournal.RECORD_BYTES;
+
+        private final File file, tmp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private final int count;
+        private int written = 0;
+        private boolean finished = false;
+
+        Writer(File file, int day, int baseSequence, int count) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.count = count;
+            channel = new FileOutputStream(tmp).getChannel();
+            buffer.putInt(MAGIC).putInt(day).putInt(baseSequence).putInt(count);
+        }
+
+        /** @param payload an encoded record, from its position to its limit */
+        void append(ByteBuffer payload) throws IOException {
+            if (payload.remaining() != SightingJournal.RECORD_BYTES) throw new IllegalArgumentException("not a record");
+            if (written == count) throw new IllegalStateException("too many records");
+            if (buffer.remaining() < SightingJournal.RECORD_BYTES) flushBuffer();
+            buffer.put(payload);
+            written++;
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void finish() throws IOException {
+            if (written != count) throw new IllegalStateException(written + " of " + count + " records written");
+            flushBuffer();
+            channel.force(false);
+            channel.close();
+            finished = true;
+            if (!tmp.renameTo(file)) throw new IOException("failed to rename " + tmp + " to " + file);
+        }
+
+        /** Discards the segment if it was not finished */
+        @Override
+        public void close() throws IOException {
+            if (finished) return;
+            channel.close();
+            if (!tmp.delete()) throw new IOException("failed to delete " + tmp);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.example.coronasniffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the logged sightings to per-EN-day SightingSegments before passing them on to
+ * another sink. The records are buffered per day of their first sighting and written
+ * as a new sorted segment at most every saveIntervalMillis and on close. After saving,
+ * the segments of the past days, and those of the current day once there are
+ * MAX_SEGMENTS_PER_DAY of them, are merged into one, and the days older than the
+ * exposure window (RETENTION_DAYS before the newest one) are deleted. This runs on the
+ * thread calling flush(), which is the background writer of an AsyncSightingLog.
+ *
+ * The records buffered since the last save are lost if the process is killed. If the
+ * records go to a SightingJournal, see replayJournal().
+ */
+class SightingSegmentSink implements AsyncSightingLog.Sink {
+    static final int RETENTION_DAYS = RpiFilterSink.RETENTION_DAYS;
+    static final int MAX_SEGMENTS_PER_DAY = 8;
+
+    private final AsyncSightingLog.Sink next;
+    private final File dir;
+    private final Clock clock;
+    private final long saveIntervalMillis;
+
+    // EN day -> encoded records not saved yet
+    private final TreeMap<Integer, ByteBuffer> pending = new TreeMap<>();
+    private int nextSequence;
+    private long lastSave;
+    private File journal;
+    private SightingJournal.Mark mark;
+
+    SightingSegmentSink(AsyncSightingLog.Sink next, File dir, Clock clock, long saveIntervalMillis) {
+        this.next = next;
+        this.dir = dir;
+        this.clock = clock;
+        this.saveIntervalMillis = saveIntervalMillis;
+        int maxSequence = -1;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) maxSequence = Math.max(maxSequence, SightingSegment.sequenceOf(f));
+        }
+        nextSequence = maxSequence + 1;
+        lastSave = clock.currentTimeMillis();
+    }
+
+    /**
+     * Buffers the records the journal got after the last save, and keeps the journal
+     * offset of every later save, and of the days saved in between, in DIR/journal.mark.
+     * The next sinks must write the records to the journal. Call before writing.
+     * @return the number of records replayed
+     */
+    int replayJournal(File journal) throws IOException {
+        this.journal = journal;
+        mark = new SightingJournal.Mark(new File(dir, "journal.mark"));
+        if (!mark.exists()) {
+            // the segments are complete up to now, or there are none yet
+            if (!dir.exists() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+            mark.save(journal.length());
+            return 0;
+        }
+        final SightingRecord r = new SightingRecord();
+        int n = 0;
+        try (SightingJournal.Reader reader = mark.replay(journal)) {
+            while (reader != null && reader.next(r)) {
+                if (mark.covers(RpiFilterSink.enDay(r.firstSeen), reader.getValidBytes())) continue;
+                add(r);
+                n++;
+            }
+        }
+        if (n > 0) save();
+        return n;
+    }
+
+    @Override
+    public void write(SightingRecord r) throws IOException {
+        add(r);
+        next.write(r);
+    }
+
+    private void add(SightingRecord r) {
+        final int day = RpiFilterSink.enDay(r.firstSeen);
+        ByteBuffer buffer = pending.get(day);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(64 * SightingJournal.RECORD_BYTES);
+            pending.put(day, buffer);
+        } else if (buffer.remaining() < SightingJournal.RECORD_BYTES) {
+            final ByteBuffer grown = ByteBuffer.allocate(2 * buffer.capacity());
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+            pending.put(day, buffer);
+        }
+        SightingJournal.encode(r, buffer);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        next.flush();
+        final long now = clock.currentTimeMillis();
+        if (now - lastSave < saveIntervalMillis) return;
+        lastSave = now;
+        save();
+        compact();
+    }
+
+    /** Call after flushing the next sink, so that the journal has all the records buffered */
+    private void save() throws IOException {
+        if (pending.isEmpty()) return;
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+        final long end = mark == null ? 0 : journal.length();
+        for (Iterator<Map.Entry<Integer, ByteBuffer>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<Integer, ByteBuffer> e = it.next();
+            final ByteBuffer buffer = e.getValue();
+            final int count = buffer.position() / SightingJournal.RECORD_BYTES;
+            final Integer[] order = new Integer[count];
+            for (int i = 0; i < count; ++i) order[i] = i * SightingJournal.RECORD_BYTES;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return SightingSegment.compare(buffer, a, buffer, b);
+                }
+            });
+
+            final int sequence = nextSequence++;
+            try (SightingSegment.Writer writer = new SightingSegment.Writer(
+                    SightingSegment.file(dir, e.getKey(), sequence), e.getKey(), sequence, count)) {
+                final ByteBuffer payload = buffer.duplicate();
+                for (Integer offset : order) {
+                    payload.limit(offset + SightingJournal.RECORD_BYTES).position(offset);
+                    writer.append(payload);
+                }
+                writer.finish();
+            }
+            // not written again if a later day fails
+            it.remove();
+            if (mark != null) mark.saveDay(e.getKey(), end);
+        }
+        if (mark != null) mark.save(end);
+    }
+
+    /** Deletes the expired and superseded segments and merges the segments of each day as described above */
+    void compact() throws IOException {
+        final List<File> superseded = new ArrayList<>();
+        final List<SightingSegment> segments = SightingSegment.openAll(dir, superseded);
+        try {
+            // left over when the process died while writing or merging
+            final File[] tmps = dir.listFiles();
+            if (tmps != null) {
+                for (File f : tmps) {
+                    if (f.getName().endsWith(".seg.tmp")) superseded.add(f);
+                }
+            }
+            for (File f : superseded) {
+                if (!f.delete()) throw new IOException("failed to delete " + f);
+            }
+            if (segments.isEmpty()) return;
+            final int newest = segments.get(segments.size() - 1).getDay();
+            final TreeMap<Integer, List<SightingSegment>> days = new TreeMap<>();
+            for (SightingSegment s : segments) {
+                if (s.getDay() <= newest - RETENTION_DAYS) {
+                    if (!s.getFile().delete()) throw new IOException("failed to delete " + s.getFile());
+                    continue;
+                }
+                List<SightingSegment> day = days.get(s.getDay());
+                if (day == null) {
+                    day = new ArrayList<>();
+                    days.put(s.getDay(), day);
+                }
+                day.add(s);
+            }
+            for (Map.Entry<Integer, List<SightingSegment>> e : days.entrySet()) {
+                final List<SightingSegment> day = e.getValue();
+                if (day.size() > 1 && (e.getKey() < newest || day.size() >= MAX_SEGMENTS_PER_DAY)) merge(day);
+            }
+        } finally {
+            SightingSegment.closeAll(segments);
+        }
+    }
+
+    /** Merges all the segments of one day, ordered by SEQ, into a new one and deletes them */
+    private void merge(List<SightingSegment> inputs) throws IOException {
+        final SightingSegment first = inputs.get(0);
+        int count = 0;
+        for (SightingSegment s : inputs) count += s.size();
+        final int[] cursors = new int[inputs.size()];
+        final int sequence = nextSequence++;
+        try (SightingSegment.Writer writer = new SightingSegment.Writer(SightingSegment.file(dir, first.getDay(), sequence),
+                first.getDay(), first.getSequence(), count)) {
+            final ByteBuffer payload = ByteBuffer.allocate(SightingJournal.RECORD_BYTES);
+            for (int n = 0; n < count; ++n) {
+                int min = -1;
+                for (int i = 0; i < cursors.length; ++i) {
+                    final SightingSegment s = inputs.get(i);
+                    if (cursors[i] == s.size()) continue;
+                    if (min < 0 || SightingSegment.compare(s.data(), s.offsetOf(cursors[i]),
+                            inputs.get(min).data(), inputs.get(min).offsetOf(cursors[min])) < 0) min = i;
+                }
+                payload.clear();
+                inputs.get(min).copy(cursors[min]++, payload);
+                payload.flip();
+                writer.append(payload);
+            }
+            writer.finish();
+        }
+        for (SightingSegment s : inputs) {
+            if (!s.getFile().delete()) throw new IOException("failed to delete " + s.getFile());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            next.flush();
+            save();
+            compact();
+        } finally {
+            next.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.example.coronasniffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped state file of the live BeaconStats entries, one fixed-size record per
+ * slot, so that a checkpoint only writes the slots that changed. The stores go to the
+ * page cache and survive the process being killed without syncing. The file format is
+ *
+ *     MAGIC | record bytes (i32) | capacity (i32, records) | reserved (i32) | records
+ *
+ * and each record is
+ *
+ *     CRC32 of the rest (i32) | state (i32, LIVE or free) | rpi (16 bytes) | aem (i32)
+ *     | max rssi (i32) | scans (i32) | mean rssi (f64) | last second (i64)
+ *     | seconds after the presence window (i32) | first, last sighting | presence bits
+ *     (i64 each) | RSSI histogram (i16 each)
+ *
+ * where a sighting is its time (i64, unix ms) and the location fix of that time: time
+ * (i64, unix ms, -1 if none), latitude and longitude (f64, deg) and accuracy (f32, m).
+ * Big-endian. A record torn by the process dying while writing it fails the CRC and is
+ * skipped. Not thread-safe.
+ */
+class StatsCheckpoint implements Closeable {
+    static final int MAGIC = 0x43534331; // "CSC1"
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 4 + 4 + 16 + 4 + 4 + 4 + 8 + 8 + 4 + 2 * (8 + 8 + 8 + 8 + 4)
+            + 8 * (BeaconStats.PRESENCE_SECONDS / 64) + 2 * BeaconStats.RSSI_BINS;
+
+    private static final int LIVE = 1;
+    private static final int MIN_CAPACITY = 64;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer data;
+    private ByteBuffer view; // of data, for the relative bulk gets and puts
+    private int capacity;
+    private final byte[] record = new byte[RECORD_BYTES];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    private final CRC32 crc = new CRC32();
+
+    /** An entry read from the file, with the location fixes its sightings refer to */
+    static class Saved {
+        final BeaconStats.Entry entry = new BeaconStats.Entry();
+        GeoPosition firstFix, lastFix; // null if none
+    }
+
+    /** Opens the file, or starts an empty one if it does not exist or is not a checkpoint */
+    StatsCheckpoint(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        try {
+            boolean valid = file.length() >= HEADER_BYTES;
+            if (valid) {
+                file.seek(0);
+                valid = file.readInt() == MAGIC && file.readInt() == RECORD_BYTES;
+                capacity = file.readInt();
+                valid = valid && capacity >= 0 && file.length() == HEADER_BYTES + (long) capacity * RECORD_BYTES;
+            }
+            if (!valid) {
+                file.setLength(0);
+                capacity = 0;
+            }
+            map(Math.max(capacity, MIN_CAPACITY));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void map(int newCapacity) throws IOException {
+        file.setLength(HEADER_BYTES + (long) newCapacity * RECORD_BYTES);
+        data = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        data.putInt(0, MAGIC).putInt(4, RECORD_BYTES).putInt(8, newCapacity).putInt(12, 0);
+        view = data.duplicate();
+        capacity = newCapacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Grows the file to hold at least the given number of slots */
+    void ensureCapacity(int slots) throws IOException {
+        if (slots <= capacity) return;
+        int newCapacity = capacity;
+        while (newCapacity < slots) newCapacity *= 2;
+        map(newCapacity);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * RECORD_BYTES;
+    }
+
+    /** Stores a live entry to its slot, see ensureCapacity() */
+    void write(int slot, BeaconStats.Entry e, LocationTrack track) {
+        final ByteBuffer b = recordBuffer;
+        b.clear();
+        b.putInt(0).putInt(LIVE).putLong(e.rpiHigh).putLong(e.rpiLow).putInt(e.aem)
+                .putInt(e.maxRssi).putInt(e.nScans).putDouble(e.meanRssi).putLong(e.lastSecond)
+                .putInt(e.secondsAfterPresenceWindow);
+        putSighting(b, e.first, track);
+        putSighting(b, e.last, track);
+        for (long word : e.presence) b.putLong(word);
+        for (short count : e.rssiHistogram) b.putShort(count);
+        crc.reset();
+        crc.update(record, 4, RECORD_BYTES - 4);
+        b.putInt(0, (int) crc.getValue());
+
+        view.position(offset(slot));
+        view.put(record);
+    }
+
+    private static void putSighting(ByteBuffer b, BeaconStats.Entry.FirstOrLast s, LocationTrack track) {
+        b.putLong(s.seen);
+        if (s.fix == LocationTrack.NO_FIX) {
+            b.putLong(-1).putDouble(0).putDouble(0).putFloat(0);
+        } else {
+            b.putLong(track.time(s.fix)).putDouble(track.latitude(s.fix)).putDouble(track.longitude(s.fix))
+                    .putFloat(track.accuracy(s.fix));
+        }
+    }
+
+    /** Marks the slot free */
+    void clear(int slot) {
+        if (slot < capacity) data.putInt(offset(slot) + 4, 0);
+    }
+
+    /** Marks all the slots free */
+    void clearAll() {
+        for (int slot = 0; slot < capacity; ++slot) clear(slot);
+    }
+
+    /** @return the live entries with a valid CRC, in slot order */
+    List<Saved> readAll() {
+        final List<Saved> saved = new ArrayList<>();
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (data.getInt(offset(slot) + 4) != LIVE) continue;
+            view.position(offset(slot));
+            view.get(record);
+            crc.reset();
+            crc.update(record, 4, RECORD_BYTES - 4);
+            recordBuffer.clear();
+            if (recordBuffer.getInt() != (int) crc.getValue()) continue;
+            recordBuffer.getInt();
+            final Saved s = new Saved();
+            final BeaconStats.Entry e = s.entry;
+            e.rpiHigh = recordBuffer.getLong();
+            e.rpiLow = recordBuffer.getLong();
+            e.aem = recordBuffer.getInt();
+            e.maxRssi = recordBuffer.getInt();
+            e.nScans = recordBuffer.getInt();
+            e.meanRssi = recordBuffer.getDouble();
+            e.lastSecond = recordBuffer.getLong();
+            e.secondsAfterPresenceWindow = recordBuffer.getInt();
+            s.firstFix = getSighting(recordBuffer, e.first);
+            s.lastFix = getSighting(recordBuffer, e.last);
+            for (int i = 0; i < e.presence.length; ++i) e.presence[i] = recordBuffer.getLong();
+            for (int i = 0; i < e.rssiHistogram.length; ++i) e.rssiHistogram[i] = recordBuffer.getShort();
+            saved.add(s);
+        }
+        return saved;
+    }
+
+    /** Reads the sighting time to s. @return its location fix or null */
+    private static GeoPosition getSighting(ByteBuffer b, BeaconStats.Entry.FirstOrLast s) {
+        s.seen = b.getLong();
+        s.fix = LocationTrack.NO_FIX;
+        final long time = b.getLong();
+        final double latitude = b.getDouble(), longitude = b.getDouble();
+        final float accuracy = b.getFloat();
+        return time < 0 ? null : new GeoPosition(latitude, longitude, accuracy, time);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -1,6 +1,7 @@
 package org.example.coronasniffer;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -41,6 +42,7 @@ import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BeaconParser;
 import org.altbeacon.beacon.RangeNotifier;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.service.scanner.NonBeaconLeScanCallback;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -55,8 +57,50 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
             // = "m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24"; // iBeacon
             // = "s:0-1=feaa,m:2-2=00,p:3-3:-41,i:4-13,i:14-19";  // Eddystone UID
             = "s:0-1=fd6f,i:2-17,d:18-21"; // GAEN with AEM as the "d" field
-
-    private BeaconStats stats = new BeaconStats();
+    // decode the GAEN and DP-3T service data from the raw advertisements with
+    // ScanRecordDecoder instead of BEACON_LAYOUT and AltBeacon's Beacon objects. The DP-3T
+    // EphIDs are only counted: the journal, the RPI filters and the segments are GAEN-only
+    private static final boolean RAW_SCAN_DECODER = true;
+    // log the sightings to a compact binary file instead of JSON log lines,
+    // convert with tools/JournalToJson
+    private static final boolean BINARY_SIGHTING_JOURNAL = true;
+    // the sightings are written to the log files in the background, in batches
+    private static final int SIGHTING_LOG_CAPACITY = 4096;
+    private static final long SIGHTING_LOG_FLUSH_INTERVAL_MS = 2000;
+    // record the raw ranging batches to scans.trace, for replaying with tools/TraceReplay.
+    // Grows by roughly 30 bytes per ranged beacon
+    private static final boolean RECORD_SCAN_TRACE = false;
+    // keep a Bloom filter of the RPIs seen per EN day in logs/rpi-filters, for quickly
+    // pre-screening diagnosis keys, see tools/BulkMatcher
+    private static final boolean RPI_FILTERS = true;
+    private static final long RPI_FILTER_SAVE_INTERVAL_MS = 5 * 60 * 1000;
+    // also keep the sightings of the last 14 days in per-EN-day segments sorted by RPI in
+    // logs/segments, see SightingSegment. Older days are deleted automatically
+    private static final boolean SIGHTING_SEGMENTS = true;
+    private static final long SIGHTING_SEGMENT_SAVE_INTERVAL_MS = 5 * 60 * 1000;
+    // checkpoint the live aggregates to logs/stats.checkpoint this often, so that they
+    // survive the process being killed. Restored on start, see BeaconStats.startCheckpoints
+    private static final boolean STATS_CHECKPOINTS = true;
+    private static final long STATS_CHECKPOINT_INTERVAL_MS = 5000;
+    // log a snapshot of the Metrics this often, see also the "Metrics" menu item
+    private static final long METRICS_REPORT_INTERVAL_MS = 60 * 1000;
+    // pause scanning while no new devices show up, to save battery
+    private static final boolean ADAPTIVE_SCAN_SCHEDULE = true;
+    // the minimum level of both FL and EventLog, e.g., EventLog.VERBOSE to also log the
+    // ranging batches and sightings
+    private static final int LOG_LEVEL = EventLog.DEBUG;
+
+    private static final Metrics.Counter DP3T_EPHIDS = new Metrics.Counter("dp3t_ephids");
+
+    private BeaconStats stats;
+    private StatsCheckpoint statsCheckpoint;
+    private AsyncSightingLog sightingLog;
+    private ScanTrace.Writer scanTrace;
+    private final ScanScheduler scanScheduler = ADAPTIVE_SCAN_SCHEDULE
+            ? new ScanScheduler.Adaptive() : new ScanScheduler.Continuous();
+    private final LocationSampler locationSampler = new LocationSampler();
+    private final ScanRecordDecoder.Collector scanCollector = new ScanRecordDecoder.Collector();
+    private final Metrics.Reporter metricsReporter = new Metrics.Reporter(Clock.SYSTEM, METRICS_REPORT_INTERVAL_MS);
     private BeaconManager beaconManager;
     private TextView countView, rssiView;
     private Region region = new Region("dummy-id", null, null, null);
@@ -64,31 +108,103 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
     private File privateLogDir;
 
     private RangeNotifier rangeNotifier = new RangeNotifier() {
-        @SuppressLint("DefaultLocale")
         @Override
         public void didRangeBeaconsInRegion(Collection<Beacon> beacons, Region region) {
-            BeaconStats.Entry nearest = stats.add(beacons);
-            countView.setText(String.format("%d", stats.getNearbyDeviceCount()));
-            if (nearest == null) {
-                rssiView.setText("");
-            } else {
-                rssiView.setText(String.format("Strongest RSSI: %d dBm\nRolling ID: %s",
-                        Math.round(nearest.maxRssi),
-                        nearest.rpi));
-            }
+            // the range notifier is the only thread that writes to stats
+            final BeaconStats.Snapshot snapshot = RAW_SCAN_DECODER
+                    ? addToStats(scanCollector.takeBatch()) : addToStats(beacons);
+            if (scanScheduler.update(snapshot)) applyScanSchedule();
+            if (locationSampler.update(snapshot)) requestLocationUpdates();
+            metricsReporter.maybeReport();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showStats(snapshot);
+                }
+            });
+        }
+    };
+
+    // with RAW_SCAN_DECODER, there are no beacon parsers, so AltBeacon passes all the
+    // advertisements here, on its scanner thread
+    private NonBeaconLeScanCallback scanCallback = new NonBeaconLeScanCallback() {
+        @Override
+        public void onNonBeaconLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            scanCollector.onScanRecord(scanRecord, rssi);
         }
     };
 
+    @SuppressLint("DefaultLocale")
+    private void showStats(BeaconStats.Snapshot snapshot) {
+        countView.setText(String.format("%d", snapshot.nearbyDevices));
+        if (snapshot.batchSize == 0) {
+            rssiView.setText("");
+        } else {
+            rssiView.setText(String.format("Strongest RSSI: %d dBm\nRolling ID: %s",
+                    snapshot.strongestRssi,
+                    snapshot.strongestRpiHex()));
+        }
+    }
+
     private LocationCallback locationCallback = new LocationCallback() {
         @Override
         public void onLocationResult(LocationResult r) {
             Location location = r.getLastLocation();
+            locationSampler.onFix();
             FL.d("onLocationChanged %f, %f (%g m)",
                     location.getLatitude(), location.getLongitude(), location.getAccuracy());
-            stats.onLocationChanged(location);
+            GeoPosition position = new GeoPosition(location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy(), location.getTime());
+            stats.onLocationChanged(position);
+            if (scanTrace != null) scanTrace.onLocation(position);
         }
     };
 
+    private BeaconStats.Snapshot addToStats(Collection<Beacon> beacons) {
+        stats.beginBatch(beacons.size());
+        if (scanTrace != null) scanTrace.onBatch(System.currentTimeMillis(), beacons.size());
+        for (Beacon b : beacons) {
+            // NOTE: AltBeacon has rather hacky logic in toString, use the raw bytes instead
+            final byte[] rpi = b.getId1().toByteArray();
+            final long rpiHigh = RpiTable.high(rpi, 0), rpiLow = RpiTable.low(rpi, 0);
+            final int aem = b.getDataFields().get(0).intValue();
+            stats.add(rpiHigh, rpiLow, aem, b.getRssi(), b.getRunningAverageRssi());
+            if (scanTrace != null) scanTrace.onBeacon(rpiHigh, rpiLow, aem, b.getRssi(), b.getRunningAverageRssi());
+        }
+        return stats.endBatch();
+    }
+
+    private BeaconStats.Snapshot addToStats(ScanRecordDecoder.Batch batch) {
+        int gaen = 0;
+        for (int i = 0; i < batch.size(); ++i) {
+            if (batch.getProtocol(i) == ScanRecordDecoder.GAEN) gaen++;
+        }
+        DP3T_EPHIDS.add(batch.size() - gaen);
+        stats.beginBatch(gaen);
+        if (scanTrace != null) scanTrace.onBatch(System.currentTimeMillis(), gaen);
+        for (int i = 0; i < batch.size(); ++i) {
+            // an EphID would pass for an RPI with a zero AEM in the GAEN stores and exports
+            if (batch.getProtocol(i) != ScanRecordDecoder.GAEN) continue;
+            stats.add(batch.getHigh(i), batch.getLow(i), batch.getAem(i), batch.getRssi(i), batch.getMeanRssi(i));
+            if (scanTrace != null) {
+                scanTrace.onBeacon(batch.getHigh(i), batch.getLow(i), batch.getAem(i),
+                        batch.getRssi(i), batch.getMeanRssi(i));
+            }
+        }
+        return stats.endBatch();
+    }
+
+    /** @return the FL level of the EventLog level */
+    private static int flLevel(int level) {
+        switch (level) {
+            case EventLog.VERBOSE: return FLConst.Level.V;
+            case EventLog.DEBUG: return FLConst.Level.D;
+            case EventLog.INFO: return FLConst.Level.I;
+            case EventLog.WARN: return FLConst.Level.W;
+            default: return FLConst.Level.E;
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -99,16 +215,64 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
         // logging
         privateLogDir = new File(getExternalCacheDir(), "logs");
         FL.init(new FLConfig.Builder(this)
-                //.minLevel(FLConst.Level.V)
-                .minLevel(FLConst.Level.D)
+                .minLevel(flLevel(LOG_LEVEL))
                 .logToFile(true)
                 .dir(privateLogDir)
                 .defaultTag(MainActivity.class.getSimpleName())
                 .retentionPolicy(FLConst.RetentionPolicy.NONE)
                 .build());
         FL.setEnabled(true);
+        EventLog.init(new EventLog.Output() {
+            @Override
+            public void write(int level, String tag, String message) {
+                switch (level) {
+                    case EventLog.VERBOSE: FL.v(tag, "%s", message); break;
+                    case EventLog.DEBUG: FL.d(tag, "%s", message); break;
+                    case EventLog.INFO: FL.i(tag, "%s", message); break;
+                    case EventLog.WARN: FL.w(tag, "%s", message); break;
+                    default: FL.e(tag, "%s", message);
+                }
+            }
+        }, LOG_LEVEL);
         FL.d("logging to " + privateLogDir.getAbsolutePath());
 
+        File journal = new File(privateLogDir, "sightings.bin");
+        AsyncSightingLog.Sink sink = BINARY_SIGHTING_JOURNAL ? openSightingJournal(journal) : null;
+        if (sink == null) {
+            sink = new JsonLogSink();
+            journal = null;
+        }
+        if (RPI_FILTERS) {
+            RpiFilterSink filterSink = new RpiFilterSink(sink, new File(privateLogDir, "rpi-filters"),
+                    RpiFilterSink.DEFAULT_EXPECTED_RPIS_PER_DAY, RpiFilterSink.DEFAULT_FALSE_POSITIVE_RATE,
+                    Clock.SYSTEM, RPI_FILTER_SAVE_INTERVAL_MS);
+            // the RPIs not saved before the process was last killed
+            if (journal != null) {
+                try {
+                    FL.d("replayed %d sightings to the RPI filters", filterSink.replayJournal(journal));
+                } catch (IOException e) {
+                    FL.e("Failed to replay %s to the RPI filters", journal, e);
+                }
+            }
+            sink = filterSink;
+        }
+        if (SIGHTING_SEGMENTS) {
+            SightingSegmentSink segmentSink = new SightingSegmentSink(sink, new File(privateLogDir, "segments"),
+                    Clock.SYSTEM, SIGHTING_SEGMENT_SAVE_INTERVAL_MS);
+            if (journal != null) {
+                try {
+                    FL.d("replayed %d sightings to the segments", segmentSink.replayJournal(journal));
+                } catch (IOException e) {
+                    FL.e("Failed to replay %s to the segments", journal, e);
+                }
+            }
+            sink = segmentSink;
+        }
+        sightingLog = new AsyncSightingLog(sink, SIGHTING_LOG_CAPACITY, SIGHTING_LOG_FLUSH_INTERVAL_MS);
+        stats = new BeaconStats(sightingLog);
+        if (STATS_CHECKPOINTS) startStatsCheckpoints();
+        if (RECORD_SCAN_TRACE) scanTrace = openScanTrace();
+
         locationProvider = LocationServices.getFusedLocationProviderClient(this);
     }
 
@@ -160,11 +324,68 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
                         .setPositiveButton("Do it!", dialogClickListener)
                         .setNegativeButton("Cancel", dialogClickListener).show();
                 return true;
+            case R.id.show_metrics:
+                final String metrics = Metrics.dump();
+                FL.i("metrics:\n%s", metrics);
+                new AlertDialog.Builder(this).setMessage(metrics).setPositiveButton("OK", null).show();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    /** Logs the sightings as JSON lines, which can be parsed with parse_logs.py */
+    private static class JsonLogSink implements AsyncSightingLog.Sink {
+        @Override
+        public void write(SightingRecord r) {
+            FL.i(BeaconStats.class.getSimpleName(), r.toJson());
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    private SightingJournal.Writer openSightingJournal(File file) {
+        try {
+            if (!privateLogDir.exists() && !privateLogDir.mkdirs()) throw new IOException("mkdirs failed");
+            FL.d("logging sightings to " + file.getAbsolutePath());
+            // only the end of the journal after the mark is checked for a torn frame
+            return new SightingJournal.Writer(file,
+                    new SightingJournal.Mark(new File(privateLogDir, "sightings.mark")));
+        } catch (IOException e) {
+            FL.e("Failed to open %s, logging sightings as JSON", file, e);
+            return null;
+        }
+    }
+
+    private void startStatsCheckpoints() {
+        File file = new File(privateLogDir, "stats.checkpoint");
+        try {
+            if (!privateLogDir.exists() && !privateLogDir.mkdirs()) throw new IOException("mkdirs failed");
+            statsCheckpoint = new StatsCheckpoint(file);
+            // before scanning starts, so this thread is the only writer
+            int restored = stats.startCheckpoints(statsCheckpoint, STATS_CHECKPOINT_INTERVAL_MS);
+            FL.d("checkpointing to %s, restored %d entries", file.getAbsolutePath(), restored);
+        } catch (IOException e) {
+            FL.e("Failed to open %s, not checkpointing", file, e);
+        }
+    }
+
+    private ScanTrace.Writer openScanTrace() {
+        File file = new File(privateLogDir, "scans.trace");
+        try {
+            if (!privateLogDir.exists() && !privateLogDir.mkdirs()) throw new IOException("mkdirs failed");
+            FL.d("recording scans to " + file.getAbsolutePath());
+            return new ScanTrace.Writer(file);
+        } catch (IOException e) {
+            FL.e("Failed to open %s, not recording scans", file, e);
+            return null;
+        }
+    }
+
     private void ensureScanning() {
         if (beaconManager != null) return;
         beaconManager = org.altbeacon.beacon.BeaconManager.getInstanceForApplication(this);
@@ -173,30 +394,59 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
         // AltBeacon foreground service
         beaconManager.enableForegroundServiceScanning(buildForegroundServiceNotification(), 112233);
         beaconManager.setEnableScheduledScanJobs(false);
-        beaconManager.setBackgroundBetweenScanPeriod(0);
-        beaconManager.setBackgroundScanPeriod(1100);
+        beaconManager.setBackgroundBetweenScanPeriod(scanScheduler.getBetweenScanPeriodMillis());
+        beaconManager.setBackgroundScanPeriod(scanScheduler.getScanPeriodMillis());
 
         beaconManager.getBeaconParsers().clear();
-        beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout(BEACON_LAYOUT));
+        if (RAW_SCAN_DECODER) {
+            beaconManager.setNonBeaconLeScanCallback(scanCallback);
+        } else {
+            beaconManager.getBeaconParsers().add(new BeaconParser().setBeaconLayout(BEACON_LAYOUT));
+        }
         // BeaconManager.setDebug(true);
 
         beaconManager.bind(this);
 
-        // location listener
+        requestLocationUpdates();
+    }
+
+    /** (Re)requests location updates in the current mode of the locationSampler */
+    private void requestLocationUpdates() {
+        LocationSampler.Mode mode = locationSampler.getMode();
+        FL.d("location sampling: %s", mode);
+        int priority;
+        switch (mode.priority) {
+            case PASSIVE: priority = LocationRequest.PRIORITY_NO_POWER; break;
+            case LOW_POWER: priority = LocationRequest.PRIORITY_LOW_POWER; break;
+            case HIGH_ACCURACY: priority = LocationRequest.PRIORITY_HIGH_ACCURACY; break;
+            default: priority = LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+        }
         try {
             LocationRequest locationRequest = LocationRequest.create()
-                    .setFastestInterval(5 * 1000) // ms
-                    .setInterval(30 * 1000) // ms
-                    .setSmallestDisplacement(30f) // meters
-                    .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
-                    //.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+                    .setFastestInterval(Math.min(5 * 1000, mode.intervalMillis)) // ms
+                    .setInterval(mode.intervalMillis) // ms
+                    .setSmallestDisplacement(mode.smallestDisplacementMeters) // meters
+                    .setPriority(priority);
 
+            // replaces the previous request with the same callback
             locationProvider.requestLocationUpdates(locationRequest, locationCallback, getMainLooper());
         } catch (SecurityException e) {
             throw new RuntimeException("permissions altered while app running", e);
         }
     }
 
+    private void applyScanSchedule() {
+        FL.d("scan period %d ms, between scans %d ms",
+                scanScheduler.getScanPeriodMillis(), scanScheduler.getBetweenScanPeriodMillis());
+        beaconManager.setBackgroundBetweenScanPeriod(scanScheduler.getBetweenScanPeriodMillis());
+        beaconManager.setBackgroundScanPeriod(scanScheduler.getScanPeriodMillis());
+        try {
+            beaconManager.updateScanPeriods();
+        } catch (RemoteException e) {
+            FL.w("Failed to update the scan periods", e);
+        }
+    }
+
     private void stopScanning() {
         if (beaconManager != null) {
             try {
@@ -215,8 +465,32 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        stats.flush();
+        // stop the writer (the range notifier) before flushing the remaining entries
         stopScanning();
+        stats.flush();
+        try {
+            sightingLog.close();
+        } catch (IOException e) {
+            FL.w("Failed to close sighting log", e);
+        }
+        if (statsCheckpoint != null) {
+            try {
+                statsCheckpoint.close();
+            } catch (IOException e) {
+                FL.w("Failed to close stats checkpoint", e);
+            }
+        }
+        FL.d("sighting log: %s", sightingLog);
+        FL.d("location sampling: %s", locationSampler);
+        FL.d("metrics:\n%s", Metrics.dump());
+        if (scanTrace != null) {
+            if (scanTrace.getError() != null) FL.w("Failed to record scans", scanTrace.getError());
+            try {
+                scanTrace.close();
+            } catch (IOException e) {
+                FL.w("Failed to close scan trace", e);
+            }
+        }
     }
 
     @Override
@@ -275,7 +549,8 @@ public class MainActivity extends AppCompatActivity implements BeaconConsumer {
             FL.d("exporting " + f.getAbsolutePath());
             ContentValues cv = new ContentValues();
             cv.put(MediaStore.MediaColumns.DISPLAY_NAME, f.getName());
-            cv.put(MediaStore.MediaColumns.MIME_TYPE, "text/plain");
+            cv.put(MediaStore.MediaColumns.MIME_TYPE,
+                    f.getName().endsWith(".bin") || f.getName().endsWith(".trace") ? "application/octet-stream" : "text/plain");
             cv.put(MediaStore.MediaColumns.RELATIVE_PATH, storePath);
             cv.put(MediaStore.MediaColumns.DATA, f.getAbsolutePath());
             Uri uri = getContentResolver().insert(MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL), cv);
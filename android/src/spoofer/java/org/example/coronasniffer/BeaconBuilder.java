@@ -4,17 +4,11 @@ import android.os.ParcelUuid;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.UUID;
 
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import at.favre.lib.crypto.HKDF;
+import static org.example.coronasniffer.BeaconCrypto.bytesToHex;
 
+/** Advertisements of the beacon payloads, with the cryptography in BeaconCrypto */
 class BeaconBuilder {
     private final static String TAG = BeaconBuilder.class.getSimpleName();
 
@@ -22,97 +16,43 @@ class BeaconBuilder {
         return ParcelUuid.fromString(String.format("0000%04x-0000-1000-8000-00805F9B34FB", uuid16));
     }
 
-    static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes)  sb.append(String.format("%02x", b));
-        return sb.toString();
-    }
-
-    static byte[] fixedLengthKeyFromString(String str, int length) {
-        byte[] key = new byte[length];
-        byte[] strBytes = str.getBytes();
-        if (strBytes.length > key.length)
-            throw new IllegalArgumentException("'" + str + "' is too long to be used as a key");
-        System.arraycopy(strBytes, 0, key, 0, strBytes.length);
-        return key;
-    }
-
     /**
      * Apple|Google Exposure Notification protocol (v1.2)
      */
     public static class AppleGoogleEN {
-        private static final int SERVICE_UUID_16 = 0xFD6F;
-        private static final int KEY_LENGTH_BYTES = 16;
+        // the transmit power level of ADVERTISE_TX_POWER_MEDIUM, cf. AdvertisingSetParameters.TX_POWER_MEDIUM
+        static final int TX_POWER_MEDIUM_DBM = -7;
 
         public static AdvertiseData example() {
             // note: the key should be regenerated every 10 minutes
             return build(
-                    keyFromString("example"),
+                    BeaconCrypto.AppleGoogleEN.keyFromString("example"),
                     System.currentTimeMillis() / 1000);
         }
 
-        static byte[] keyFromString(String str) {
-            return fixedLengthKeyFromString(str, KEY_LENGTH_BYTES);
-        }
-
-        static byte[] paddedData(int enInterval) {
-            ByteBuffer padded = ByteBuffer.allocate(KEY_LENGTH_BYTES);
-            padded.put("EN-RPI".getBytes());
-            for (int i=6; i<=11; ++i) padded.put((byte)0);
-            padded.order(ByteOrder.LITTLE_ENDIAN);
-            padded.putInt(enInterval);
-            return padded.array();
-        }
-
-        static byte[] aes128(byte[] key, byte[] data) {
-            try {
-                final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                byte[] zeroIV = new byte[KEY_LENGTH_BYTES];
-                cipher.init(Cipher.ENCRYPT_MODE,
-                        new SecretKeySpec(key, "AES"),
-                        new IvParameterSpec(zeroIV));
-                return cipher.doFinal(data);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        /** Rolling Proximity ID (RPI), based on RPIK and time */
-        static byte[] rollingProximityID(byte[] temporaryExposureKey, long unixTime) {
-            byte[] rpik = rollingProximityIdentifierKeyFromTEK(temporaryExposureKey);
-            final int enInterval = (int)(unixTime / (60 * 10));
-            byte[] data = paddedData(enInterval);
-            byte[] proxId = aes128(rpik, data);
-
-            return proxId;
-        }
-
-        static byte[] buildPayload(byte[] proxID, byte[] aem) {
-            byte[] payload = new byte[20];
-            System.arraycopy(proxID, 0, payload, 0, KEY_LENGTH_BYTES);
-            System.arraycopy(aem, 0, payload, KEY_LENGTH_BYTES, 4);
-            return payload;
+        public static AdvertiseData build(byte[] temporaryExposureKey, long unixTime) {
+            return build(temporaryExposureKey, unixTime, TX_POWER_MEDIUM_DBM);
         }
 
-        static byte[] rollingProximityIdentifierKeyFromTEK(byte[] tek) {
-            final SecretKey salt = null;
-            byte[] prk = HKDF.fromHmacSha256().extract(salt, tek);
-            return HKDF.fromHmacSha256().expand(prk, "EN-RPIK".getBytes(), KEY_LENGTH_BYTES);
-        }
-
-        public static AdvertiseData build(byte[] temporaryExposureKey, long unixTime) {
-            byte[] rpi = rollingProximityID(temporaryExposureKey, unixTime);
+        /** @param txPowerDbm the transmit power level in the encrypted metadata */
+        public static AdvertiseData build(byte[] temporaryExposureKey, long unixTime, int txPowerDbm) {
+            byte[] rpi = BeaconCrypto.AppleGoogleEN.rollingProximityID(temporaryExposureKey, unixTime);
+            int aem = BeaconCrypto.AppleGoogleEN.associatedEncryptedMetadata(temporaryExposureKey, rpi,
+                    BeaconCrypto.AppleGoogleEN.metadata(txPowerDbm));
 
             Log.i(TAG, "Contact tracing exposureKey " + bytesToHex(temporaryExposureKey)
                     + ", unixTime " + unixTime + " -> RPI " + bytesToHex(rpi));
 
-            // TODO: zero AEM for now
-            byte[] aem = new byte[4];
-            byte[] payload = buildPayload(rpi, aem);
+            return fromRpi(rpi, ByteBuffer.allocate(BeaconCrypto.AppleGoogleEN.AEM_BYTES).putInt(aem).array());
+        }
+
+        /** Advertisement of a precomputed RPI, see RpiRotation */
+        public static AdvertiseData fromRpi(byte[] rpi, byte[] aem) {
+            byte[] payload = BeaconCrypto.AppleGoogleEN.buildPayload(rpi, aem);
 
             Log.d(TAG, "Contact tracing payload " + bytesToHex(payload));
 
-            final ParcelUuid SERVICE_UUID = parcelUUIDFrom16BitUUID(SERVICE_UUID_16);
+            final ParcelUuid SERVICE_UUID = parcelUUIDFrom16BitUUID(BeaconCrypto.AppleGoogleEN.SERVICE_UUID_16);
             return new AdvertiseData.Builder()
                     .addServiceData(SERVICE_UUID, payload)
                     .addServiceUuid(SERVICE_UUID)
@@ -127,44 +67,15 @@ class BeaconBuilder {
      * https://github.com/DP-3T/dp3t-sdk-android/blob/master-alpha/dp3t-sdk/sdk/src/main/java/org/dpppt/android/sdk/internal/gatt/BleServer.java
      */
     public static class DP3T {
-        private static final int SERVICE_UUID_16 = 0xFD68;
-        private static final int KEY_LENGTH_BYTES = 16;
-        private static final int EPOCHS_PER_DAY = 24 * 4;
-
         public static AdvertiseData example() {
             // note: should be rotated from time to time
-            return build(keyFromString("example"), 1);
-        }
-
-        static byte[] keyFromString(String str) {
-            return fixedLengthKeyFromString(str, KEY_LENGTH_BYTES);
-        }
-
-        static byte[] generateEphId(byte[] secretKey, int epochIdx) {
-            if (epochIdx < 0 || epochIdx >= EPOCHS_PER_DAY) {
-                throw new IllegalArgumentException("invalid epoch number");
-            }
-            try {
-                Mac mac = Mac.getInstance("HmacSHA256");
-                mac.init(new SecretKeySpec(secretKey, "HmacSHA256"));
-                mac.update("broadcast key".getBytes());
-                byte[] prf = mac.doFinal();
-                SecretKeySpec keySpec = new SecretKeySpec(prf, "AES");
-                Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-                byte[] zeros = new byte[KEY_LENGTH_BYTES];
-                cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(zeros));
-                byte[] result = zeros;
-                for (int i = 0; i <= epochIdx; i++) result = cipher.update(zeros);
-                return result;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+            return build(BeaconCrypto.DP3T.keyFromString("example"), 1);
         }
 
         public static AdvertiseData build(byte[] secretKey, int epochIdx) {
-            final ParcelUuid SERVICE_UUID = parcelUUIDFrom16BitUUID(SERVICE_UUID_16);
+            final ParcelUuid SERVICE_UUID = parcelUUIDFrom16BitUUID(BeaconCrypto.DP3T.SERVICE_UUID_16);
 
-            byte[] ephId = generateEphId(secretKey, epochIdx);
+            byte[] ephId = BeaconCrypto.DP3T.generateEphId(secretKey, epochIdx);
             Log.i(TAG, "DP-3T secretKey " + bytesToHex(secretKey)
                     + ", daily epoch number " + epochIdx + " -> ephId " + bytesToHex(ephId));
 
@@ -5,28 +5,74 @@ import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.security.SecureRandom;
+
+/**
+ * Broadcasts one or more virtual Apple|Google EN devices with rotating identities: the
+ * RPIs are swapped at each EN interval boundary and the TEKs rolled daily, see RpiRotation.
+ * The devices share the available advertising sets, see IdentityMultiplexer. What was
+ * broadcast and when is logged to broadcasts.jsonl as the ground truth for the sniffer,
+ * see BroadcastLog.
+ */
 class BleBroadcast {
     private final static String TAG = BleBroadcast.class.getSimpleName();
 
+    private final File logDir;
+    private final int virtualDevices;
+    private final int maxAdvertisingSets;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private IdentityMultiplexer multiplexer;
+    private BroadcastLog broadcastLog;
+
     // NOTE: advertisement is BLE jargon for broadcasting and is not related to ads
     private BluetoothLeAdvertiser advertiser;
+    private AdvertiseSettings settings;
+    private AdvertiseCallback[] callbacks;
 
-    private AdvertiseCallback callback = new AdvertiseCallback() {
+    private final Runnable rotate = new Runnable() {
         @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            Log.i(TAG, "BLE advertisement started");
-            super.onStartSuccess(settingsInEffect);
+        public void run() {
+            if (advertiser == null) return;
+            final long now = System.currentTimeMillis();
+            // the handler may fire a bit early, in which case nothing changes yet
+            final boolean keyRolled = multiplexer.advanceTo(now, broadcastLog);
+            for (int set = 0; set < callbacks.length; ++set) {
+                if (!multiplexer.hasChanged(set)) continue;
+                advertiser.stopAdvertising(callbacks[set]);
+                startAdvertising(set);
+            }
+            scheduleRotation(now);
+            // after the swap, the following day's keys for the next rollover
+            if (keyRolled) handler.post(prepareNextDays);
         }
+    };
 
+    private final Runnable prepareNextDays = new Runnable() {
         @Override
-        public void onStartFailure(int errorCode) {
-            Log.e(TAG, "could not start BLE broadcast");
-            super.onStartFailure(errorCode);
+        public void run() {
+            if (advertiser != null) multiplexer.prepareNextDays();
         }
     };
 
+    /**
+     * @param virtualDevices number of EN devices to simulate
+     * @param maxAdvertisingSets number of simultaneous advertisements to use at most, if the
+     *                           hardware supports more than one
+     */
+    BleBroadcast(File logDir, int virtualDevices, int maxAdvertisingSets) {
+        this.logDir = logDir;
+        this.virtualDevices = virtualDevices;
+        this.maxAdvertisingSets = maxAdvertisingSets;
+    }
+
     void ensureRunning() {
         if (advertiser != null) return;
 
@@ -35,31 +81,98 @@ class BleBroadcast {
         if (advertiser == null) {
             throw new RuntimeException("failed to obtain advertiser (BLE off?)");
         }
-
-        // iBeacon payload for testing: can be easily read by 3rd party apps
-        final AdvertiseData data =
-                //BeaconBuilder.IBeacon.random();
-                //BeaconBuilder.Eddystone.exampleUID();
-                BeaconBuilder.AppleGoogleEN.example();
-                //BeaconBuilder.DP3T.example();
-
-        final AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
+        if (multiplexer == null) {
+            final int sets = bluetoothAdapter.isMultipleAdvertisementSupported() ? maxAdvertisingSets : 1;
+            multiplexer = new IdentityMultiplexer(virtualDevices, sets, IdentityMultiplexer.DEFAULT_SLICE_MILLIS,
+                    BeaconBuilder.AppleGoogleEN.TX_POWER_MEDIUM_DBM, new SecureRandom());
+            Log.i(TAG, virtualDevices + " virtual device(s) on " + multiplexer.getSetCount()
+                    + " advertising set(s)");
+        }
+        settings = new AdvertiseSettings.Builder()
+                // time-sliced identities need to be heard within their short turns
+                .setAdvertiseMode(multiplexer.getIdentityCount() > multiplexer.getSetCount()
+                        ? AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY
+                        : AdvertiseSettings.ADVERTISE_MODE_LOW_POWER)
                 .setConnectable(false)
                 .setTimeout(0)
                 .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
                 .build();
+        broadcastLog = openBroadcastLog();
 
-        advertiser.startAdvertising(settings, data, callback);
+        // for testing other payloads that can be easily read by 3rd party apps:
+        //BeaconBuilder.IBeacon.random();
+        //BeaconBuilder.Eddystone.exampleUID();
+        //BeaconBuilder.DP3T.example();
+        final long now = System.currentTimeMillis();
+        multiplexer.advanceTo(now, null);
+        // a new log file needs the current keys as well
+        if (broadcastLog != null) multiplexer.logState(broadcastLog, now);
+        callbacks = new AdvertiseCallback[multiplexer.getSetCount()];
+        for (int set = 0; set < callbacks.length; ++set) {
+            callbacks[set] = newCallback(set);
+            startAdvertising(set);
+        }
+        scheduleRotation(now);
+        handler.post(prepareNextDays);
         Log.d(TAG, "started broadcast");
     }
 
     void ensureStopped() {
         if (advertiser == null) return;
 
-        advertiser.stopAdvertising(callback);
+        handler.removeCallbacks(rotate);
+        handler.removeCallbacks(prepareNextDays);
+        for (AdvertiseCallback callback : callbacks) advertiser.stopAdvertising(callback);
         advertiser = null;
+        if (broadcastLog != null) {
+            try {
+                broadcastLog.close();
+            } catch (IOException e) {
+                Log.e(TAG, "failed to close the broadcast log", e);
+            }
+            broadcastLog = null;
+        }
 
         Log.d(TAG, "stopped broadcast");
     }
-}
\ No newline at end of file
+
+    private static AdvertiseCallback newCallback(final int set) {
+        return new AdvertiseCallback() {
+            @Override
+            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+                Log.v(TAG, "BLE advertisement started on set " + set);
+                super.onStartSuccess(settingsInEffect);
+            }
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                // e.g., ADVERTISE_FAILED_TOO_MANY_ADVERTISERS if maxAdvertisingSets is too large
+                Log.e(TAG, "could not start BLE broadcast on set " + set + ", error " + errorCode);
+                super.onStartFailure(errorCode);
+            }
+        };
+    }
+
+    private void startAdvertising(int set) {
+        final int identity = multiplexer.identityOn(set);
+        final AdvertiseData data = BeaconBuilder.AppleGoogleEN.fromRpi(
+                multiplexer.getRpi(identity), multiplexer.getAem(identity));
+        advertiser.startAdvertising(settings, data, callbacks[set]);
+    }
+
+    private void scheduleRotation(long now) {
+        handler.postDelayed(rotate, multiplexer.nextChangeMillis(now) - now);
+    }
+
+    private BroadcastLog openBroadcastLog() {
+        final File file = new File(logDir, "broadcasts.jsonl");
+        try {
+            if (!logDir.exists() && !logDir.mkdirs()) throw new IOException("mkdirs failed");
+            Log.d(TAG, "logging broadcasts to " + file.getAbsolutePath());
+            return new BroadcastLog(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        } catch (IOException e) {
+            Log.e(TAG, "failed to open " + file + ", not logging broadcasts", e);
+            return null;
+        }
+    }
+}
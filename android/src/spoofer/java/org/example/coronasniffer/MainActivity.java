@@ -4,13 +4,21 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.view.WindowManager;
 
+import java.io.File;
+
 public class MainActivity extends Activity {
+    // number of EN devices to simulate, e.g., 100 for load-testing the sniffer
+    private static final int VIRTUAL_DEVICES = 1;
+    // simultaneous advertisements, if supported. Typical controllers allow 4 or more
+    private static final int MAX_ADVERTISING_SETS = 4;
+
     BleBroadcast bleBroadcast;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        bleBroadcast = new BleBroadcast();
+        bleBroadcast = new BleBroadcast(new File(getExternalCacheDir(), "logs"),
+                VIRTUAL_DEVICES, MAX_ADVERTISING_SETS);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 
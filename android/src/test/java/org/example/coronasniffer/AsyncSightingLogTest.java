@@ -0,0 +1,66 @@
+package org.example.coronasniffer;
+
+import org.example.coronasniffer.TestFixtures.RecordingSink;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AsyncSightingLogTest {
+    /** Optionally slow, to fill the ring */
+    private static class SlowSink extends RecordingSink {
+        volatile long delayMillis = 0;
+
+        @Override
+        public void write(SightingRecord r) {
+            super.write(r);
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDrainWritesEverythingInOrder() throws Exception {
+        SlowSink sink = new SlowSink();
+        AsyncSightingLog log = new AsyncSightingLog(sink, 16, 10000);
+        final int n = 10000;
+        for (int i = 0; i < n; ++i) {
+            SightingRecord r = log.claim(true);
+            r.nScans = i;
+            log.publish();
+        }
+        log.drain();
+        assertEquals(n, sink.records.size());
+        assertEquals(n, sink.flushed);
+        for (int i = 0; i < n; ++i) assertEquals(i, sink.records.get(i).nScans);
+        assertEquals(0, log.getDropped());
+        assertEquals(0, log.getQueued());
+
+        log.close();
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        SlowSink sink = new SlowSink();
+        sink.delayMillis = 50;
+        AsyncSightingLog log = new AsyncSightingLog(sink, 4, 10);
+        int published = 0;
+        for (int i = 0; i < 20; ++i) {
+            SightingRecord r = log.claim(false);
+            if (r == null) continue;
+            r.nScans = i;
+            log.publish();
+            published++;
+        }
+        assertTrue(log.getDropped() > 0);
+        assertEquals(20, published + log.getDropped());
+        log.close();
+        assertEquals(published, sink.records.size());
+        assertEquals(published, log.getPublished());
+    }
+}
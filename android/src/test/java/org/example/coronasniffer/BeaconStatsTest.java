@@ -0,0 +1,292 @@
+package org.example.coronasniffer;
+
+import org.example.coronasniffer.TestFixtures.ManualClock;
+import org.example.coronasniffer.TestFixtures.RecordingSink;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BeaconStatsTest {
+    /** "rpi nScans firstSeen lastSeen" of the record */
+    private static String summary(SightingRecord r) {
+        return r.rpiHex() + " " + r.nScans + " " + r.firstSeen + " " + r.lastSeen;
+    }
+
+    private final ManualClock clock = new ManualClock(1600000000000L);
+    private final RecordingSink sink = new RecordingSink();
+    private AsyncSightingLog sightingLog;
+    private BeaconStats stats;
+
+    @Before
+    public void setUp() {
+        sightingLog = new AsyncSightingLog(sink, 64, 10000);
+        stats = new BeaconStats(sightingLog, clock);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sightingLog.close();
+    }
+
+    private BeaconStats.Snapshot batch(long... rpis) {
+        stats.beginBatch(rpis.length);
+        for (long rpi : rpis) stats.add(0, rpi, 0, -60 - (int) rpi, -60 - rpi);
+        return stats.endBatch();
+    }
+
+    @Test
+    public void testPruneAndNearbyCountFollowTheClock() {
+        final long t0 = clock.now / 1000;
+        assertEquals(0, batch().batchSize);
+        assertEquals(1, batch(1, 2).strongestRpiLow);
+        assertEquals(2, stats.getNearbyDeviceCount());
+
+        clock.now += 20000;
+        assertEquals(2, batch(2).strongestRpiLow);
+        assertEquals(2, stats.getNearbyDeviceCount());
+        clock.now += 10000;
+        assertEquals(1, stats.getNearbyDeviceCount());
+
+        // RPI 1 is pruned 11 minutes after it was last seen, RPI 2 stays
+        clock.now = t0 * 1000 + 11 * 60000;
+        batch(3);
+        assertEquals(3, stats.size());
+        clock.now += 1000;
+        BeaconStats.Snapshot snapshot = batch(3);
+        assertEquals(2, stats.size());
+        assertEquals(1, stats.getNearbyDeviceCount());
+        assertSame(snapshot, stats.getSnapshot());
+        assertEquals(2, snapshot.devices);
+        assertEquals(1, snapshot.nearbyDevices);
+        assertEquals(5, snapshot.batches);
+        assertEquals(5, snapshot.sightings);
+        assertEquals(3, snapshot.arrivals);
+        assertEquals(1, snapshot.departures);
+
+        sightingLog.drain();
+        assertEquals(1, sink.records.size());
+        assertEquals(String.format("%032x 1 %d %d", 1, t0, t0), summary(sink.records.get(0)));
+
+        stats.flush();
+        assertEquals(0, stats.size());
+        assertEquals(0, stats.getNearbyDeviceCount());
+        assertEquals(3, sink.records.size());
+        assertEquals(String.format("%032x 2 %d %d", 2, t0, t0 + 20), summary(sink.records.get(1)));
+    }
+
+    @Test
+    public void testLocationsAreInterpolated() throws Exception {
+        final List<double[]> latitudes = new ArrayList<>();
+        sightingLog.close();
+        sightingLog = new AsyncSightingLog(new AsyncSightingLog.Sink() {
+            @Override
+            public void write(SightingRecord r) {
+                latitudes.add(new double[]{r.rpiLow, r.first.valid ? r.first.latitude : 0, r.last.latitude});
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        }, 16, 10000);
+        stats = new BeaconStats(sightingLog, clock);
+
+        final long t0 = clock.now;
+        batch(1);
+        stats.onLocationChanged(new GeoPosition(60.0, 25.0, 10, t0));
+        clock.now = t0 + 5000;
+        batch(1, 2);
+        stats.onLocationChanged(new GeoPosition(60.001, 25.0, 20, t0 + 10000));
+        clock.now = t0 + 10000;
+        batch(2);
+        // batch(1) had no location yet
+        assertEquals(3, stats.getSnapshot().geotaggedSightings);
+        assertEquals(4, stats.getSnapshot().sightings);
+        stats.flush();
+
+        // the positions between the fixes are interpolated, the last fix is held
+        assertEquals(2, latitudes.size());
+        assertArrayEquals(new double[]{1, 0, 60.0005}, latitudes.get(0), 1e-9);
+        assertArrayEquals(new double[]{2, 60.0005, 60.001}, latitudes.get(1), 1e-9);
+    }
+
+    @Test
+    public void testLocationsOfALongSession() throws Exception {
+        final List<double[]> latitudes = Collections.synchronizedList(new ArrayList<double[]>());
+        sightingLog.close();
+        sightingLog = new AsyncSightingLog(new AsyncSightingLog.Sink() {
+            @Override
+            public void write(SightingRecord r) {
+                latitudes.add(new double[]{r.rpiLow, r.first.latitude});
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        }, 8192, 10000);
+        stats = new BeaconStats(sightingLog, clock);
+
+        // a fix every 10 minutes for 30 days, and a sighting between each two
+        final long t0 = clock.now;
+        final int n = 30 * 144;
+        for (int i = 0; i < n; ++i) {
+            final long t = t0 + i * 600000L;
+            stats.onLocationChanged(new GeoPosition(60 + i * 1e-4, 25.0, 10, t));
+            clock.now = t;
+            batch();
+            clock.now = t + 300000;
+            batch(i + 1);
+        }
+        stats.flush();
+
+        assertEquals(n, latitudes.size());
+        for (double[] l : latitudes) {
+            final int i = (int) l[0] - 1;
+            // the last one has no later fix to interpolate to
+            assertEquals(60 + (i < n - 1 ? i + 0.5 : i) * 1e-4, l[1], 1e-9);
+        }
+    }
+
+    @Test
+    public void testRssiPercentilesAndPresence() {
+        final long t0 = clock.now;
+        BeaconStats.Entry e = new BeaconStats.Entry();
+        e.init(0, 1, 0, -90, -90, LocationTrack.NO_FIX, t0);
+        // -2..-100 dBm in a shuffled order, 3 scans per second
+        for (int i = 1; i < 100; ++i) {
+            e.update(-((i * 37) % 100 + 1), -60, LocationTrack.NO_FIX, t0 + i * 333);
+        }
+        // far beyond the presence window
+        e.update(-200, -60, LocationTrack.NO_FIX, t0 + 3600 * 1000);
+        e.update(5, -60, LocationTrack.NO_FIX, t0 + 3600 * 1000 + 10);
+
+        SightingRecord r = new SightingRecord();
+        e.toRecord(r, null);
+        // 102 scans: -127 (clamped), -100..-2 with -90 twice and 0 (clamped)
+        assertEquals(102, e.nScans);
+        assertEquals(-91, r.p10Rssi); // 11th
+        assertEquals(-52, r.medianRssi); // 51st
+        assertEquals(-11, r.p90Rssi); // 92nd
+        assertEquals(-127, e.rssiPercentile(0));
+        assertEquals(0, e.rssiPercentile(100));
+        // seconds 0..32 and one second an hour later
+        assertEquals(34, r.secondsPresent);
+
+        // recycled entries start from scratch
+        e.init(0, 2, 0, -70, -70, LocationTrack.NO_FIX, t0);
+        assertEquals(-70, e.rssiPercentile(50));
+        assertEquals(1, e.secondsPresent());
+    }
+
+    @Test
+    public void testClockSteppingBack() {
+        batch(1);
+        clock.now += 2000;
+        batch(1);
+        // e.g., a network time correction
+        clock.now -= 60000;
+        batch(1, 2);
+        clock.now += 1000;
+        batch(1, 2);
+        assertEquals(2, stats.size());
+
+        stats.flush();
+        sightingLog.drain();
+        assertEquals(2, sink.records.size());
+        SightingRecord r = sink.records.get(0);
+        assertEquals(1, r.rpiLow);
+        assertEquals(4, r.nScans);
+        // only the seconds after the first sighting
+        assertEquals(2, r.secondsPresent);
+    }
+
+    /** Hammers the writer, the location updates and the snapshot readers concurrently */
+    @Test
+    public void testConcurrentWriterLocationAndReaders() throws Exception {
+        final int batches = 20000, batchSize = 8;
+        final AtomicLong loggedScans = new AtomicLong(), badLocations = new AtomicLong();
+        final AsyncSightingLog log = new AsyncSightingLog(new AsyncSightingLog.Sink() {
+            @Override
+            public void write(SightingRecord r) {
+                loggedScans.addAndGet(r.nScans);
+                // locations never disappear, only move north and have longitude == -latitude
+                if (r.first.valid && !r.last.valid) badLocations.incrementAndGet();
+                if (r.last.valid && (r.first.valid && r.first.latitude > r.last.latitude
+                        || r.first.longitude != -r.first.latitude || r.last.longitude != -r.last.latitude)) {
+                    badLocations.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        }, 4096, 10000);
+        final BeaconStats concurrentStats = new BeaconStats(log, clock);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong reads = new AtomicLong(), badSnapshots = new AtomicLong();
+
+        Thread location = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; !done.get(); ++i) {
+                    concurrentStats.onLocationChanged(new GeoPosition(i * 1e-4, -i * 1e-4, 10, i));
+                }
+            }
+        });
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 2; ++t) {
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    BeaconStats.Snapshot previous = concurrentStats.getSnapshot();
+                    while (!done.get()) {
+                        BeaconStats.Snapshot s = concurrentStats.getSnapshot();
+                        if (s.batches < previous.batches || s.sightings != (long) batchSize * s.batches
+                                || s.nearbyDevices > s.devices || (s.batches > 0 && s.batchSize != batchSize)) {
+                            badSnapshots.incrementAndGet();
+                        }
+                        previous = s;
+                        reads.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        location.start();
+        for (Thread t : readers) t.start();
+
+        // single writer: rotating groups of devices, so that old RPIs get pruned
+        for (int b = 0; b < batches; ++b) {
+            clock.now += 1100;
+            concurrentStats.beginBatch(batchSize);
+            for (int i = 0; i < batchSize; ++i) {
+                concurrentStats.add(b / 600, (b * 3 + i) % 40, 0, -70, -70);
+            }
+            concurrentStats.endBatch();
+        }
+        done.set(true);
+        location.join();
+        for (Thread t : readers) t.join();
+
+        concurrentStats.flush();
+        assertEquals(0, log.getDropped());
+        assertEquals((long) batches * batchSize, loggedScans.get());
+        assertEquals(0, badLocations.get());
+        assertEquals(0, badSnapshots.get());
+        assertTrue(reads.get() > 0);
+        assertEquals(batches, concurrentStats.getSnapshot().batches);
+        log.close();
+    }
+}
@@ -0,0 +1,56 @@
+package org.example.coronasniffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventLogTest {
+    private final List<String> lines = new ArrayList<>();
+
+    private void init(int minLevel) {
+        EventLog.init(new EventLog.Output() {
+            @Override
+            public void write(int level, String tag, String message) {
+                lines.add(level + " " + tag + " " + message);
+            }
+        }, minLevel);
+    }
+
+    @After
+    public void tearDown() {
+        EventLog.init(null, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testFormatAndLevel() {
+        EventLog.Type verbose = new EventLog.Type("tag", "v", EventLog.VERBOSE, 100);
+        EventLog.Type debug = new EventLog.Type("tag", "d", EventLog.DEBUG, 100);
+        init(EventLog.DEBUG);
+        assertNull(EventLog.begin(verbose));
+        EventLog.begin(debug).hex("rpi", 0xebaca2b735c90d01L, 0x0361e8ca6ec167f2L)
+                .hex("aem", 0xdeadbeef).num("rssi", -67).num("mean", -60.5).str("s", "x").emit();
+        assertEquals(1, lines.size());
+        assertEquals("3 tag d rpi=ebaca2b735c90d010361e8ca6ec167f2 aem=deadbeef rssi=-67 mean=-60.5 s=x",
+                lines.get(0));
+    }
+
+    @Test
+    public void testRateLimit() {
+        EventLog.Type type = new EventLog.Type("tag", "e", EventLog.INFO, 3);
+        init(EventLog.VERBOSE);
+        int emitted = 0;
+        for (int i = 0; i < 100; ++i) {
+            EventLog.Event e = EventLog.begin(type);
+            if (e == null) continue;
+            e.num("i", i).emit();
+            emitted++;
+        }
+        // the initial burst, give or take refills during the loop
+        assertTrue(emitted >= 3 && emitted < 10);
+        assertEquals(emitted, lines.size());
+    }
+}
@@ -0,0 +1,114 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IdentityMultiplexerTest {
+    // start of an EN interval and a 2-second slice
+    private static final long T0 = 1599999600000L;
+
+    @Test
+    public void testIdentitiesAreTimeSlicedOverSets() {
+        // sets 0 and 1 get 3 identities, sets 2 and 3 get 2
+        IdentityMultiplexer m = new IdentityMultiplexer(10, 4, 2000, -7, new Random(1));
+        assertEquals(4, m.getSetCount());
+
+        m.advanceTo(T0, null);
+        final int firstSlice = (int) (T0 / 2000);
+        for (int set = 0; set < 4; ++set) {
+            assertTrue(m.hasChanged(set));
+            assertEquals(set + 4 * (firstSlice % (set < 2 ? 3 : 2)), m.identityOn(set));
+        }
+        assertEquals(T0 + 2000, m.nextChangeMillis(T0));
+        assertEquals(T0 + 2000, m.nextChangeMillis(T0 + 1999));
+
+        final int[] counts = new int[10];
+        for (long t = T0 + 2000; t <= T0 + 60000; t += 2000) {
+            m.advanceTo(t + 1, null);
+            for (int set = 0; set < 4; ++set) {
+                final int identity = m.identityOn(set);
+                assertEquals(set, identity % 4);
+                // every set changes in every slice
+                assertTrue(m.hasChanged(set));
+                counts[identity]++;
+            }
+        }
+        // 30 slices, shared evenly
+        for (int i = 0; i < 10; ++i) assertEquals(i % 4 < 2 ? 10 : 15, counts[i]);
+
+        // no change within a slice
+        m.advanceTo(T0 + 60500, null);
+        for (int set = 0; set < 4; ++set) assertFalse(m.hasChanged(set));
+    }
+
+    @Test
+    public void testDedicatedSetsChangeAtIntervalBoundaries() {
+        IdentityMultiplexer m = new IdentityMultiplexer(3, 4, 2000, -7, new Random(2));
+        assertEquals(3, m.getSetCount());
+        // the first keys are rolled in
+        assertTrue(m.advanceTo(T0 + 1000, null));
+        m.prepareNextDays();
+        assertEquals(T0 + 600000, m.nextChangeMillis(T0 + 1000));
+        final byte[] rpi = m.getRpi(1);
+        m.advanceTo(T0 + 599999, null);
+        assertFalse(m.hasChanged(1));
+        assertFalse(m.advanceTo(T0 + 600000, null));
+        assertTrue(m.hasChanged(1));
+        assertEquals(1, m.identityOn(1));
+        assertFalse(Arrays.equals(rpi, m.getRpi(1)));
+    }
+
+    @Test
+    public void testManifest() {
+        StringWriter out = new StringWriter();
+        BroadcastLog log = new BroadcastLog(out);
+        IdentityMultiplexer m = new IdentityMultiplexer(5, 2, 1000, -7, new Random(3));
+        m.advanceTo(T0, null);
+        m.logState(log, T0);
+        String[] lines = out.toString().split("\n");
+        assertEquals(11, lines.length);
+        assertEquals("{\"advertisingSets\":2,\"identities\":5,\"sliceMillis\":1000}", lines[0]);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(lines[1 + 2 * i].contains("\"identity\":" + i + ","));
+            keys.add(lines[1 + 2 * i].substring(0, lines[1 + 2 * i].indexOf(',')));
+            assertTrue(lines[2 + 2 * i].contains("\"rpi\":\"" + BeaconCrypto.bytesToHex(m.getRpi(i))));
+        }
+        assertEquals(5, keys.size());
+
+        // slices do not get logged, the new RPIs do
+        out.getBuffer().setLength(0);
+        m.advanceTo(T0 + 1000, log);
+        assertEquals("", out.toString());
+        m.advanceTo(T0 + 600000, log);
+        assertEquals(5, out.toString().split("\n").length);
+        assertTrue(out.toString().contains("\"enInterval\":2666667"));
+    }
+
+    @Test
+    public void testAemMetadata() {
+        StringWriter out = new StringWriter();
+        IdentityMultiplexer m = new IdentityMultiplexer(2, 1, 2000, -7, new Random(4));
+        m.advanceTo(T0, null);
+        m.logState(new BroadcastLog(out), T0);
+        // the key of identity 1, as logged
+        final String keyLine = out.toString().split("\n")[3];
+        final byte[] tek = BeaconCrypto.hexToBytes(
+                keyLine.replaceFirst(".*\"diagnosisKey\":\"([0-9a-f]{32})\".*", "$1"));
+        final byte[] aem = m.getAem(1);
+        assertTrue(out.toString().contains("\"aem\":\"" + BeaconCrypto.bytesToHex(aem) + "\""));
+
+        final int metadata = new BeaconCrypto.AppleGoogleEN.AemCipher().init(tek)
+                .apply(m.getRpi(1), 0, ByteBuffer.wrap(aem).getInt());
+        assertEquals(0x40f90000, metadata);
+        assertEquals(-7, BeaconCrypto.AppleGoogleEN.txPowerOf(metadata));
+    }
+}
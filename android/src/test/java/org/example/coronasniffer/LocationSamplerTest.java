@@ -0,0 +1,48 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocationSamplerTest {
+    private static final long T0 = 1600000000000L;
+
+    private static BeaconStats.Snapshot snapshot(long time, long sightings, long geotagged, long arrivals,
+                                                 int nearby) {
+        return new BeaconStats.Snapshot(time, 0, sightings, geotagged, arrivals, 0, 0, nearby, nearby,
+                0, 0, 0, 0);
+    }
+
+    @Test
+    public void testModes() {
+        LocationSampler sampler = new LocationSampler(10000);
+        assertSame(LocationSampler.ACTIVE, sampler.getMode());
+        // the devices of the first batch do not count as new
+        assertFalse(sampler.update(snapshot(T0, 3, 0, 3, 3)));
+        assertSame(LocationSampler.ACTIVE, sampler.getMode());
+
+        assertTrue(sampler.update(snapshot(T0 + 1000, 7, 0, 4, 4)));
+        assertSame(LocationSampler.BUSY, sampler.getMode());
+        assertFalse(sampler.update(snapshot(T0 + 10999, 11, 4, 4, 4)));
+        assertTrue(sampler.update(snapshot(T0 + 11000, 15, 8, 4, 4)));
+        assertSame(LocationSampler.ACTIVE, sampler.getMode());
+
+        assertTrue(sampler.update(snapshot(T0 + 60000, 15, 8, 4, 0)));
+        assertSame(LocationSampler.IDLE, sampler.getMode());
+        assertEquals(LocationSampler.Priority.PASSIVE, sampler.getMode().priority);
+        // new devices wake it up even before they count as nearby
+        assertTrue(sampler.update(snapshot(T0 + 61000, 16, 8, 5, 0)));
+        assertSame(LocationSampler.BUSY, sampler.getMode());
+    }
+
+    @Test
+    public void testCounters() {
+        LocationSampler sampler = new LocationSampler();
+        sampler.onFix();
+        sampler.onFix();
+        sampler.update(snapshot(T0, 10, 5, 1, 1));
+        assertEquals(2, sampler.getFixes());
+        assertEquals(5, sampler.getGeotaggedSightings());
+        assertEquals("active, 2 fixes, 5/10 sightings geotagged (2.5 per fix)", sampler.toString());
+    }
+}
@@ -0,0 +1,94 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocationTrackTest {
+    private static final long T0 = 1600000000000L;
+
+    @Test
+    public void testDeltaEncoding() {
+        LocationTrack track = new LocationTrack();
+        assertEquals(0, track.append(new GeoPosition(60.1699123, 24.9384567, 12.46f, T0)));
+        // large jumps wrap around the int deltas
+        assertEquals(1, track.append(new GeoPosition(-89.9999999, -179.9999999, 2000, T0 + 1000)));
+        assertEquals(2, track.append(new GeoPosition(89.9999999, 179.9999999, 0, T0 + 2000)));
+        for (int i = 3; i < 1000; ++i) track.append(new GeoPosition(i * 1e-3, -i * 1e-3, i, T0 + i * 1000));
+        assertEquals(1000, track.size());
+
+        assertEquals(T0, track.time(0));
+        assertEquals(60.1699123, track.latitude(0), 1e-9);
+        assertEquals(24.9384567, track.longitude(0), 1e-9);
+        assertEquals(12.5f, track.accuracy(0), 0);
+        assertEquals(-89.9999999, track.latitude(1), 1e-9);
+        assertEquals(-179.9999999, track.longitude(1), 1e-9);
+        assertEquals(179.9999999, track.longitude(2), 1e-9);
+        assertEquals(0.999, track.latitude(999), 1e-9);
+        assertEquals(999, track.accuracy(999), 0);
+        assertEquals(T0 + 999000, track.time(999));
+    }
+
+    @Test
+    public void testFixAtAndInterpolation() {
+        LocationTrack track = new LocationTrack();
+        SightingRecord.Position p = new SightingRecord.Position();
+        assertEquals(LocationTrack.NO_FIX, track.fixAt(T0));
+        track.positionAt(T0, p);
+        assertFalse(p.valid);
+
+        track.append(new GeoPosition(60.0, 25.0, 10, T0));
+        track.append(new GeoPosition(60.001, 25.002, 30, T0 + 10000));
+        // an out-of-order fix gets the time of the previous one
+        track.append(new GeoPosition(60.002, 25.002, 5, T0 + 5000));
+
+        assertEquals(LocationTrack.NO_FIX, track.fixAt(T0 - 1));
+        assertEquals(0, track.fixAt(T0));
+        assertEquals(0, track.fixAt(T0 + 9999));
+        assertEquals(2, track.fixAt(T0 + 10000));
+        assertEquals(T0 + 10000, track.time(2));
+
+        track.positionAt(T0 - 1000, p);
+        assertFalse(p.valid);
+        track.positionAt(0, T0 + 2500, p);
+        assertTrue(p.valid);
+        assertEquals(60.00025, p.latitude, 1e-9);
+        assertEquals(25.0005, p.longitude, 1e-9);
+        assertEquals(30, p.accuracy, 0);
+        // the fix known when seen was older than the time
+        track.positionAt(0, T0 + 20000, p);
+        assertEquals(60.001, p.latitude, 1e-9);
+        track.positionAt(2, T0 + 20000, p);
+        assertEquals(60.002, p.latitude, 1e-9);
+        assertEquals(5, p.accuracy, 0);
+    }
+
+    @Test
+    public void testTrimAndLongSessions() {
+        LocationTrack track = new LocationTrack();
+        // a fix a day for 40 days
+        for (int i = 0; i < 40; ++i) track.append(new GeoPosition(60 + i * 1e-3, 25.0, 10, T0 + i * 86400000L));
+        assertEquals(T0 + 39 * 86400000L, track.time(39));
+        assertEquals(39, track.fixAt(T0 + 39 * 86400000L + 1));
+
+        track.trimBefore(30);
+        assertEquals(30, track.first());
+        assertEquals(40, track.size());
+        assertEquals(60.03, track.latitude(30), 1e-9);
+        assertEquals(LocationTrack.NO_FIX, track.fixAt(T0 + 29 * 86400000L));
+        assertEquals(30, track.fixAt(T0 + 30 * 86400000L));
+        // the indices continue
+        assertEquals(40, track.append(new GeoPosition(61.0, 25.0, 10, T0 + 40 * 86400000L)));
+        SightingRecord.Position p = new SightingRecord.Position();
+        track.positionAt(39, T0 + 39 * 86400000L + 43200000L, p);
+        assertEquals((60.039 + 61.0) / 2, p.latitude, 1e-9);
+
+        // trimming everything, and growing again
+        track.trimBefore(100);
+        assertEquals(41, track.first());
+        assertEquals(LocationTrack.NO_FIX, track.fixAt(T0 + 50 * 86400000L));
+        for (int i = 0; i < 100; ++i) track.append(new GeoPosition(62.0, 25.0, 10, T0 + (41 + i) * 86400000L));
+        assertEquals(140, track.fixAt(T0 + 200 * 86400000L));
+        assertEquals(T0 + 140 * 86400000L, track.time(140));
+    }
+}
@@ -0,0 +1,80 @@
+package org.example.coronasniffer;
+
+import org.example.coronasniffer.TestFixtures.ManualClock;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @After
+    public void tearDown() {
+        EventLog.init(null, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testBounds125() {
+        assertArrayEquals(new long[] { 1, 2, 5, 10, 20, 50, 100 }, Metrics.bounds125(1, 100));
+        assertArrayEquals(new long[] { 100, 200, 500, 1000 }, Metrics.bounds125(100, 1000));
+    }
+
+    @Test
+    public void testHistogram() {
+        Metrics.Histogram h = new Metrics.Histogram("test_histogram", new long[] { 10, 20, 50 });
+        assertEquals(0, h.percentile(50));
+        for (int i = 1; i <= 100; ++i) h.record(i);
+        h.record(15, 10);
+        assertEquals(110, h.getCount());
+        assertEquals(100, h.getMax());
+        assertEquals((5050 + 150) / 110.0, h.getMean(), 1e-9);
+        assertEquals(10, h.getBucketCount(0));
+        assertEquals(20, h.getBucketCount(1));
+        assertEquals(30, h.getBucketCount(2));
+        assertEquals(50, h.getBucketCount(3));
+        assertEquals(10, h.percentile(1));
+        assertEquals(50, h.percentile(50));
+        assertEquals(100, h.percentile(99));
+
+        try {
+            new Metrics.Histogram("test_histogram", new long[] { 1 });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("duplicate"));
+        }
+        String dump = Metrics.dump();
+        assertTrue(dump, dump.contains("test_histogram n=110 mean=47.3 max=100 <=10:10 <=20:20 <=50:30 >50:50\n"));
+    }
+
+    @Test
+    public void testReporter() {
+        final List<String> lines = new ArrayList<>();
+        EventLog.init(new EventLog.Output() {
+            @Override
+            public void write(int level, String tag, String message) {
+                lines.add(message);
+            }
+        }, EventLog.INFO);
+        Metrics.Counter counter = new Metrics.Counter("test_counter");
+        counter.add(5);
+        Metrics.Gauge gauge = new Metrics.Gauge("test_gauge");
+        Metrics.Histogram histogram = new Metrics.Histogram("test_latency", Metrics.bounds125(1, 1000));
+        ManualClock clock = new ManualClock();
+        Metrics.Reporter reporter = new Metrics.Reporter(clock, 60000);
+
+        for (int i = 0; i < 30; ++i) counter.inc();
+        gauge.set(42);
+        histogram.record(3);
+        histogram.record(700);
+        clock.now += 59999;
+        assertFalse(reporter.maybeReport());
+        clock.now += 1;
+        assertTrue(reporter.maybeReport());
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line, line.startsWith("metrics "));
+        assertTrue(line, line.contains(" test_counter=35 test_counter_per_min=30.0 test_gauge=42 test_latency=2/5/700/700"));
+    }
+}
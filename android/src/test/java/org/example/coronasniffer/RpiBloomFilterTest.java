@@ -0,0 +1,185 @@
+package org.example.coronasniffer;
+
+import org.example.coronasniffer.TestFixtures.ManualClock;
+import org.example.coronasniffer.TestFixtures.RecordingSink;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RpiBloomFilterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int N = 80000;
+
+    /** @return the measured false positive rate of a filter of N random RPIs */
+    private static double measureFalsePositiveRate(double configured, long seed) {
+        RpiBloomFilter filter = RpiBloomFilter.create(N, configured);
+        Random rng = new Random(seed);
+        for (int i = 0; i < N; ++i) filter.put(rng.nextLong(), rng.nextLong());
+        // no false negatives
+        rng = new Random(seed);
+        for (int i = 0; i < N; ++i) assertTrue(filter.mightContain(rng.nextLong(), rng.nextLong()));
+
+        final int probes = 1000000;
+        int positives = 0;
+        for (int i = 0; i < probes; ++i) {
+            if (filter.mightContain(rng.nextLong(), rng.nextLong())) positives++;
+        }
+        final double measured = positives / (double) probes;
+        assertEquals(measured, filter.falsePositiveRate(), 0.2 * configured);
+        return measured;
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        assertEquals(0.01, measureFalsePositiveRate(0.01, 1), 0.002);
+        assertEquals(0.001, measureFalsePositiveRate(0.001, 2), 0.0003);
+        assertEquals(0.1, measureFalsePositiveRate(0.1, 3), 0.02);
+    }
+
+    @Test
+    public void testSize() {
+        RpiBloomFilter filter = RpiBloomFilter.create(N, 0.01);
+        assertEquals(7, filter.getHashCount());
+        assertEquals(95851, filter.sizeBytes(), 100);
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        RpiBloomFilter filter = RpiBloomFilter.create(1000, 0.01);
+        final byte[] rpi = BeaconCrypto.AppleGoogleEN.rollingProximityID(
+                BeaconCrypto.AppleGoogleEN.keyFromString("example"), 1600000000);
+        filter.put(RpiTable.high(rpi, 0), RpiTable.low(rpi, 0));
+        File file = new File(tmp.getRoot(), "f.bloom");
+        filter.write(file);
+        assertFalse(new File(tmp.getRoot(), "f.bloom.tmp").exists());
+
+        RpiBloomFilter read = RpiBloomFilter.read(file);
+        assertEquals(filter.getBitCount(), read.getBitCount());
+        assertEquals(filter.getHashCount(), read.getHashCount());
+        assertTrue(read.mightContain(rpi, 0));
+        assertFalse(read.mightContain(0, 0));
+
+        // a corrupted bit count is not allocated
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(8);
+            f.writeInt(Integer.MAX_VALUE);
+        }
+        try {
+            RpiBloomFilter.read(file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("file size"));
+        }
+    }
+
+    private static SightingRecord sighting(long rpiLow, long firstSeen, long lastSeen) {
+        SightingRecord r = new SightingRecord();
+        r.rpiHigh = 0x1234567890abcdefL;
+        r.rpiLow = rpiLow;
+        r.firstSeen = firstSeen;
+        r.lastSeen = lastSeen;
+        return r;
+    }
+
+    @Test
+    public void testFilterSink() throws Exception {
+        final File dir = new File(tmp.getRoot(), "filters");
+        final ManualClock clock = new ManualClock();
+        RecordingSink next = new RecordingSink();
+        RpiFilterSink sink = new RpiFilterSink(next, dir, 1000, 0.01, clock, 60000);
+
+        // EN day 18518 starts at 1599955200
+        final long day = 1599955200;
+        assertEquals(18518, RpiFilterSink.enDay(day));
+        sink.write(sighting(1, day + 12 * 3600, day + 12 * 3600 + 60));
+        // within the matching tolerance of the next day
+        sink.write(sighting(2, day + 23 * 3600, day + 23 * 3600 + 60));
+        assertEquals(2, next.records.size());
+        sink.flush();
+        assertFalse(dir.exists());
+        clock.now += 60000;
+        sink.flush();
+        assertTrue(RpiFilterSink.load(dir, 18518).mightContain(0x1234567890abcdefL, 1));
+        assertTrue(RpiFilterSink.load(dir, 18518).mightContain(0x1234567890abcdefL, 2));
+        assertFalse(RpiFilterSink.load(dir, 18519).mightContain(0x1234567890abcdefL, 1));
+        assertTrue(RpiFilterSink.load(dir, 18519).mightContain(0x1234567890abcdefL, 2));
+        assertNull(RpiFilterSink.load(dir, 18520));
+        sink.close();
+        assertTrue(next.closed);
+
+        // extended after a restart
+        sink = new RpiFilterSink(new RecordingSink(), dir, 1000, 0.01, clock, 60000);
+        sink.write(sighting(3, day + 3600, day + 3600));
+        sink.close();
+        RpiBloomFilter filter = RpiFilterSink.load(dir, 18518);
+        assertTrue(filter.mightContain(0x1234567890abcdefL, 1));
+        assertTrue(filter.mightContain(0x1234567890abcdefL, 3));
+        // the day before too
+        assertTrue(RpiFilterSink.load(dir, 18517).mightContain(0x1234567890abcdefL, 3));
+
+        // old days are deleted
+        sink = new RpiFilterSink(new RecordingSink(), dir, 1000, 0.01, clock, 60000);
+        sink.write(sighting(4, day + 14 * 86400 + 43200, day + 14 * 86400 + 43200));
+        sink.close();
+        assertNull(RpiFilterSink.load(dir, 18517));
+        assertNull(RpiFilterSink.load(dir, 18518));
+        assertNotNull(RpiFilterSink.load(dir, 18519));
+        assertNotNull(RpiFilterSink.load(dir, 18532));
+    }
+
+    @Test
+    public void testFilterSinkReplaysJournal() throws Exception {
+        final File dir = new File(tmp.getRoot(), "filters");
+        final File journal = new File(tmp.getRoot(), "sightings.bin");
+        final ManualClock clock = new ManualClock();
+        final long day = 1599955200;
+        SightingJournal.Writer writer = new SightingJournal.Writer(journal);
+        RpiFilterSink sink = new RpiFilterSink(writer, dir, 1000, 0.01, clock, 60000);
+        assertEquals(0, sink.replayJournal(journal));
+        sink.write(sighting(1, day + 12 * 3600, day + 12 * 3600));
+        clock.now += 60000;
+        sink.flush();
+        // in the journal but not saved to the filters when the process is killed
+        sink.write(sighting(2, day + 12 * 3600, day + 12 * 3600));
+        writer.flush();
+        assertFalse(RpiFilterSink.load(dir, 18518).mightContain(0x1234567890abcdefL, 2));
+
+        writer = new SightingJournal.Writer(journal);
+        sink = new RpiFilterSink(writer, dir, 1000, 0.01, clock, 60000);
+        assertEquals(1, sink.replayJournal(journal));
+        RpiBloomFilter filter = RpiFilterSink.load(dir, 18518);
+        assertTrue(filter.mightContain(0x1234567890abcdefL, 1));
+        assertTrue(filter.mightContain(0x1234567890abcdefL, 2));
+        sink.write(sighting(3, day + 12 * 3600, day + 12 * 3600));
+        sink.close();
+
+        // nothing to replay after a clean shutdown
+        writer = new SightingJournal.Writer(journal);
+        sink = new RpiFilterSink(writer, dir, 1000, 0.01, clock, 60000);
+        assertEquals(0, sink.replayJournal(journal));
+        assertTrue(RpiFilterSink.load(dir, 18518).mightContain(0x1234567890abcdefL, 3));
+        sink.close();
+    }
+
+    @Test
+    public void testFilterSinkUnreadableFilter() throws Exception {
+        final File dir = tmp.newFolder("filters");
+        // as if the file was torn
+        assertTrue(RpiFilterSink.file(dir, 18518).createNewFile());
+        RecordingSink next = new RecordingSink();
+        RpiFilterSink sink = new RpiFilterSink(next, dir, 1000, 0.01, new ManualClock(), 60000);
+        sink.write(sighting(1, 1599955200 + 12 * 3600, 1599955200 + 12 * 3600));
+        assertEquals(1, next.records.size());
+        sink.close();
+        assertTrue(RpiFilterSink.load(dir, 18518).mightContain(0x1234567890abcdefL, 1));
+    }
+}
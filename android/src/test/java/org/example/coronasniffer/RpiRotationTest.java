@@ -0,0 +1,158 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class RpiRotationTest {
+    // EN interval 2666666, which is 2666592 + 74 (day start + offset)
+    private static final long T0 = 1599999600000L;
+
+    @Test
+    public void testRpisMatchTheKeyAndRotateAtIntervalBoundaries() {
+        RpiRotation rotation = new RpiRotation(new Random(1));
+        assertTrue(rotation.advanceTo(T0));
+        assertTrue(rotation.isKeyRolled());
+        assertEquals(2666666, rotation.getInterval());
+        assertEquals(2666592, rotation.getRollingStartInterval());
+        final byte[] tek = rotation.getTemporaryExposureKey();
+        assertArrayEquals(BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, T0 / 1000), rotation.getRpi());
+
+        assertFalse(rotation.advanceTo(T0 + 599999));
+        assertEquals(T0 + 600000, RpiRotation.nextIntervalMillis(T0 + 599999));
+        assertEquals(T0 + 600000, RpiRotation.nextIntervalMillis(T0));
+        final byte[] previous = rotation.getRpi();
+        assertTrue(rotation.advanceTo(T0 + 600000));
+        assertFalse(rotation.isKeyRolled());
+        assertFalse(Arrays.equals(previous, rotation.getRpi()));
+        assertArrayEquals(BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, T0 / 1000 + 600), rotation.getRpi());
+    }
+
+    @Test
+    public void testKeyRollsDaily() {
+        RpiRotation rotation = new RpiRotation(new Random(2));
+        rotation.advanceTo(T0);
+        final byte[] tek = rotation.getTemporaryExposureKey();
+        // last interval of the day
+        final long lastOfDay = (2666592L + 143) * 600000;
+        rotation.advanceTo(lastOfDay);
+        assertFalse(rotation.isKeyRolled());
+        assertArrayEquals(tek, rotation.getTemporaryExposureKey());
+
+        rotation.advanceTo(lastOfDay + 600000);
+        assertTrue(rotation.isKeyRolled());
+        assertEquals(2666592 + 144, rotation.getRollingStartInterval());
+        final byte[] nextTek = rotation.getTemporaryExposureKey();
+        assertFalse(Arrays.equals(tek, nextTek));
+        assertArrayEquals(BeaconCrypto.AppleGoogleEN.rollingProximityID(nextTek, lastOfDay / 1000 + 600),
+                rotation.getRpi());
+
+        // skipping days gets fresh keys as well
+        rotation.advanceTo(lastOfDay + 10 * 86400000L);
+        assertTrue(rotation.isKeyRolled());
+        assertFalse(Arrays.equals(nextTek, rotation.getTemporaryExposureKey()));
+    }
+
+    /** Counts the generated keys */
+    @SuppressWarnings("serial") // never serialized
+    private static class CountingRandom extends Random {
+        int keys = 0;
+
+        CountingRandom(long seed) {
+            super(seed);
+        }
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            keys++;
+            super.nextBytes(bytes);
+        }
+    }
+
+    @Test
+    public void testPrepareNextDay() {
+        CountingRandom random = new CountingRandom(5);
+        RpiRotation rotation = new RpiRotation(random);
+        rotation.advanceTo(T0);
+        assertEquals(1, random.keys);
+        assertTrue(rotation.prepareNextDay());
+        assertFalse(rotation.prepareNextDay());
+        assertEquals(2, random.keys);
+
+        // the prepared day is swapped in without generating a key
+        final long nextDay = (2666592L + 144) * 600000;
+        rotation.advanceTo(nextDay);
+        assertTrue(rotation.isKeyRolled());
+        assertEquals(2, random.keys);
+        final byte[] tek = rotation.getTemporaryExposureKey();
+        assertArrayEquals(BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, nextDay / 1000), rotation.getRpi());
+        assertTrue(rotation.prepareNextDay());
+        assertEquals(3, random.keys);
+
+        // an unprepared day is generated on the spot
+        rotation.advanceTo(nextDay + 2 * 86400000L);
+        assertTrue(rotation.isKeyRolled());
+        assertEquals(4, random.keys);
+        assertFalse(Arrays.equals(tek, rotation.getTemporaryExposureKey()));
+    }
+
+    @Test
+    public void testBroadcastLog() {
+        StringWriter out = new StringWriter();
+        BroadcastLog log = new BroadcastLog(out);
+        final byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("example");
+        log.key(3, tek, 2666592, RpiRotation.ROLLING_PERIOD);
+        log.broadcast(T0 + 12, 3, 2666666, new byte[16], new byte[] { 1, 2, 3, 4 });
+        assertNull(log.getError());
+        assertEquals("{\"diagnosisKey\":\"" + BeaconCrypto.bytesToHex(tek) + "\",\"identity\":3"
+                + ",\"maxUnixTime\":1600041599,\"minUnixTime\":1599955200"
+                + ",\"rollingPeriod\":144,\"rollingStartIntervalNumber\":2666592}\n"
+                + "{\"aem\":\"01020304\",\"enInterval\":2666666,\"identity\":3"
+                + ",\"rpi\":\"00000000000000000000000000000000\",\"time\":1599999600012}\n",
+                out.toString());
+    }
+
+    @Test
+    public void testAemRoundTrip() throws Exception {
+        RpiRotation rotation = new RpiRotation(new Random(4));
+        rotation.advanceTo(T0);
+        final byte[] tek = rotation.getTemporaryExposureKey();
+        final int metadata = BeaconCrypto.AppleGoogleEN.metadata(-21);
+        assertEquals(0x40eb0000, metadata);
+        final int aem = rotation.getAem(metadata);
+        assertEquals(aem, BeaconCrypto.AppleGoogleEN.associatedEncryptedMetadata(tek, rotation.getRpi(), metadata));
+
+        // same as AES-CTR with the RPI as the IV
+        final Cipher ctr = Cipher.getInstance("AES/CTR/NoPadding");
+        ctr.init(Cipher.ENCRYPT_MODE,
+                new SecretKeySpec(BeaconCrypto.AppleGoogleEN.associatedEncryptedMetadataKeyFromTEK(tek), "AES"),
+                new IvParameterSpec(rotation.getRpi()));
+        assertEquals(aem, ByteBuffer.wrap(ctr.doFinal(ByteBuffer.allocate(4).putInt(metadata).array())).getInt());
+
+        // a batch of the day's AEMs
+        final int n = 10;
+        final byte[] rpis = new byte[n * 16];
+        final int[] aems = new int[n + 1];
+        for (int i = 0; i < n; ++i) {
+            rotation.advanceTo(T0 + i * 600000L);
+            System.arraycopy(rotation.getRpi(), 0, rpis, i * 16, 16);
+            aems[i + 1] = rotation.getAem(BeaconCrypto.AppleGoogleEN.metadata(i));
+        }
+        BeaconCrypto.AppleGoogleEN.AemCipher cipher = new BeaconCrypto.AppleGoogleEN.AemCipher().init(tek);
+        cipher.apply(rpis, 0, aems, 1, n);
+        assertEquals(0, aems[0]);
+        for (int i = 0; i < n; ++i) {
+            assertTrue(BeaconCrypto.AppleGoogleEN.isMetadataVersion1(aems[i + 1]));
+            assertEquals(i, BeaconCrypto.AppleGoogleEN.txPowerOf(aems[i + 1]));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RpiTableTest {
+    @Test
+    public void testPutAndGet() {
+        RpiTable table = new RpiTable();
+        Random rng = new Random(1234);
+        final int n = 10000;
+        long[] ids = new long[2 * n];
+        for (int i = 0; i < ids.length; ++i) ids[i] = rng.nextLong();
+        for (int i = 0; i < n; ++i) {
+            assertEquals(RpiTable.ABSENT, table.put(ids[2 * i], ids[2 * i + 1], i));
+        }
+        assertEquals(n, table.size());
+        for (int i = 0; i < n; ++i) {
+            assertEquals(i, table.get(ids[2 * i], ids[2 * i + 1]));
+            // same high half, different low half
+            assertEquals(RpiTable.ABSENT, table.get(ids[2 * i], ~ids[2 * i + 1]));
+        }
+        assertEquals(7, table.put(ids[14], ids[15], 70));
+        assertEquals(70, table.get(ids[14], ids[15]));
+        assertEquals(n, table.size());
+    }
+
+    @Test
+    public void testRemove() {
+        // a small capacity and few distinct hashes to get long probe sequences
+        RpiTable table = new RpiTable();
+        final int n = 200;
+        for (int i = 0; i < n; ++i) table.put(i % 5, i, i);
+        for (int i = 0; i < n; i += 3) assertEquals(i, table.remove(i % 5, i));
+        assertEquals(RpiTable.ABSENT, table.remove(0, 0));
+        for (int i = 0; i < n; ++i) {
+            assertEquals(i % 3 == 0 ? RpiTable.ABSENT : i, table.get(i % 5, i));
+        }
+        assertEquals(n - (n + 2) / 3, table.size());
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(RpiTable.ABSENT, table.get(1, 1));
+    }
+
+    @Test
+    public void testBytes() {
+        byte[] rpi = BeaconCrypto.hexToBytes("0001020304050607f8f9fafbfcfdfeff");
+        assertEquals(0x0001020304050607L, RpiTable.high(rpi, 0));
+        assertEquals(0xf8f9fafbfcfdfeffL, RpiTable.low(rpi, 0));
+        RpiTable table = new RpiTable(1);
+        table.put(rpi, 0, 3);
+        assertEquals(3, table.get(RpiTable.high(rpi, 0), RpiTable.low(rpi, 0)));
+    }
+}
@@ -0,0 +1,133 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ScanRecordDecoderTest {
+    private static final byte[] FLAGS = { 0x02, 0x01, 0x1a };
+
+    /** The AD structures of an advertisement like those built by BeaconBuilder */
+    private static byte[] advertisement(int uuid16, byte[] serviceData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(FLAGS, 0, FLAGS.length);
+        // complete list of 16-bit service UUIDs
+        out.write(3);
+        out.write(0x03);
+        out.write(uuid16);
+        out.write(uuid16 >> 8);
+        out.write(3 + serviceData.length);
+        out.write(ScanRecordDecoder.AD_TYPE_SERVICE_DATA_16);
+        out.write(uuid16);
+        out.write(uuid16 >> 8);
+        out.write(serviceData, 0, serviceData.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] gaenAdvertisement(byte[] rpi, int aem) {
+        byte[] aemBytes = ByteBuffer.allocate(BeaconCrypto.AppleGoogleEN.AEM_BYTES).putInt(aem).array();
+        return advertisement(BeaconCrypto.AppleGoogleEN.SERVICE_UUID_16,
+                BeaconCrypto.AppleGoogleEN.buildPayload(rpi, aemBytes));
+    }
+
+    @Test
+    public void testGaen() {
+        byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("foo");
+        byte[] rpi = BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, 1600000000L);
+        int aem = BeaconCrypto.AppleGoogleEN.associatedEncryptedMetadata(tek, rpi,
+                BeaconCrypto.AppleGoogleEN.metadata(-7));
+
+        ScanRecordDecoder.Key key = new ScanRecordDecoder.Key();
+        // scan records are padded with zeros to 62 bytes
+        byte[] record = new byte[62];
+        byte[] ad = gaenAdvertisement(rpi, aem);
+        System.arraycopy(ad, 0, record, 0, ad.length);
+        assertEquals(ScanRecordDecoder.GAEN, ScanRecordDecoder.decode(record, key));
+        assertEquals(RpiTable.high(rpi, 0), key.high);
+        assertEquals(RpiTable.low(rpi, 0), key.low);
+        assertEquals(aem, key.aem);
+    }
+
+    @Test
+    public void testDp3t() {
+        byte[] ephId = BeaconCrypto.DP3T.generateEphId(BeaconCrypto.DP3T.keyFromString("foo"), 1);
+        ScanRecordDecoder.Key key = new ScanRecordDecoder.Key();
+        key.aem = 1;
+        assertEquals(ScanRecordDecoder.DP3T,
+                ScanRecordDecoder.decode(advertisement(BeaconCrypto.DP3T.SERVICE_UUID_16, ephId), key));
+        assertEquals(RpiTable.high(ephId, 0), key.high);
+        assertEquals(RpiTable.low(ephId, 0), key.low);
+        assertEquals(0, key.aem);
+    }
+
+    @Test
+    public void testOtherAndMalformed() {
+        byte[] rpi = new byte[16];
+        ScanRecordDecoder.Key key = new ScanRecordDecoder.Key();
+        // Eddystone UID
+        assertEquals(ScanRecordDecoder.NONE, ScanRecordDecoder.decode(advertisement(0xFEAA, new byte[20]), key));
+        // wrong length of the service data
+        assertEquals(ScanRecordDecoder.NONE, ScanRecordDecoder.decode(
+                advertisement(BeaconCrypto.AppleGoogleEN.SERVICE_UUID_16, new byte[16]), key));
+        // truncated
+        byte[] ad = gaenAdvertisement(rpi, 0);
+        assertEquals(ScanRecordDecoder.GAEN, ScanRecordDecoder.decode(ad, 0, ad.length, key));
+        assertEquals(ScanRecordDecoder.NONE, ScanRecordDecoder.decode(ad, 0, ad.length - 1, key));
+        // an offset into a larger buffer
+        byte[] shifted = new byte[ad.length + 5];
+        System.arraycopy(ad, 0, shifted, 5, ad.length);
+        assertEquals(ScanRecordDecoder.GAEN, ScanRecordDecoder.decode(shifted, 5, ad.length, key));
+        assertEquals(ScanRecordDecoder.NONE, ScanRecordDecoder.decode(new byte[0], key));
+        assertEquals(ScanRecordDecoder.NONE, key.protocol);
+    }
+
+    @Test
+    public void testCollector() {
+        byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("foo");
+        byte[] rpi1 = BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, 1600000000L);
+        byte[] rpi2 = BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, 1600000600L);
+        byte[] ephId = BeaconCrypto.DP3T.generateEphId(BeaconCrypto.DP3T.keyFromString("foo"), 1);
+
+        ScanRecordDecoder.Collector collector = new ScanRecordDecoder.Collector();
+        assertEquals(ScanRecordDecoder.GAEN, collector.onScanRecord(gaenAdvertisement(rpi1, 0x11223344), -60));
+        assertEquals(ScanRecordDecoder.GAEN, collector.onScanRecord(gaenAdvertisement(rpi2, 5), -80));
+        assertEquals(ScanRecordDecoder.GAEN, collector.onScanRecord(gaenAdvertisement(rpi1, 0x11223344), -70));
+        assertEquals(ScanRecordDecoder.DP3T,
+                collector.onScanRecord(advertisement(BeaconCrypto.DP3T.SERVICE_UUID_16, ephId), -50));
+        assertEquals(ScanRecordDecoder.NONE, collector.onScanRecord(advertisement(0xFEAA, new byte[20]), -40));
+
+        ScanRecordDecoder.Batch batch = collector.takeBatch();
+        assertEquals(3, batch.size());
+        assertEquals(RpiTable.high(rpi1, 0), batch.getHigh(0));
+        assertEquals(RpiTable.low(rpi1, 0), batch.getLow(0));
+        assertEquals(0x11223344, batch.getAem(0));
+        assertEquals(-70, batch.getRssi(0));
+        assertEquals(-65.0, batch.getMeanRssi(0), 1e-9);
+        assertEquals(2, batch.getCount(0));
+        assertEquals(ScanRecordDecoder.GAEN, batch.getProtocol(1));
+        assertEquals(-80, batch.getRssi(1));
+        assertEquals(ScanRecordDecoder.DP3T, batch.getProtocol(2));
+        assertEquals(RpiTable.low(ephId, 0), batch.getLow(2));
+
+        // the next batch starts empty, and grows past the initial capacity
+        assertEquals(0, collector.takeBatch().size());
+        byte[] rpi = new byte[16];
+        for (int i = 0; i < 100; ++i) {
+            rpi[15] = (byte) i;
+            collector.onScanRecord(gaenAdvertisement(rpi, i), -i);
+        }
+        collector.onScanRecord(gaenAdvertisement(rpi1, 0x11223344), -60);
+        batch = collector.takeBatch();
+        assertEquals(101, batch.size());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, batch.getLow(i));
+            assertEquals(i, batch.getAem(i));
+            assertEquals(1, batch.getCount(i));
+        }
+        assertEquals(RpiTable.high(rpi1, 0), batch.getHigh(100));
+        assertEquals(1, batch.getCount(100));
+    }
+}
@@ -0,0 +1,64 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+    private final ScanScheduler scheduler = new ScanScheduler.Adaptive(1000, 10000, 2000, 8000);
+    private long time = 1600000000000L;
+    private long arrivals = 0, departures = 0;
+
+    /** Runs batches for the given time, with new and pruned RPIs in the first one */
+    private boolean run(long millis, int newArrivals, int newDepartures) {
+        boolean changed = false;
+        final long end = time + millis;
+        arrivals += newArrivals;
+        departures += newDepartures;
+        while (time < end) {
+            time += scheduler.getScanPeriodMillis() + scheduler.getBetweenScanPeriodMillis();
+            changed |= scheduler.update(new BeaconStats.Snapshot(time, 0, 0, 0, arrivals, departures, 0, 0, 0,
+                    0, 0, 0, 0));
+        }
+        return changed;
+    }
+
+    @Test
+    public void testBacksOffWhenQuietAndResumesOnArrivals() {
+        assertFalse(run(9000, 0, 0));
+        assertEquals(0, scheduler.getBetweenScanPeriodMillis());
+        assertTrue(run(2000, 0, 0));
+        assertEquals(2000, scheduler.getBetweenScanPeriodMillis());
+
+        run(10000, 0, 0);
+        assertEquals(4000, scheduler.getBetweenScanPeriodMillis());
+        run(15000, 0, 0);
+        assertEquals(8000, scheduler.getBetweenScanPeriodMillis());
+        // capped
+        assertFalse(run(60000, 0, 0));
+        assertEquals(8000, scheduler.getBetweenScanPeriodMillis());
+        assertEquals(1000, scheduler.getScanPeriodMillis());
+
+        // a new RPI: back to continuous
+        assertTrue(run(1, 1, 0));
+        assertEquals(0, scheduler.getBetweenScanPeriodMillis());
+    }
+
+    @Test
+    public void testDeparturesHoldTheCurrentPeriod() {
+        run(11000, 0, 0);
+        assertEquals(2000, scheduler.getBetweenScanPeriodMillis());
+        for (int i = 0; i < 10; ++i) assertFalse(run(6000, 0, 1));
+        assertEquals(2000, scheduler.getBetweenScanPeriodMillis());
+        run(12000, 0, 0);
+        assertEquals(4000, scheduler.getBetweenScanPeriodMillis());
+    }
+
+    @Test
+    public void testContinuous() {
+        ScanScheduler continuous = new ScanScheduler.Continuous();
+        assertFalse(continuous.update(BeaconStats.Snapshot.EMPTY));
+        assertEquals(0, continuous.getBetweenScanPeriodMillis());
+        assertEquals(ScanScheduler.DEFAULT_SCAN_PERIOD_MILLIS, continuous.getScanPeriodMillis());
+    }
+}
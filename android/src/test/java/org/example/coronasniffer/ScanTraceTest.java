@@ -0,0 +1,80 @@
+package org.example.coronasniffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanTraceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static class Recorder implements ScanTrace.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onBatch(long time, int size) {
+            events.add("B " + time + " " + size);
+        }
+
+        @Override
+        public void onBeacon(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+            events.add("R " + rpiHigh + " " + rpiLow + " " + aem + " " + rssi + " " + meanRssi);
+        }
+
+        @Override
+        public void onLocation(GeoPosition l) {
+            events.add("L " + l.time + " " + l.latitude + " " + l.longitude + " " + l.accuracy);
+        }
+    }
+
+    private static void writeSession(ScanTrace.Listener out, long time) {
+        out.onLocation(new GeoPosition(60.1699, 24.9384, 12.5f, time - 500));
+        out.onBatch(time, 2);
+        out.onBeacon(0x0123456789abcdefL, -2, 0xa0b0c0d0, -67, -68.25);
+        out.onBeacon(1, 2, 0, -100, -99.5);
+        out.onBatch(time + 1100, 0);
+    }
+
+    private static List<String> readAll(File file, boolean expectCorrupted) throws Exception {
+        Recorder recorder = new Recorder();
+        try (ScanTrace.Reader reader = new ScanTrace.Reader(file)) {
+            while (reader.next(recorder)) ;
+            assertEquals(expectCorrupted, reader.isCorrupted());
+        }
+        return recorder.events;
+    }
+
+    @Test
+    public void testRoundTripAndAppend() throws Exception {
+        File file = new File(tmp.getRoot(), "scans.trace");
+        Recorder expected = new Recorder();
+        for (int i = 0; i < 2; ++i) {
+            try (ScanTrace.Writer writer = new ScanTrace.Writer(file)) {
+                writeSession(writer, 1600000000000L + i * 60000);
+                assertNull(writer.getError());
+            }
+            writeSession(expected, 1600000000000L + i * 60000);
+        }
+        assertEquals(expected.events, readAll(file, false));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        File file = new File(tmp.getRoot(), "scans.trace");
+        try (ScanTrace.Writer writer = new ScanTrace.Writer(file)) {
+            writeSession(writer, 1600000000000L);
+        }
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 15);
+        }
+        // the last beacon and the empty batch are lost
+        assertEquals(3, readAll(file, true).size());
+    }
+}
@@ -0,0 +1,224 @@
+package org.example.coronasniffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class SightingJournalTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static SightingRecord record(int i) {
+        SightingRecord r = new SightingRecord();
+        r.rpiHigh = 0xebaca2b735c90d01L + i;
+        r.rpiLow = 0xc361e8ca6ec167f2L;
+        r.aem = 0xdeadbeef;
+        r.firstSeen = 1600000000L + i;
+        r.lastSeen = r.firstSeen + 300;
+        r.nScans = 10 + i;
+        r.maxRssi = -40;
+        r.meanRssi = -62.347;
+        r.p10Rssi = -80;
+        r.medianRssi = -63 - i % 3;
+        r.p90Rssi = -45;
+        r.secondsPresent = 200 + i;
+        r.first.set(60.1699123, 24.9384567, 12.4f);
+        if (i % 2 == 0) r.last.set(-33.8688197, 151.2092955, 2000);
+        return r;
+    }
+
+    private static File write(File file, int n) throws IOException {
+        try (SightingJournal.Writer writer = new SightingJournal.Writer(file)) {
+            for (int i = 0; i < n; ++i) writer.write(record(i));
+        }
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = write(tmp.newFile(), 100);
+        // appending to an existing journal
+        write(file, 100);
+        assertEquals(4 + 200 * SightingJournal.FRAME_BYTES, file.length());
+
+        SightingRecord r = new SightingRecord();
+        try (SightingJournal.Reader reader = new SightingJournal.Reader(file)) {
+            for (int i = 0; i < 200; ++i) {
+                assertTrue(reader.next(r));
+                SightingRecord expected = record(i % 100);
+                assertEquals(expected.rpiHex(), r.rpiHex());
+                assertEquals("deadbeef", r.aemHex());
+                assertEquals(expected.firstSeen, r.firstSeen);
+                assertEquals(expected.lastSeen, r.lastSeen);
+                assertEquals(expected.nScans, r.nScans);
+                assertEquals(-40, r.maxRssi);
+                assertEquals(-62.35, r.meanRssi, 1e-9);
+                assertEquals(-80, r.p10Rssi);
+                assertEquals(expected.medianRssi, r.medianRssi);
+                assertEquals(-45, r.p90Rssi);
+                assertEquals(expected.secondsPresent, r.secondsPresent);
+                assertTrue(r.first.valid);
+                assertEquals(60.1699123, r.first.latitude, 1e-9);
+                assertEquals(24.9384567, r.first.longitude, 1e-9);
+                assertEquals(12, r.first.accuracy, 0);
+                assertEquals(i % 2 == 0, r.last.valid);
+                if (r.last.valid) assertEquals(151.2092955, r.last.longitude, 1e-9);
+            }
+            assertFalse(reader.next(r));
+            assertFalse(reader.isCorrupted());
+        }
+    }
+
+    @Test
+    public void testTruncatedAndCorrupted() throws IOException {
+        File file = write(tmp.newFile(), 3);
+        SightingRecord r = new SightingRecord();
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 5);
+        }
+        try (SightingJournal.Reader reader = new SightingJournal.Reader(file)) {
+            assertTrue(reader.next(r));
+            assertTrue(reader.next(r));
+            assertFalse(reader.next(r));
+            assertTrue(reader.isCorrupted());
+        }
+
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(4 + 10);
+            f.write(0x55);
+        }
+        try (SightingJournal.Reader reader = new SightingJournal.Reader(file)) {
+            assertFalse(reader.next(r));
+            assertTrue(reader.isCorrupted());
+        }
+    }
+
+    private static int count(File file) throws IOException {
+        SightingRecord r = new SightingRecord();
+        int n = 0;
+        try (SightingJournal.Reader reader = new SightingJournal.Reader(file)) {
+            while (reader.next(r)) ++n;
+            assertFalse(reader.isCorrupted());
+        }
+        return n;
+    }
+
+    @Test
+    public void testAppendAfterTornFrame() throws IOException {
+        File file = write(tmp.newFile(), 3);
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 10);
+        }
+        write(file, 100);
+        assertEquals(4 + 102 * SightingJournal.FRAME_BYTES, file.length());
+        assertEquals(102, count(file));
+
+        // a torn header is written again
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(2);
+        }
+        write(file, 5);
+        assertEquals(5, count(file));
+
+        // a file that is not a journal is left alone
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.writeInt(0x12345678);
+        }
+        try {
+            write(file, 1);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(4 + 5 * SightingJournal.FRAME_BYTES, file.length());
+    }
+
+    private static void append(File file, File mark, int n) throws IOException {
+        try (SightingJournal.Writer writer = new SightingJournal.Writer(file, new SightingJournal.Mark(mark))) {
+            for (int i = 0; i < n; ++i) writer.write(record(i));
+        }
+    }
+
+    @Test
+    public void testCheckedFromMark() throws IOException {
+        File file = tmp.newFile(), mark = new File(tmp.getRoot(), "journal.mark");
+        append(file, mark, 3);
+        assertEquals(file.length(), new SightingJournal.Mark(mark).getOffset());
+
+        // the frames before the mark are not checked again
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(4 + SightingJournal.FRAME_BYTES - 1);
+            f.write(0x55);
+        }
+        append(file, mark, 2);
+        assertEquals(4 + 5 * SightingJournal.FRAME_BYTES, file.length());
+        try (SightingJournal.Reader reader = new SightingJournal.Reader(file)) {
+            assertFalse(reader.next(new SightingRecord()));
+            assertTrue(reader.isCorrupted());
+        }
+
+        // but a torn frame after it is cut off
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(f.length());
+            f.write(new byte[10]);
+        }
+        append(file, mark, 1);
+        assertEquals(4 + 6 * SightingJournal.FRAME_BYTES, file.length());
+
+        // a journal shorter than the mark is checked in full, up to the corrupted frame
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(4 + 2 * SightingJournal.FRAME_BYTES);
+        }
+        append(file, mark, 1);
+        assertEquals(4 + SightingJournal.FRAME_BYTES, file.length());
+
+        // saved periodically while writing
+        file = tmp.newFile();
+        final int n = (int) (SightingJournal.Writer.MARK_INTERVAL_BYTES / SightingJournal.FRAME_BYTES) + 1;
+        SightingJournal.Writer writer = new SightingJournal.Writer(file, new SightingJournal.Mark(mark));
+        for (int i = 0; i < n; ++i) writer.write(record(i));
+        writer.flush();
+        assertEquals(file.length(), new SightingJournal.Mark(mark).getOffset());
+        writer.close();
+    }
+
+    @Test
+    public void testReadsV1Records() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(SightingJournal.RECORD_BYTES);
+        SightingJournal.encode(record(1), payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, SightingJournal.V1_RECORD_BYTES);
+
+        File file = tmp.newFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(SightingJournal.MAGIC);
+            out.writeShort(SightingJournal.V1_RECORD_BYTES);
+            out.write(payload.array(), 0, SightingJournal.V1_RECORD_BYTES);
+            out.writeInt((int) crc.getValue());
+        }
+        write(file, 1);
+
+        SightingRecord r = new SightingRecord();
+        try (SightingJournal.Reader reader = new SightingJournal.Reader(file)) {
+            assertTrue(reader.next(r));
+            assertEquals(record(1).nScans, r.nScans);
+            assertEquals(0, r.secondsPresent);
+            assertEquals(0, r.medianRssi);
+            assertFalse(r.toJson().contains("secondsPresent"));
+            assertTrue(reader.next(r));
+            assertEquals(record(0).secondsPresent, r.secondsPresent);
+            assertTrue(r.toJson().contains("\"secondsPresent\":200}"));
+            assertFalse(reader.next(r));
+            assertFalse(reader.isCorrupted());
+        }
+    }
+}
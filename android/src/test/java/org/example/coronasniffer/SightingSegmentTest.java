@@ -0,0 +1,241 @@
+package org.example.coronasniffer;
+
+import org.example.coronasniffer.TestFixtures.ManualClock;
+import org.example.coronasniffer.TestFixtures.RecordingSink;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SightingSegmentTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // EN day 18518 starts at 1599955200
+    private static final long DAY = 1599955200;
+
+    private static SightingRecord sighting(long rpiHigh, long rpiLow, long firstSeen) {
+        SightingRecord r = new SightingRecord();
+        r.rpiHigh = rpiHigh;
+        r.rpiLow = rpiLow;
+        r.aem = 0x12345678;
+        r.firstSeen = firstSeen;
+        r.lastSeen = firstSeen + 60;
+        r.nScans = 3;
+        r.first.set(60.1699, 24.9384, 10);
+        return r;
+    }
+
+    private static String[] names(File dir) {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testSortedLookup() throws Exception {
+        final File dir = tmp.getRoot();
+        final ManualClock clock = new ManualClock();
+        final RecordingSink next = new RecordingSink();
+        SightingSegmentSink sink = new SightingSegmentSink(next, dir, clock, 1000);
+        Random rng = new Random(1);
+        List<SightingRecord> written = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            // including RPIs that sort differently as signed numbers
+            SightingRecord r = sighting(rng.nextLong(), rng.nextLong(), DAY + rng.nextInt(86400));
+            sink.write(r);
+            written.add(r);
+        }
+        // seen twice, the later sighting first
+        sink.write(sighting(-1, 7, DAY + 7200));
+        sink.write(sighting(-1, 7, DAY + 3600));
+        sink.write(sighting(-1, 6, DAY + 3600));
+        sink.flush();
+        assertEquals(0, dir.list().length);
+        clock.now += 1000;
+        sink.flush();
+        assertArrayEquals(new String[] { "18518-0.seg" }, names(dir));
+
+        List<SightingSegment> segments = SightingSegment.openAll(dir, null);
+        assertEquals(1, segments.size());
+        SightingSegment segment = segments.get(0);
+        assertEquals(18518, segment.getDay());
+        assertEquals(1003, segment.size());
+        SightingRecord prev = new SightingRecord(), r = new SightingRecord();
+        for (int i = 1; i < segment.size(); ++i) {
+            segment.read(i - 1, prev);
+            segment.read(i, r);
+            assertTrue(SightingSegment.compare(prev.rpiHigh, prev.rpiLow, r.rpiHigh, r.rpiLow) <= 0);
+        }
+        List<SightingRecord> found = new ArrayList<>();
+        for (SightingRecord w : written) {
+            found.clear();
+            assertEquals(1, segment.lookup(w.rpiHigh, w.rpiLow, found));
+            assertEquals(w.toJson(), found.get(0).toJson());
+        }
+        found.clear();
+        assertEquals(2, SightingSegment.lookup(segments, -1, 7, found));
+        assertEquals(DAY + 3600, found.get(0).firstSeen);
+        assertEquals(DAY + 7200, found.get(1).firstSeen);
+        assertEquals(-1, segment.find(-1, 8));
+        assertEquals(-1, segment.find(0, 0));
+        SightingSegment.closeAll(segments);
+
+        sink.close();
+        assertTrue(next.closed);
+        assertEquals(1003, next.records.size());
+    }
+
+    @Test
+    public void testCompactionAndRetention() throws Exception {
+        final File dir = tmp.getRoot();
+        final ManualClock clock = new ManualClock();
+        SightingSegmentSink sink = new SightingSegmentSink(new RecordingSink(), dir, clock, 1000);
+        for (int i = 0; i < SightingSegmentSink.MAX_SEGMENTS_PER_DAY - 1; ++i) {
+            sink.write(sighting(i, 0, DAY + 60 * i));
+            clock.now += 1000;
+            sink.flush();
+        }
+        assertEquals(SightingSegmentSink.MAX_SEGMENTS_PER_DAY - 1, dir.list().length);
+        // the current day is merged once it has enough segments
+        sink.write(sighting(100, 0, DAY));
+        clock.now += 1000;
+        sink.flush();
+        assertArrayEquals(new String[] { "18518-8.seg" }, names(dir));
+
+        // a restart continues the sequence, and past days are merged
+        sink.close();
+        sink = new SightingSegmentSink(new RecordingSink(), dir, clock, 1000);
+        sink.write(sighting(101, 0, DAY + 100));
+        sink.write(sighting(200, 0, DAY + 86400));
+        sink.close();
+        assertArrayEquals(new String[] { "18518-11.seg", "18519-10.seg" }, names(dir));
+        List<SightingSegment> segments = SightingSegment.openAll(dir, null);
+        assertEquals(9, segments.get(0).size());
+        assertEquals(8, segments.get(0).getBaseSequence());
+        SightingSegment.closeAll(segments);
+
+        // the exposure window is kept
+        sink = new SightingSegmentSink(new RecordingSink(), dir, clock, 1000);
+        sink.write(sighting(300, 0, DAY + 14 * 86400));
+        sink.close();
+        assertArrayEquals(new String[] { "18519-10.seg", "18532-12.seg" }, names(dir));
+    }
+
+    @Test
+    public void testInterruptedMerge() throws Exception {
+        final File dir = tmp.getRoot();
+        final ManualClock clock = new ManualClock();
+        SightingSegmentSink sink = new SightingSegmentSink(new RecordingSink(), dir, clock, 1000);
+        sink.write(sighting(1, 0, DAY));
+        clock.now += 1000;
+        sink.flush();
+        sink.write(sighting(2, 0, DAY));
+        clock.now += 1000;
+        sink.flush();
+        sink.write(sighting(3, 0, DAY));
+        sink.close();
+        assertArrayEquals(new String[] { "18518-0.seg", "18518-1.seg", "18518-2.seg" }, names(dir));
+
+        // as if the process died after writing a merged segment, before deleting its inputs
+        final File merged = SightingSegment.file(dir, 18518, 3);
+        try (SightingSegment.Writer writer = new SightingSegment.Writer(merged, 18518, 0, 3)) {
+            List<SightingSegment> segments = SightingSegment.openAll(dir, null);
+            ByteBuffer payload = ByteBuffer.allocate(SightingJournal.RECORD_BYTES);
+            for (int i = 0; i < 3; ++i) {
+                payload.clear();
+                segments.get(i).copy(0, payload);
+                payload.flip();
+                writer.append(payload);
+            }
+            SightingSegment.closeAll(segments);
+            writer.finish();
+        }
+        // and while writing another
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "18518-4.seg.tmp"))) {
+            out.write(new byte[10]);
+        }
+
+        List<File> superseded = new ArrayList<>();
+        List<SightingSegment> segments = SightingSegment.openAll(dir, superseded);
+        assertEquals(1, segments.size());
+        assertEquals(3, superseded.size());
+        List<SightingRecord> found = new ArrayList<>();
+        for (int i = 1; i <= 3; ++i) assertEquals(1, SightingSegment.lookup(segments, i, 0, found));
+        SightingSegment.closeAll(segments);
+
+        sink = new SightingSegmentSink(new RecordingSink(), dir, clock, 1000);
+        sink.compact();
+        assertArrayEquals(new String[] { "18518-3.seg" }, names(dir));
+    }
+
+    private static int[] countPerDay(File dir) throws Exception {
+        List<SightingSegment> segments = SightingSegment.openAll(dir, null);
+        int[] counts = new int[2];
+        for (SightingSegment s : segments) counts[s.getDay() - 18518] += s.size();
+        SightingSegment.closeAll(segments);
+        return counts;
+    }
+
+    @Test
+    public void testReplayJournal() throws Exception {
+        final File dir = new File(tmp.getRoot(), "segments");
+        final File journal = new File(tmp.getRoot(), "sightings.bin");
+        final ManualClock clock = new ManualClock();
+        SightingJournal.Writer writer = new SightingJournal.Writer(journal);
+        SightingSegmentSink sink = new SightingSegmentSink(writer, dir, clock, 1000);
+        assertEquals(0, sink.replayJournal(journal));
+        sink.write(sighting(1, 0, DAY));
+        sink.write(sighting(2, 0, DAY));
+        sink.write(sighting(3, 0, DAY + 86400));
+        clock.now += 1000;
+        sink.flush();
+        // in the journal but not saved to the segments when the process is killed
+        sink.write(sighting(4, 0, DAY));
+        sink.write(sighting(5, 0, DAY + 86400));
+        writer.flush();
+        assertArrayEquals(new int[] { 2, 1 }, countPerDay(dir));
+
+        writer = new SightingJournal.Writer(journal);
+        sink = new SightingSegmentSink(writer, dir, clock, 1000);
+        assertEquals(2, sink.replayJournal(journal));
+        assertArrayEquals(new int[] { 3, 2 }, countPerDay(dir));
+
+        // killed after saving the first day, as the second one failed
+        sink.write(sighting(6, 0, DAY));
+        sink.write(sighting(7, 0, DAY + 86400));
+        final File blocked = new File(SightingSegment.file(dir, 18519, 5).getPath() + ".tmp");
+        assertTrue(blocked.mkdir());
+        clock.now += 1000;
+        try {
+            sink.flush();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(new int[] { 4, 2 }, countPerDay(dir));
+        assertTrue(blocked.delete());
+
+        writer = new SightingJournal.Writer(journal);
+        sink = new SightingSegmentSink(writer, dir, clock, 1000);
+        assertEquals(1, sink.replayJournal(journal));
+        sink.close();
+        assertArrayEquals(new int[] { 4, 3 }, countPerDay(dir));
+
+        // nothing to replay after a clean shutdown
+        writer = new SightingJournal.Writer(journal);
+        sink = new SightingSegmentSink(writer, dir, clock, 1000);
+        assertEquals(0, sink.replayJournal(journal));
+        sink.close();
+        assertArrayEquals(new int[] { 4, 3 }, countPerDay(dir));
+    }
+}
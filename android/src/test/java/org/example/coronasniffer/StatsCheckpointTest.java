@@ -0,0 +1,191 @@
+package org.example.coronasniffer;
+
+import org.example.coronasniffer.TestFixtures.ManualClock;
+import org.example.coronasniffer.TestFixtures.RecordingSink;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StatsCheckpointTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ManualClock clock = new ManualClock(1600000000000L);
+
+    private static void batch(BeaconStats stats, long... rpis) {
+        stats.beginBatch(rpis.length);
+        for (long rpi : rpis) stats.add(0, rpi, 0x1234, -60, -60);
+        stats.endBatch();
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        final File file = new File(tmp.getRoot(), "stats.checkpoint");
+        RecordingSink sink = new RecordingSink();
+        AsyncSightingLog log = new AsyncSightingLog(sink, 64, 10000);
+        BeaconStats stats = new BeaconStats(log, clock);
+        StatsCheckpoint checkpoint = new StatsCheckpoint(file);
+        assertEquals(0, stats.startCheckpoints(checkpoint, 5000));
+
+        stats.onLocationChanged(new GeoPosition(60.1699, 24.9384, 10, clock.now));
+        batch(stats, 1, 2, 3);
+        clock.now += 1000;
+        batch(stats, 1, 2);
+        clock.now += 1000;
+        batch(stats, 1, 4);
+        // checkpointed
+        clock.now += 4000;
+        batch(stats, 1);
+        // RPIs 2 and 3 are pruned, and the checkpoint does not have them anymore
+        clock.now += 11 * 60 * 1000 - 4000;
+        batch(stats, 1);
+        log.drain();
+        assertEquals(2, sink.records.size());
+        // and cleared from the checkpoint once their records have been flushed. RPI 4 is
+        // pruned too, but stays until its record is
+        clock.now += 5000;
+        batch(stats, 1);
+        // not checkpointed yet, lost with the process
+        clock.now += 1000;
+        batch(stats, 5);
+        checkpoint.close();
+
+        // restart
+        clock.now += 20000;
+        sink = new RecordingSink();
+        log = new AsyncSightingLog(sink, 64, 10000);
+        stats = new BeaconStats(log, clock);
+        checkpoint = new StatsCheckpoint(file);
+        // RPI 4 has expired meanwhile and is logged right away
+        assertEquals(2, stats.startCheckpoints(checkpoint, 5000));
+        assertEquals(1, stats.size());
+        batch(stats, 1);
+        stats.flush();
+        assertEquals(2, sink.records.size());
+        assertEquals(4, sink.records.get(0).rpiLow);
+        SightingRecord r = sink.records.get(1);
+        assertEquals(1, r.rpiLow);
+        assertEquals(7, r.nScans);
+        assertEquals(1600000000L, r.firstSeen);
+        assertEquals(clock.now / 1000, r.lastSeen);
+        assertTrue(r.first.valid);
+        assertEquals(60.1699, r.first.latitude, 1e-6);
+        log.close();
+
+        // flushed entries are not restored
+        stats = new BeaconStats(log, clock);
+        assertEquals(0, stats.startCheckpoints(checkpoint, 5000));
+        checkpoint.close();
+    }
+
+    /** Fails to flush until flushing is enabled, so that the log commits nothing */
+    private static class UnflushedSink implements AsyncSightingLog.Sink {
+        volatile boolean flushing = false;
+
+        @Override
+        public void write(SightingRecord r) {}
+
+        @Override
+        public void flush() throws IOException {
+            if (!flushing) throw new IOException("not flushing");
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static List<Long> savedRpis(StatsCheckpoint checkpoint) {
+        List<Long> rpis = new ArrayList<>();
+        for (StatsCheckpoint.Saved s : checkpoint.readAll()) rpis.add(s.entry.rpiLow);
+        Collections.sort(rpis);
+        return rpis;
+    }
+
+    @Test
+    public void testLoggedEntriesKeptUntilCommitted() throws Exception {
+        UnflushedSink sink = new UnflushedSink();
+        AsyncSightingLog log = new AsyncSightingLog(sink, 64, 10000);
+        BeaconStats stats = new BeaconStats(log, clock);
+        StatsCheckpoint checkpoint = new StatsCheckpoint(new File(tmp.getRoot(), "stats.checkpoint"));
+        stats.startCheckpoints(checkpoint, 0);
+
+        batch(stats, 1);
+        clock.now += 11 * 60 * 1000 + 1000;
+        // RPI 1 is pruned and logged
+        batch(stats, 2);
+        log.drain();
+        assertEquals(1, log.getWriteErrors());
+        batch(stats, 2);
+        assertEquals(Arrays.asList(1L, 2L), savedRpis(checkpoint));
+        // and its slot is not reused meanwhile
+        batch(stats, 3);
+        assertEquals(Arrays.asList(1L, 2L, 3L), savedRpis(checkpoint));
+
+        sink.flushing = true;
+        clock.now += 11 * 60 * 1000 + 1000;
+        batch(stats, 4);
+        log.drain();
+        assertEquals(3, log.getCommitted());
+        batch(stats, 4);
+        assertEquals(Arrays.asList(4L), savedRpis(checkpoint));
+
+        stats.flush();
+        assertEquals(0, savedRpis(checkpoint).size());
+        log.close();
+        checkpoint.close();
+    }
+
+    @Test
+    public void testExpiredAndTornEntries() throws Exception {
+        final File file = new File(tmp.getRoot(), "stats.checkpoint");
+        RecordingSink sink = new RecordingSink();
+        AsyncSightingLog log = new AsyncSightingLog(sink, 64, 10000);
+        BeaconStats stats = new BeaconStats(log, clock);
+        StatsCheckpoint checkpoint = new StatsCheckpoint(file);
+        stats.startCheckpoints(checkpoint, 0);
+        // more entries than the initial capacity of the file
+        final int n = 200;
+        long[] rpis = new long[n];
+        for (int i = 0; i < n; ++i) rpis[i] = i;
+        batch(stats, rpis);
+        assertTrue(checkpoint.getCapacity() >= n);
+        checkpoint.close();
+
+        // as if the process died while writing the first slot
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(StatsCheckpoint.HEADER_BYTES + StatsCheckpoint.RECORD_BYTES - 1);
+            raf.write(0x55);
+        }
+
+        // after a long pause, all entries are logged right away
+        clock.now += 3600 * 1000;
+        sink = new RecordingSink();
+        log = new AsyncSightingLog(sink, 256, 10000);
+        stats = new BeaconStats(log, clock);
+        checkpoint = new StatsCheckpoint(file);
+        assertEquals(n - 1, stats.startCheckpoints(checkpoint, 0));
+        assertEquals(0, stats.size());
+        log.drain();
+        assertEquals(n - 1, sink.records.size());
+        log.close();
+        checkpoint.close();
+
+        // a file that is not a checkpoint is replaced
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(10);
+        }
+        checkpoint = new StatsCheckpoint(file);
+        assertEquals(0, checkpoint.readAll().size());
+        checkpoint.close();
+    }
+}
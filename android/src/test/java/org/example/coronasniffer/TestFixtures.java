@@ -0,0 +1,50 @@
+package org.example.coronasniffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Clock and sink doubles shared by the tests */
+final class TestFixtures {
+    private TestFixtures() {}
+
+    static class ManualClock implements Clock {
+        volatile long now;
+
+        ManualClock() {
+            this(0);
+        }
+
+        ManualClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    /** Keeps copies of the records written to it, as the writers reuse theirs */
+    static class RecordingSink implements AsyncSightingLog.Sink {
+        final List<SightingRecord> records = Collections.synchronizedList(new ArrayList<SightingRecord>());
+        // the number of records written before the latest flush
+        volatile int flushed = 0;
+        volatile boolean closed = false;
+
+        @Override
+        public void write(SightingRecord r) {
+            records.add(new SightingRecord().copyFrom(r));
+        }
+
+        @Override
+        public void flush() {
+            flushed = records.size();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
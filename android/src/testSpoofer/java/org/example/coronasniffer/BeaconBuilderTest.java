@@ -2,8 +2,12 @@ package org.example.coronasniffer;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
-import static org.example.coronasniffer.BeaconBuilder.bytesToHex;
+import static org.example.coronasniffer.BeaconCrypto.bytesToHex;
 
 public class BeaconBuilderTest {
     @Test
@@ -11,7 +15,7 @@ public class BeaconBuilderTest {
         // cf https://kavaliro.com/wp-content/uploads/2014/03/AES.pdf
         byte[] plainText = "Two One Nine Two".getBytes();
         byte[] key = "Thats my Kung Fu".getBytes();
-        byte[] ciphertext = BeaconBuilder.AppleGoogleEN.aes128(key, plainText);
+        byte[] ciphertext = BeaconCrypto.AppleGoogleEN.aes128(key, plainText);
         String expectedHex = "29C3505F571420F6402299B31A02D73A".toLowerCase();
         assertEquals(expectedHex, bytesToHex(ciphertext));
     }
@@ -19,12 +23,80 @@ public class BeaconBuilderTest {
     @Test
     public void testAppleGoogleENRollingProximityIDs() {
         // Temporary Exposure Key
-        byte[] tek = BeaconBuilder.AppleGoogleEN.keyFromString("foo");
+        byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("foo");
         int time1 = 0;
         int time2 = 60 * 10 + 1;
-        byte[] proxID1 = BeaconBuilder.AppleGoogleEN.rollingProximityID(tek, time1);
-        byte[] proxID2 = BeaconBuilder.AppleGoogleEN.rollingProximityID(tek, time2);
+        byte[] proxID1 = BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, time1);
+        byte[] proxID2 = BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, time2);
         assertEquals("ebaca2b735c90d01c361e8ca6ec167f2", bytesToHex(proxID1));
         assertEquals("a9141c2b822e1dc3fbe916c4ba64c368", bytesToHex(proxID2));
     }
+
+    @Test
+    public void testAppleGoogleENRollingProximityIDBatch() {
+        byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("foo");
+        byte[] proxIDs = new byte[16 * 3];
+        BeaconCrypto.AppleGoogleEN.rollingProximityIDs(tek, 0, 2, proxIDs, 16);
+        assertEquals("00000000000000000000000000000000", bytesToHex(Arrays.copyOfRange(proxIDs, 0, 16)));
+        assertEquals("ebaca2b735c90d01c361e8ca6ec167f2", bytesToHex(Arrays.copyOfRange(proxIDs, 16, 32)));
+        assertEquals("a9141c2b822e1dc3fbe916c4ba64c368", bytesToHex(Arrays.copyOfRange(proxIDs, 32, 48)));
+
+        ByteBuffer buf = ByteBuffer.allocate(16 * 2);
+        BeaconCrypto.AppleGoogleEN.rollingProximityIDs(tek, 0, 2, buf);
+        assertEquals(buf.capacity(), buf.position());
+        assertArrayEquals(Arrays.copyOfRange(proxIDs, 16, 48), buf.array());
+    }
+
+    @Test
+    public void testAppleGoogleENRollingProximityIDBatchMatchesSingle() {
+        final int firstInterval = 2650000;
+        final int count = 144;
+        byte[] proxIDs = new byte[16 * count];
+        BeaconCrypto.AppleGoogleEN.RpiGeneratorCache cache =
+                new BeaconCrypto.AppleGoogleEN.RpiGeneratorCache(2);
+        for (String key : new String[] { "foo", "bar", "baz", "foo" }) {
+            byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString(key);
+            // twice to check that the cached cipher state is reusable
+            for (int round = 0; round < 2; ++round) {
+                cache.get(tek).rollingProximityIDs(firstInterval, count, proxIDs, 0);
+                for (int i = 0; i < count; ++i) {
+                    byte[] single = BeaconCrypto.AppleGoogleEN.rollingProximityID(tek,
+                            (firstInterval + i) * 600L + 1);
+                    assertArrayEquals(single, Arrays.copyOfRange(proxIDs, i * 16, (i + 1) * 16));
+                }
+            }
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testDP3TEphIdTable() {
+        byte[] secretKey = BeaconCrypto.DP3T.keyFromString("foo");
+        byte[][] ephIds = BeaconCrypto.DP3T.generateEphIds(secretKey);
+        assertEquals(BeaconCrypto.DP3T.EPOCHS_PER_DAY, ephIds.length);
+        for (int i = 0; i < ephIds.length; ++i) {
+            assertArrayEquals(BeaconCrypto.DP3T.generateEphId(secretKey, i), ephIds[i]);
+        }
+    }
+
+    @Test
+    public void testDP3TDayKeyChain() throws Exception {
+        byte[] secretKey = BeaconCrypto.DP3T.keyFromString("foo");
+        BeaconCrypto.DP3T.DayKeyChain chain = new BeaconCrypto.DP3T.DayKeyChain(secretKey);
+        byte[] day2 = MessageDigest.getInstance("SHA-256").digest(
+                MessageDigest.getInstance("SHA-256").digest(secretKey));
+        assertArrayEquals(day2, chain.dayKey(2));
+        assertArrayEquals(secretKey, chain.dayKey(0));
+
+        final int blocksPerDay = BeaconCrypto.DP3T.EPOCHS_PER_DAY;
+        byte[] ephIds = new byte[3 * blocksPerDay * 16];
+        chain.generateEphIds(1, 3, ephIds, 0);
+        for (int d = 0; d < 3; ++d) {
+            for (int i = 0; i < blocksPerDay; i += 7) {
+                int offset = (d * blocksPerDay + i) * 16;
+                assertArrayEquals(BeaconCrypto.DP3T.generateEphId(chain.dayKey(d + 1), i),
+                        Arrays.copyOfRange(ephIds, offset, offset + 16));
+            }
+        }
+    }
 }
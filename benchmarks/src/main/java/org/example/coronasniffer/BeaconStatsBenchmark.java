@@ -0,0 +1,163 @@
+package org.example.coronasniffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BeaconStats with a given number of live devices, fed with stub beacons (random RPIs)
+ * and a stub location. The logged entries go to a sink that discards them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BeaconStatsBenchmark {
+    private static final int BATCH_SIZE = 20;
+
+    private static class NullSink implements AsyncSightingLog.Sink {
+        @Override
+        public void write(SightingRecord r) {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    private static class ManualClock implements Clock {
+        long now = 1600000000000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    private AsyncSightingLog sightingLog;
+    private BeaconStats stats;
+    private long[] rpis;
+    private int[] rssis;
+    private int nextBeacon = 0;
+    private BeaconStats.Entry entry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sightingLog = new AsyncSightingLog(new NullSink(), 4096, 1000);
+        stats = new BeaconStats(sightingLog);
+        final GeoPosition location = new GeoPosition(60.1699, 24.9384, 15, System.currentTimeMillis());
+        stats.onLocationChanged(location);
+
+        Random rng = new Random(1234);
+        rpis = new long[2 * devices];
+        rssis = new int[devices];
+        for (int i = 0; i < rpis.length; ++i) rpis[i] = rng.nextLong();
+        for (int i = 0; i < devices; ++i) rssis[i] = -100 + rng.nextInt(70);
+
+        for (int i = 0; i < devices; i += BATCH_SIZE) addBatch();
+        entry = new BeaconStats.Entry();
+        entry.init(rpis[0], rpis[1], 0x12345678, rssis[0], rssis[0] + 0.5, LocationTrack.NO_FIX,
+                System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sightingLog.close();
+    }
+
+    /** a ranging batch of BATCH_SIZE already known devices, including the prune */
+    @Benchmark
+    public BeaconStats.Snapshot addBatch() {
+        stats.beginBatch(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            final int d = nextBeacon;
+            nextBeacon = (nextBeacon + 1) % devices;
+            stats.add(rpis[2 * d], rpis[2 * d + 1], d, rssis[d], rssis[d] + 0.5);
+        }
+        return stats.endBatch();
+    }
+
+    /** prune when nothing has expired, the common case */
+    @Benchmark
+    public BeaconStats.Snapshot emptyBatchAndPrune() {
+        stats.beginBatch(0);
+        return stats.endBatch();
+    }
+
+    /**
+     * BeaconStats with the given number of devices, all seen at once and then refilled
+     * before each invocation, with the clock advanced past the prune age
+     */
+    @State(Scope.Thread)
+    public static class Expired {
+        @Param({"100", "1000", "10000"})
+        public int devices;
+
+        private final ManualClock clock = new ManualClock();
+        private AsyncSightingLog sightingLog;
+        private BeaconStats stats;
+        private long[] rpis;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // room for all the evicted entries, so that pruning does not wait for the writer
+            sightingLog = new AsyncSightingLog(new NullSink(), 2 * devices, 1000);
+            stats = new BeaconStats(sightingLog, clock);
+            stats.onLocationChanged(new GeoPosition(60.1699, 24.9384, 15, clock.now));
+            Random rng = new Random(1234);
+            rpis = new long[2 * devices];
+            for (int i = 0; i < rpis.length; ++i) rpis[i] = rng.nextLong();
+        }
+
+        @Setup(Level.Invocation)
+        public void fill() {
+            sightingLog.drain();
+            stats.beginBatch(devices);
+            for (int d = 0; d < devices; ++d) stats.add(rpis[2 * d], rpis[2 * d + 1], d, -70, -69.5);
+            stats.endBatch();
+            clock.now += 12 * 60 * 1000;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            sightingLog.close();
+        }
+    }
+
+    /** prune when all the devices have expired, logging each of them */
+    @Benchmark
+    public BeaconStats.Snapshot evictExpired(Expired expired) {
+        expired.stats.beginBatch(0);
+        return expired.stats.endBatch();
+    }
+
+    @Benchmark
+    public int nearbyDeviceCount() {
+        return stats.getNearbyDeviceCount();
+    }
+
+    @Benchmark
+    public String entryToString() {
+        return entry.toString();
+    }
+}
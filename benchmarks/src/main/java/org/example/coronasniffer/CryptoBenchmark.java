@@ -0,0 +1,70 @@
+package org.example.coronasniffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+    private final byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("benchmark");
+    private final byte[] rpik = BeaconCrypto.AppleGoogleEN.rollingProximityIdentifierKeyFromTEK(tek);
+    private final byte[] paddedData = BeaconCrypto.AppleGoogleEN.paddedData(2666666);
+    private final byte[] dailyRpis = new byte[144 * 16];
+    private final byte[] dailyEphIds = new byte[BeaconCrypto.DP3T.EPOCHS_PER_DAY * 16];
+    private final BeaconCrypto.AppleGoogleEN.RpiGenerator generator = new BeaconCrypto.AppleGoogleEN.RpiGenerator();
+    private long unixTime = 1600000000L;
+
+    @State(Scope.Thread)
+    public static class Epoch {
+        @Param({"0", "48", "95"})
+        public int epochIdx;
+    }
+
+    @Benchmark
+    public byte[] aes128() {
+        return BeaconCrypto.AppleGoogleEN.aes128(rpik, paddedData);
+    }
+
+    @Benchmark
+    public byte[] rollingProximityIdentifierKeyFromTEK() {
+        return BeaconCrypto.AppleGoogleEN.rollingProximityIdentifierKeyFromTEK(tek);
+    }
+
+    @Benchmark
+    public byte[] rollingProximityID() {
+        unixTime += 600;
+        return BeaconCrypto.AppleGoogleEN.rollingProximityID(tek, unixTime);
+    }
+
+    /** all RPIs of a TEK, including the HKDF and cipher setup */
+    @Benchmark
+    public byte[] dailyRollingProximityIDs() {
+        generator.init(tek).rollingProximityIDs(2666666, 144, dailyRpis, 0);
+        return dailyRpis;
+    }
+
+    @Benchmark
+    public byte[] dp3tGenerateEphId(Epoch epoch) {
+        return BeaconCrypto.DP3T.generateEphId(tek, epoch.epochIdx);
+    }
+
+    @Benchmark
+    public byte[] dp3tDailyEphIds() {
+        BeaconCrypto.DP3T.generateEphIds(tek, dailyEphIds, 0);
+        return dailyEphIds;
+    }
+}
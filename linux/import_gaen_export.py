@@ -4,6 +4,9 @@ Decode a GAEN export.bin file to JSON.
 
 Prerequisites: pip install protowire
 Usage ./import_gaen_export.py < /path/to/export.bin
+
+Every key gets the time range of the whole export. For the per-key rolling intervals,
+use `gradle gaenExport` in ../tools instead.
 """
 import argparse, time
 from protowire.proto_decoding import parse_stream_with_spec, parse_spec
@@ -0,0 +1,329 @@
+package org.example.coronasniffer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk matcher of GAEN diagnosis keys against sniffer logs. Every key is expanded
+ * to its RPIs and probed against an in-memory index of the observed RPIs. This is
+ * the JVM counterpart of the backend's diagnosisKeyToRPIs + SQL UPDATE per key.
+ *
+ * Usage: BulkMatcher [--threads N] [--min-time T] [--max-time T] [--prescreen DIR] keys sightings...
+ *
+ * The keys are read from a GAEN export.bin or export.zip (see GaenExport), or as
+ * linux/import_gaen_export.py output (or plain hex). Plain keys get the time range
+ * --min-time ... --max-time (unix seconds). The sightings can be any lines with an
+ * "rpi" field, such as raw sniffer logs or parse_logs.py output. Use - for stdin.
+ * The matching sightings are written to stdout as JSON, with the decrypted AEM metadata
+ * and its transmit power level (for the attenuation) if the sightings have an "aem".
+ *
+ * With --prescreen, the keys are first checked against the per-day RPI filters written
+ * by the sniffer (see RpiFilterSink) and only the keys with possible matches are matched
+ * against the sightings, which are not read at all if there are none.
+ */
+class BulkMatcher {
+    private static final Pattern RPI = DiagnosisKey.jsonField("rpi", "\"([0-9a-fA-F]{32})\"");
+    private static final Pattern AEM = DiagnosisKey.jsonField("aem", "\"([0-9a-fA-F]{8})\"");
+    // number of keys per fork/join leaf task
+    private static final int KEYS_PER_TASK = 256;
+    private static final int RPI_BYTES = BeaconCrypto.AppleGoogleEN.KEY_LENGTH_BYTES;
+
+    static class Match {
+        final DiagnosisKey key;
+        final int keyIndex;
+        final int enInterval;
+        final String sighting;
+        // decrypted AEM of the sighting, if it had one
+        boolean hasMetadata = false;
+        int metadata;
+
+        Match(DiagnosisKey key, int keyIndex, int enInterval, String sighting) {
+            this.key = key;
+            this.keyIndex = keyIndex;
+            this.enInterval = enInterval;
+            this.sighting = sighting;
+        }
+
+        @Override
+        public String toString() {
+            // embed the JSON part of the sighting line as is
+            final int begin = sighting.indexOf('{'), end = sighting.lastIndexOf('}');
+            final String json = begin >= 0 && end > begin ? sighting.substring(begin, end + 1)
+                    : '"' + sighting.trim().replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+            final StringBuilder sb = new StringBuilder();
+            sb.append("{\"diagnosisKey\":\"").append(key).append("\",\"enInterval\":").append(enInterval);
+            if (hasMetadata) sb.append(",\"metadata\":\"").append(String.format("%08x", metadata)).append('"');
+            sb.append(",\"sighting\":").append(json);
+            // attenuation = transmit power - RSSI
+            if (hasMetadata && BeaconCrypto.AppleGoogleEN.isMetadataVersion1(metadata)) {
+                sb.append(",\"txPower\":").append(BeaconCrypto.AppleGoogleEN.txPowerOf(metadata));
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    // RPI -> index of the first sighting of that RPI, more in nextSighting
+    private final RpiTable index = new RpiTable();
+    private final List<String> sightings = new ArrayList<>();
+    private int[] nextSighting = new int[1024];
+    // the AEM of each sighting, if hasAem
+    private int[] aems = new int[1024];
+    private final BitSet hasAem = new BitSet();
+
+    /** @return false if the line does not contain an RPI */
+    boolean addSighting(String line) {
+        java.util.regex.Matcher m = RPI.matcher(line);
+        if (!m.find()) return false;
+        final byte[] rpi = BeaconCrypto.hexToBytes(m.group(1));
+        final int i = sightings.size();
+        sightings.add(line);
+        if (i == nextSighting.length) {
+            nextSighting = Arrays.copyOf(nextSighting, 2 * i);
+            aems = Arrays.copyOf(aems, 2 * i);
+        }
+        nextSighting[i] = index.put(rpi, 0, i);
+        m = AEM.matcher(line);
+        if (m.find()) {
+            aems[i] = (int) Long.parseLong(m.group(1), 16);
+            hasAem.set(i);
+        }
+        return true;
+    }
+
+    int observedRpiCount() {
+        return index.size();
+    }
+
+    List<Match> match(List<DiagnosisKey> keys, ForkJoinPool pool) {
+        List<Match> matches = pool.invoke(new MatchTask(keys, 0, keys.size()));
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                if (a.keyIndex != b.keyIndex) return Integer.compare(a.keyIndex, b.keyIndex);
+                return Integer.compare(a.enInterval, b.enInterval);
+            }
+        });
+        return matches;
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private class MatchTask extends RecursiveTask<List<Match>> {
+        private final List<DiagnosisKey> keys;
+        private final int begin, end;
+
+        MatchTask(List<DiagnosisKey> keys, int begin, int end) {
+            this.keys = keys;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected List<Match> compute() {
+            if (end - begin > KEYS_PER_TASK) {
+                final int mid = (begin + end) >>> 1;
+                MatchTask left = new MatchTask(keys, begin, mid);
+                left.fork();
+                List<Match> result = new MatchTask(keys, mid, end).compute();
+                result.addAll(left.join());
+                return result;
+            }
+
+            final List<Match> result = new ArrayList<>();
+            final BeaconCrypto.AppleGoogleEN.RpiGenerator generator = generators.get();
+            byte[] rpis = rpiBuffers.get();
+            for (int k = begin; k < end; ++k) {
+                final DiagnosisKey key = keys.get(k);
+                if (rpis.length < key.rollingPeriod * RPI_BYTES) {
+                    rpis = new byte[key.rollingPeriod * RPI_BYTES];
+                    rpiBuffers.set(rpis);
+                }
+                generator.init(key.key)
+                        .rollingProximityIDs(key.rollingStartInterval, key.rollingPeriod, rpis, 0);
+                final int first = result.size();
+                for (int j = 0; j < key.rollingPeriod; ++j) {
+                    for (int s = index.get(rpis, j * RPI_BYTES); s != RpiTable.ABSENT; s = nextSighting[s]) {
+                        final Match match = new Match(key, k, key.rollingStartInterval + j, sightings.get(s));
+                        if (hasAem.get(s)) {
+                            match.hasMetadata = true;
+                            match.metadata = aems[s];
+                        }
+                        result.add(match);
+                    }
+                }
+                if (result.size() > first) decryptMetadata(key, rpis, result.subList(first, result.size()));
+            }
+            return result;
+        }
+    }
+
+    /** Decrypts the AEMs of the matches of one key in a single pass */
+    private static void decryptMetadata(DiagnosisKey key, byte[] rpis, List<Match> matches) {
+        final int n = matches.size();
+        final byte[] batchRpis = new byte[n * RPI_BYTES];
+        final int[] batchAems = new int[n];
+        int count = 0;
+        for (Match m : matches) {
+            if (!m.hasMetadata) continue;
+            System.arraycopy(rpis, (m.enInterval - key.rollingStartInterval) * RPI_BYTES,
+                    batchRpis, count * RPI_BYTES, RPI_BYTES);
+            batchAems[count++] = m.metadata;
+        }
+        if (count == 0) return;
+        aemCiphers.get().init(key.key).apply(batchRpis, 0, batchAems, 0, count);
+        count = 0;
+        for (Match m : matches) {
+            if (m.hasMetadata) m.metadata = batchAems[count++];
+        }
+    }
+
+    // cipher instances and output buffers are per worker thread
+    private static final ThreadLocal<BeaconCrypto.AppleGoogleEN.RpiGenerator> generators =
+            new ThreadLocal<BeaconCrypto.AppleGoogleEN.RpiGenerator>() {
+                @Override
+                protected BeaconCrypto.AppleGoogleEN.RpiGenerator initialValue() {
+                    return new BeaconCrypto.AppleGoogleEN.RpiGenerator();
+                }
+            };
+
+    private static final ThreadLocal<BeaconCrypto.AppleGoogleEN.AemCipher> aemCiphers =
+            new ThreadLocal<BeaconCrypto.AppleGoogleEN.AemCipher>() {
+                @Override
+                protected BeaconCrypto.AppleGoogleEN.AemCipher initialValue() {
+                    return new BeaconCrypto.AppleGoogleEN.AemCipher();
+                }
+            };
+
+    private static final ThreadLocal<byte[]> rpiBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DiagnosisKey.DEFAULT_ROLLING_PERIOD * RPI_BYTES];
+        }
+    };
+
+    /**
+     * @return the keys with at least one RPI that may be in the filters of its EN day.
+     * Days without a filter have no sightings
+     */
+    static List<DiagnosisKey> prescreen(List<DiagnosisKey> keys, File filterDir) throws IOException {
+        final Map<Integer, RpiBloomFilter> filters = new HashMap<>();
+        final BeaconCrypto.AppleGoogleEN.RpiGenerator generator = generators.get();
+        byte[] rpis = rpiBuffers.get();
+        final List<DiagnosisKey> candidates = new ArrayList<>();
+        for (DiagnosisKey key : keys) {
+            if (rpis.length < key.rollingPeriod * RPI_BYTES) rpis = new byte[key.rollingPeriod * RPI_BYTES];
+            generator.init(key.key).rollingProximityIDs(key.rollingStartInterval, key.rollingPeriod, rpis, 0);
+            for (int j = 0; j < key.rollingPeriod; ++j) {
+                final int day = (key.rollingStartInterval + j) / RpiRotation.ROLLING_PERIOD;
+                if (!filters.containsKey(day)) filters.put(day, RpiFilterSink.load(filterDir, day));
+                final RpiBloomFilter filter = filters.get(day);
+                if (filter != null && filter.mightContain(rpis, j * RPI_BYTES)) {
+                    candidates.add(key);
+                    break;
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /** Reads a GAEN export (.bin or .zip) or JSON lines */
+    static List<DiagnosisKey> readKeys(String path, long defaultMinUnixTime, long defaultMaxUnixTime)
+            throws IOException {
+        final List<DiagnosisKey> keys = new ArrayList<>();
+        if (path.endsWith(".bin") || path.endsWith(".zip")) {
+            try (GaenExport export = GaenExport.open(new File(path))) {
+                for (DiagnosisKey key = export.next(); key != null; key = export.next()) keys.add(key);
+                if (export.getInvalidKeyCount() > 0) {
+                    System.err.println(path + ": skipped " + export.getInvalidKeyCount() + " invalid key(s)");
+                }
+            }
+            return keys;
+        }
+        try (BufferedReader reader = open(path)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final DiagnosisKey key = DiagnosisKey.parse(line, defaultMinUnixTime, defaultMaxUnixTime);
+                if (key != null) keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    static BufferedReader open(String path) throws IOException {
+        InputStream in = path.equals("-") ? System.in : new FileInputStream(path);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long now = System.currentTimeMillis() / 1000;
+        long minTime = now - 14 * 24 * 60 * 60, maxTime = now;
+        File prescreenDir = null;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--min-time": minTime = Long.parseLong(args[++i]); break;
+                case "--max-time": maxTime = Long.parseLong(args[++i]); break;
+                case "--prescreen": prescreenDir = new File(args[++i]); break;
+                default: files.add(args[i]);
+            }
+        }
+        if (files.size() < 2) {
+            System.err.println("usage: BulkMatcher [--threads N] [--min-time T] [--max-time T] [--prescreen DIR]"
+                    + " keys.jsonl|export.zip sightings...");
+            System.exit(1);
+        }
+
+        long t0 = System.nanoTime();
+        List<DiagnosisKey> keys = readKeys(files.get(0), minTime, maxTime);
+        long nRpis = 0;
+        for (DiagnosisKey key : keys) nRpis += key.rollingPeriod;
+
+        if (prescreenDir != null) {
+            final long tp = System.nanoTime();
+            final int all = keys.size();
+            keys = prescreen(keys, prescreenDir);
+            nRpis = 0;
+            for (DiagnosisKey key : keys) nRpis += key.rollingPeriod;
+            System.err.printf("prescreened %d key(s) in %.2fs, %d possible match(es)%n",
+                    all, (System.nanoTime() - tp) * 1e-9, keys.size());
+            if (keys.isEmpty()) return;
+        }
+
+        BulkMatcher matcher = new BulkMatcher();
+        for (String f : files.subList(1, files.size())) {
+            try (BufferedReader reader = open(f)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    matcher.addSighting(line);
+                }
+            }
+        }
+        long t1 = System.nanoTime();
+        System.err.printf("read %d key(s) and %d distinct RPI(s) in %.2fs%n",
+                keys.size(), matcher.observedRpiCount(), (t1 - t0) * 1e-9);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Match> matches = matcher.match(keys, pool);
+        pool.shutdown();
+        long t2 = System.nanoTime();
+        System.err.printf("expanded %d RPI(s) with %d thread(s) in %.2fs, %d match(es)%n",
+                nRpis, threads, (t2 - t1) * 1e-9, matches.size());
+
+        for (Match m : matches) System.out.println(m);
+    }
+}
@@ -0,0 +1,382 @@
+package org.example.coronasniffer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reproducible synthetic datasets with real GAEN crypto, for measuring the throughput of
+ * the aggregation (TraceReplay) and the matching (BulkMatcher) and their recall against a
+ * known ground truth. Simulated phones random-walk in a square area, each with a daily
+ * TEK and its RPIs rotating at the EN interval boundaries (RpiRotation). A sniffer walks
+ * among them and picks up the phones in radio range with a log-distance path loss model
+ * and Gaussian RSSI noise. A random subset of the phones is diagnosed.
+ *
+ * Usage:
+ *
+ *     CrowdGenerator [--devices N] [--hours H] [--area M] [--diagnosed F] [--extra-keys K] [--seed S] out
+ *     CrowdGenerator --score out.truth.jsonl matches.jsonl
+ *
+ * The first form writes
+ *
+ *     out.trace        the scans, as recorded by the sniffer (ScanTrace)
+ *     out.keys.jsonl   the diagnosis keys of the diagnosed phones, in random order with K
+ *                      extra keys of phones that were never in range
+ *     out.truth.jsonl  every key of every phone, whether it was diagnosed, the EN
+ *                      intervals in which the sniffer picked it up at least once and the
+ *                      transmit power level in the AEMs of the phone
+ *
+ * The second form compares the output of BulkMatcher to the ground truth.
+ */
+class CrowdGenerator {
+    static final long START_MILLIS = 1600000000000L;
+
+    // a phone broadcasting at ADVERTISE_TX_POWER_MEDIUM, as heard by another phone
+    private static final double RSSI_AT_1M = -59;
+    private static final int TX_POWER_MEDIUM_DBM = -7;
+    // the transmit power levels of the phones (dBm, as in their AEM metadata), mostly medium
+    private static final int[] TX_POWERS_DBM = { TX_POWER_MEDIUM_DBM, TX_POWER_MEDIUM_DBM, TX_POWER_MEDIUM_DBM, 1, -15 };
+    private static final double PATH_LOSS_EXPONENT = 2.5;
+    private static final double RSSI_SIGMA = 6;
+    private static final int DETECTION_THRESHOLD = -100;
+    // chance that a phone in range is missed by a scan anyway
+    private static final double MISS_PROBABILITY = 0.2;
+    private static final long LOCATION_PERIOD_MILLIS = 5000;
+    // walking speeds, m/s
+    private static final double MAX_SPEED = 2;
+    private static final double SPEED_SIGMA = 0.3;
+    private static final double SPEED_DAMPING = 0.05;
+
+    // Helsinki, same as backend/generate_fake_data.js
+    private static final double CENTER_LATITUDE = 60.1628855, CENTER_LONGITUDE = 24.94375;
+    private static final double METERS_PER_LATITUDE = Math.PI * 6.371e6 / 180;
+
+    int devices = 1000;
+    double hours = 24;
+    double areaMeters = 300;
+    double diagnosedFraction = 0.05;
+    int extraKeys = 0;
+    long seed = 1;
+
+    private static class Key {
+        final int device;
+        final byte[] tek;
+        final int rollingStartInterval;
+        final BitSet observedIntervals = new BitSet(RpiRotation.ROLLING_PERIOD);
+        long observations = 0;
+
+        Key(int device, byte[] tek, int rollingStartInterval) {
+            this.device = device;
+            this.tek = tek;
+            this.rollingStartInterval = rollingStartInterval;
+        }
+    }
+
+    private final List<Key> keys = new ArrayList<>();
+    private boolean[] diagnosed;
+    private int[] txPowers;
+    private long observations = 0, scans = 0;
+
+    /**
+     * Random numbers for the movements and the noise, several times faster than
+     * java.util.Random, which dominates the generation time otherwise
+     */
+    private static class Noise {
+        private final SplittableRandom random;
+        private double nextGaussian;
+        private boolean haveNextGaussian = false;
+
+        Noise(long seed) {
+            random = new SplittableRandom(seed);
+        }
+
+        double nextDouble() {
+            return random.nextDouble();
+        }
+
+        int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        /** Marsaglia's polar method, like Random.nextGaussian but with Math instead of StrictMath */
+        double nextGaussian() {
+            if (haveNextGaussian) {
+                haveNextGaussian = false;
+                return nextGaussian;
+            }
+            double v1, v2, s;
+            do {
+                v1 = 2 * random.nextDouble() - 1;
+                v2 = 2 * random.nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+            } while (s >= 1 || s == 0);
+            final double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+            nextGaussian = v2 * multiplier;
+            haveNextGaussian = true;
+            return v1 * multiplier;
+        }
+    }
+
+    /** A point walking in the area with a randomly drifting, damped velocity */
+    private static class Walker {
+        double x, y, vx, vy;
+
+        void step(Noise rng, double dt, double size) {
+            vx = (vx + rng.nextGaussian() * SPEED_SIGMA) * (1 - SPEED_DAMPING);
+            vy = (vy + rng.nextGaussian() * SPEED_SIGMA) * (1 - SPEED_DAMPING);
+            final double speed2 = vx * vx + vy * vy;
+            if (speed2 > MAX_SPEED * MAX_SPEED) {
+                final double scale = MAX_SPEED / Math.sqrt(speed2);
+                vx *= scale;
+                vy *= scale;
+            }
+            x += vx * dt;
+            y += vy * dt;
+            // bounce off the edges
+            if (x < 0 || x > size) {
+                vx = -vx;
+                x = Math.max(0, Math.min(size, x));
+            }
+            if (y < 0 || y > size) {
+                vy = -vy;
+                y = Math.max(0, Math.min(size, y));
+            }
+        }
+    }
+
+    /** Generates the scans to the listener and collects the ground truth */
+    void generate(ScanTrace.Listener out) {
+        final Noise rng = new Noise(seed);
+        // separate streams, so that the keys do not change the movements
+        final Random keyRandom = new Random(seed * 31 + 17);
+        final Random txPowerRandom = new Random(seed * 31 + 19);
+        final long end = START_MILLIS + (long) (hours * 3600000);
+        final double dt = TraceReplay.SCAN_PERIOD_MILLIS / 1000.0;
+
+        final Walker sniffer = new Walker();
+        sniffer.x = sniffer.y = areaMeters / 2;
+        final Walker[] walkers = new Walker[devices];
+        final RpiRotation[] rotations = new RpiRotation[devices];
+        final Key[] currentKeys = new Key[devices];
+        final long[] rpis = new long[2 * devices];
+        final int[] aems = new int[devices];
+        final double[] meanRssi = new double[devices];
+        diagnosed = new boolean[devices];
+        txPowers = new int[devices];
+        for (int d = 0; d < devices; ++d) {
+            walkers[d] = new Walker();
+            walkers[d].x = rng.nextDouble() * areaMeters;
+            walkers[d].y = rng.nextDouble() * areaMeters;
+            rotations[d] = new RpiRotation(keyRandom);
+            diagnosed[d] = rng.nextDouble() < diagnosedFraction;
+            txPowers[d] = TX_POWERS_DBM[txPowerRandom.nextInt(TX_POWERS_DBM.length)];
+        }
+
+        final int[] seen = new int[devices];
+        final int[] rssis = new int[devices];
+        final double metersPerLongitude = METERS_PER_LATITUDE * Math.cos(Math.toRadians(CENTER_LATITUDE));
+        long nextLocation = START_MILLIS;
+        for (long now = START_MILLIS; now < end; now += TraceReplay.SCAN_PERIOD_MILLIS) {
+            sniffer.step(rng, dt, areaMeters);
+            if (now >= nextLocation) {
+                out.onLocation(new GeoPosition(
+                        CENTER_LATITUDE + (sniffer.y - areaMeters / 2) / METERS_PER_LATITUDE,
+                        CENTER_LONGITUDE + (sniffer.x - areaMeters / 2) / metersPerLongitude,
+                        5 + rng.nextInt(10), now));
+                nextLocation = now + LOCATION_PERIOD_MILLIS;
+            }
+
+            int n = 0;
+            for (int d = 0; d < devices; ++d) {
+                final RpiRotation rotation = rotations[d];
+                if (rotation.advanceTo(now)) {
+                    if (rotation.isKeyRolled()) {
+                        currentKeys[d] = new Key(d, rotation.getTemporaryExposureKey(),
+                                rotation.getRollingStartInterval());
+                        keys.add(currentKeys[d]);
+                    }
+                    final byte[] rpi = rotation.getRpi();
+                    rpis[2 * d] = RpiTable.high(rpi, 0);
+                    rpis[2 * d + 1] = RpiTable.low(rpi, 0);
+                    aems[d] = rotation.getAem(BeaconCrypto.AppleGoogleEN.metadata(txPowers[d]));
+                    meanRssi[d] = Double.NaN;
+                }
+                final Walker w = walkers[d];
+                w.step(rng, dt, areaMeters);
+                final double dx = w.x - sniffer.x, dy = w.y - sniffer.y;
+                final double distance2 = Math.max(0.25, dx * dx + dy * dy);
+                final double rssi = RSSI_AT_1M + txPowers[d] - TX_POWER_MEDIUM_DBM - 5 * PATH_LOSS_EXPONENT * Math.log10(distance2)
+                        + rng.nextGaussian() * RSSI_SIGMA;
+                if (rssi < DETECTION_THRESHOLD || rng.nextDouble() < MISS_PROBABILITY) continue;
+
+                rssis[n] = (int) Math.round(Math.min(0, rssi));
+                // the running average of the scanning library
+                meanRssi[d] = Double.isNaN(meanRssi[d]) ? rssis[n] : 0.8 * meanRssi[d] + 0.2 * rssis[n];
+                final Key key = currentKeys[d];
+                key.observedIntervals.set(rotation.getInterval() - key.rollingStartInterval);
+                key.observations++;
+                seen[n++] = d;
+            }
+            out.onBatch(now, n);
+            for (int i = 0; i < n; ++i) {
+                final int d = seen[i];
+                out.onBeacon(rpis[2 * d], rpis[2 * d + 1], aems[d], rssis[i], meanRssi[d]);
+            }
+            observations += n;
+            scans++;
+        }
+    }
+
+    /** The diagnosis keys, as output by linux/import_gaen_export.py, in random order */
+    void writeDiagnosisKeys(Writer out) throws IOException {
+        final Random rng = new Random(seed * 31 + 29);
+        final List<String> lines = new ArrayList<>();
+        for (Key key : keys) {
+            if (diagnosed[key.device]) lines.add(diagnosisKeyJson(key.tek, key.rollingStartInterval));
+        }
+        final int firstDay = RpiRotation.rollingStartInterval(
+                BeaconCrypto.AppleGoogleEN.enIntervalNumber(START_MILLIS / 1000));
+        final int days = 1 + (int) Math.ceil(hours / 24);
+        for (int i = 0; i < extraKeys; ++i) {
+            final byte[] tek = new byte[BeaconCrypto.AppleGoogleEN.KEY_LENGTH_BYTES];
+            rng.nextBytes(tek);
+            lines.add(diagnosisKeyJson(tek, firstDay + rng.nextInt(days) * RpiRotation.ROLLING_PERIOD));
+        }
+        Collections.shuffle(lines, rng);
+        for (String line : lines) out.write(line + "\n");
+    }
+
+    private static String diagnosisKeyJson(byte[] tek, int rollingStartInterval) {
+        return new DiagnosisKey(tek, rollingStartInterval, RpiRotation.ROLLING_PERIOD).toJson();
+    }
+
+    void writeTruth(Writer out) throws IOException {
+        for (Key key : keys) {
+            final StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"device\":").append(key.device);
+            sb.append(",\"diagnosed\":").append(diagnosed[key.device]);
+            sb.append(",\"diagnosisKey\":\"").append(BeaconCrypto.bytesToHex(key.tek)).append('"');
+            sb.append(",\"intervals\":[");
+            for (int i = key.observedIntervals.nextSetBit(0); i >= 0; i = key.observedIntervals.nextSetBit(i + 1)) {
+                if (sb.charAt(sb.length() - 1) != '[') sb.append(',');
+                sb.append(key.rollingStartInterval + i);
+            }
+            sb.append("],\"observations\":").append(key.observations);
+            sb.append(",\"rollingStartIntervalNumber\":").append(key.rollingStartInterval);
+            sb.append(",\"txPower\":").append(txPowers[key.device]);
+            sb.append("}\n");
+            out.write(sb.toString());
+        }
+    }
+
+    private static final Pattern KEY = DiagnosisKey.jsonField("diagnosisKey", "\"([0-9a-fA-F]{32})\"");
+    private static final Pattern DIAGNOSED = DiagnosisKey.jsonField("diagnosed", "(true|false)");
+    private static final Pattern INTERVALS = DiagnosisKey.jsonField("intervals", "\\[([0-9,]*)\\]");
+    private static final Pattern EN_INTERVAL = DiagnosisKey.jsonField("enInterval", "(\\d+)");
+
+    /**
+     * Compares matches (BulkMatcher output) to the ground truth: how many of the EN
+     * intervals in which a diagnosed key was picked up were matched, and how many matches
+     * are wrong. @return {true positives, false negatives, false positives}
+     */
+    static long[] score(BufferedReader truth, BufferedReader matches) throws IOException {
+        final Set<String> expected = new HashSet<>();
+        for (String line = truth.readLine(); line != null; line = truth.readLine()) {
+            final Matcher diagnosed = DIAGNOSED.matcher(line), key = KEY.matcher(line),
+                    intervals = INTERVALS.matcher(line);
+            if (!diagnosed.find() || !diagnosed.group(1).equals("true") || !key.find() || !intervals.find()) continue;
+            if (intervals.group(1).isEmpty()) continue;
+            for (String interval : intervals.group(1).split(",")) {
+                expected.add(key.group(1).toLowerCase(Locale.ROOT) + ":" + interval);
+            }
+        }
+        final Set<String> found = new HashSet<>();
+        for (String line = matches.readLine(); line != null; line = matches.readLine()) {
+            final Matcher key = KEY.matcher(line), interval = EN_INTERVAL.matcher(line);
+            if (key.find() && interval.find()) {
+                found.add(key.group(1).toLowerCase(Locale.ROOT) + ":" + interval.group(1));
+            }
+        }
+        long truePositives = 0;
+        for (String pair : found) if (expected.contains(pair)) truePositives++;
+        return new long[] { truePositives, expected.size() - truePositives, found.size() - truePositives };
+    }
+
+    private static Writer create(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static void usage() {
+        System.err.println("usage: CrowdGenerator [--devices N] [--hours H] [--area M] [--diagnosed F]"
+                + " [--extra-keys K] [--seed S] out\n"
+                + "       CrowdGenerator --score out.truth.jsonl matches.jsonl");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final CrowdGenerator generator = new CrowdGenerator();
+        final List<String> files = new ArrayList<>();
+        boolean score = false;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--devices": generator.devices = Integer.parseInt(args[++i]); break;
+                case "--hours": generator.hours = Double.parseDouble(args[++i]); break;
+                case "--area": generator.areaMeters = Double.parseDouble(args[++i]); break;
+                case "--diagnosed": generator.diagnosedFraction = Double.parseDouble(args[++i]); break;
+                case "--extra-keys": generator.extraKeys = Integer.parseInt(args[++i]); break;
+                case "--seed": generator.seed = Long.parseLong(args[++i]); break;
+                case "--score": score = true; break;
+                default: files.add(args[i]);
+            }
+        }
+
+        if (score) {
+            if (files.size() != 2) usage();
+            try (BufferedReader truth = BulkMatcher.open(files.get(0));
+                 BufferedReader matches = BulkMatcher.open(files.get(1))) {
+                final long[] s = score(truth, matches);
+                final long expected = s[0] + s[1];
+                System.out.printf(Locale.ROOT, "matched %d of %d observed diagnosed EN intervals (recall %.4f), "
+                        + "%d false match(es)%n", s[0], expected, expected > 0 ? s[0] / (double) expected : 1.0, s[2]);
+            }
+            return;
+        }
+
+        if (files.size() != 1) usage();
+        final String out = files.get(0);
+        final File traceFile = new File(out + ".trace");
+        if (traceFile.exists() && !traceFile.delete()) throw new IOException("cannot overwrite " + traceFile);
+        final long t0 = System.nanoTime();
+        try (ScanTrace.Writer trace = new ScanTrace.Writer(traceFile)) {
+            generator.generate(trace);
+            if (trace.getError() != null) throw trace.getError();
+        }
+        try (Writer keys = create(new File(out + ".keys.jsonl"))) {
+            generator.writeDiagnosisKeys(keys);
+        }
+        try (Writer truth = create(new File(out + ".truth.jsonl"))) {
+            generator.writeTruth(truth);
+        }
+        int diagnosed = 0;
+        for (boolean d : generator.diagnosed) if (d) diagnosed++;
+        System.err.printf(Locale.ROOT, "%d scans, %d observations of %d keys of %d devices (%d diagnosed) in %.1f s%n",
+                generator.scans, generator.observations, generator.keys.size(), generator.devices, diagnosed,
+                (System.nanoTime() - t0) * 1e-9);
+    }
+}
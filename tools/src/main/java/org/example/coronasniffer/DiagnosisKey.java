@@ -0,0 +1,77 @@
+package org.example.coronasniffer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A GAEN diagnosis key (a TEK reported positive) and the EN intervals it was valid for
+ */
+class DiagnosisKey {
+    // same as the GAEN default: TEKs roll daily
+    static final int DEFAULT_ROLLING_PERIOD = 144;
+    // cf. the backend, which refuses to expand longer ranges
+    static final int MAX_ROLLING_PERIOD = 10000;
+
+    private static final Pattern KEY = jsonField("diagnosisKey", "\"([0-9a-fA-F]{32})\"");
+    private static final Pattern MIN_TIME = jsonField("minUnixTime", "(\\d+)");
+    private static final Pattern MAX_TIME = jsonField("maxUnixTime", "(\\d+)");
+
+    final byte[] key;
+    final int rollingStartInterval;
+    final int rollingPeriod;
+
+    DiagnosisKey(byte[] key, int rollingStartInterval, int rollingPeriod) {
+        if (key.length != BeaconCrypto.AppleGoogleEN.KEY_LENGTH_BYTES)
+            throw new IllegalArgumentException("invalid key length " + key.length);
+        if (rollingPeriod <= 0 || rollingPeriod > MAX_ROLLING_PERIOD)
+            throw new IllegalArgumentException("invalid rolling period " + rollingPeriod);
+        this.key = key;
+        this.rollingStartInterval = rollingStartInterval;
+        this.rollingPeriod = rollingPeriod;
+    }
+
+    static DiagnosisKey fromUnixTimeRange(byte[] key, long minUnixTime, long maxUnixTime) {
+        final int first = BeaconCrypto.AppleGoogleEN.enIntervalNumber(minUnixTime);
+        final int last = BeaconCrypto.AppleGoogleEN.enIntervalNumber(maxUnixTime);
+        return new DiagnosisKey(key, first, last - first + 1);
+    }
+
+    /**
+     * Parse a line of linux/import_gaen_export.py output, e.g.,
+     * {"diagnosisKey": "6578...", "minUnixTime": 1598000000, "maxUnixTime": 1598086400}
+     * or a plain hex key, which gets the given default time range.
+     *
+     * @return null if the line contains no key
+     */
+    static DiagnosisKey parse(String line, long defaultMinUnixTime, long defaultMaxUnixTime) {
+        line = line.trim();
+        if (line.isEmpty()) return null;
+        if (!line.startsWith("{")) {
+            return fromUnixTimeRange(BeaconCrypto.hexToBytes(line),
+                    defaultMinUnixTime, defaultMaxUnixTime);
+        }
+        Matcher key = KEY.matcher(line);
+        if (!key.find()) return null;
+        Matcher min = MIN_TIME.matcher(line), max = MAX_TIME.matcher(line);
+        return fromUnixTimeRange(BeaconCrypto.hexToBytes(key.group(1)),
+                min.find() ? Long.parseLong(min.group(1)) : defaultMinUnixTime,
+                max.find() ? Long.parseLong(max.group(1)) : defaultMaxUnixTime);
+    }
+
+    static Pattern jsonField(String name, String valuePattern) {
+        return Pattern.compile("\"" + name + "\"\\s*:\\s*" + valuePattern);
+    }
+
+    /** @return the key as a line of linux/import_gaen_export.py output, with its own time range */
+    String toJson() {
+        final long minUnixTime = rollingStartInterval * (long) BeaconCrypto.AppleGoogleEN.EN_INTERVAL_SECONDS;
+        final long maxUnixTime = minUnixTime + rollingPeriod * (long) BeaconCrypto.AppleGoogleEN.EN_INTERVAL_SECONDS - 1;
+        return "{\"diagnosisKey\":\"" + this + "\",\"maxUnixTime\":" + maxUnixTime
+                + ",\"minUnixTime\":" + minUnixTime + "}";
+    }
+
+    @Override
+    public String toString() {
+        return BeaconCrypto.bytesToHex(key);
+    }
+}
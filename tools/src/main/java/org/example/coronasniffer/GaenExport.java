@@ -0,0 +1,230 @@
+package org.example.coronasniffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Streaming reader of GAEN key exports (export.bin, or the export.zip it is published in).
+ * The protocol buffer is decoded in place from a memory-mapped file, one key at a time,
+ * so the memory use does not depend on the number of keys. Unlike the export window used
+ * by linux/import_gaen_export.py, every key gets its own rolling_start_interval_number and
+ * rolling_period, i.e., usually 144 EN intervals instead of the whole window.
+ *
+ * See https://github.com/google/exposure-notifications-server/blob/v0.7.0/internal/pb/export/export.proto
+ *
+ * Usage: GaenExport export.zip|export.bin... (writes the keys as import_gaen_export.py would)
+ */
+class GaenExport implements Closeable {
+    static final String HEADER = "EK Export v1    ";
+
+    // TemporaryExposureKeyExport fields
+    private static final int START_TIMESTAMP = 1, END_TIMESTAMP = 2, REGION = 3, KEYS = 7;
+    // TemporaryExposureKey fields
+    private static final int KEY_DATA = 1, ROLLING_START_INTERVAL_NUMBER = 3, ROLLING_PERIOD = 4;
+
+    private static final int VARINT = 0, FIXED64 = 1, LENGTH_DELIMITED = 2, FIXED32 = 5;
+
+    private final ByteBuffer buffer;
+    private final RandomAccessFile file;
+    private long startTimestamp = -1, endTimestamp = -1;
+    private String region;
+    private int invalidKeys = 0;
+
+    /** @param buffer the export without the header */
+    GaenExport(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    private GaenExport(ByteBuffer buffer, RandomAccessFile file) {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.file = file;
+    }
+
+    /** Opens an export.bin, which is memory-mapped, or the export.bin in an export.zip */
+    static GaenExport open(File path) throws IOException {
+        if (path.getName().endsWith(".zip")) {
+            try (ZipFile zip = new ZipFile(path)) {
+                final ZipEntry entry = zip.getEntry("export.bin");
+                if (entry == null) throw new IOException(path + ": no export.bin");
+                try (InputStream in = zip.getInputStream(entry)) {
+                    return new GaenExport(checkHeader(path, ByteBuffer.wrap(readFully(in))));
+                }
+            }
+        }
+        final RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            final ByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return new GaenExport(checkHeader(path, mapped), file);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[1 << 16];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) out.write(chunk, 0, n);
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer checkHeader(File path, ByteBuffer buffer) throws IOException {
+        final byte[] header = new byte[HEADER.length()];
+        if (buffer.remaining() < header.length) throw new IOException(path + " is not a GAEN export");
+        buffer.get(header);
+        if (!HEADER.equals(new String(header, StandardCharsets.US_ASCII))) {
+            throw new IOException(path + " is not a GAEN export");
+        }
+        return buffer;
+    }
+
+    /** @return the next key, or null at the end of the export */
+    DiagnosisKey next() throws IOException {
+        while (buffer.hasRemaining()) {
+            final int tag = readVarint32();
+            final int field = tag >>> 3, type = tag & 7;
+            if (field == START_TIMESTAMP && type == FIXED64) {
+                startTimestamp = readFixed64();
+            } else if (field == END_TIMESTAMP && type == FIXED64) {
+                endTimestamp = readFixed64();
+            } else if (field == REGION && type == LENGTH_DELIMITED) {
+                final byte[] bytes = new byte[length()];
+                buffer.get(bytes);
+                region = new String(bytes, StandardCharsets.UTF_8);
+            } else if (field == KEYS && type == LENGTH_DELIMITED) {
+                final int length = length();
+                final int end = buffer.position() + length;
+                final DiagnosisKey key = readKey(end);
+                buffer.position(end);
+                if (key != null) return key;
+                invalidKeys++;
+            } else {
+                // signatures, revised keys etc.
+                skip(type);
+            }
+        }
+        return null;
+    }
+
+    /** @return null if the key is invalid */
+    private DiagnosisKey readKey(int end) throws IOException {
+        byte[] keyData = null;
+        // keys without an interval get the export window, like in import_gaen_export.py
+        int rollingStart = -1, rollingPeriod = DiagnosisKey.DEFAULT_ROLLING_PERIOD;
+        while (buffer.position() < end) {
+            final int tag = readVarint32();
+            final int field = tag >>> 3, type = tag & 7;
+            if (field == KEY_DATA && type == LENGTH_DELIMITED) {
+                keyData = new byte[length()];
+                buffer.get(keyData);
+            } else if (field == ROLLING_START_INTERVAL_NUMBER && type == VARINT) {
+                rollingStart = readVarint32();
+            } else if (field == ROLLING_PERIOD && type == VARINT) {
+                rollingPeriod = readVarint32();
+            } else {
+                skip(type);
+            }
+        }
+        if (buffer.position() != end) throw new IOException("truncated key at " + end);
+        if (keyData == null) return null;
+        try {
+            if (rollingStart < 0) {
+                if (startTimestamp < 0 || endTimestamp < startTimestamp) return null;
+                return DiagnosisKey.fromUnixTimeRange(keyData, startTimestamp, endTimestamp - 1);
+            }
+            return new DiagnosisKey(keyData, rollingStart, rollingPeriod);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) throw new IOException("truncated varint");
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private long readFixed64() throws IOException {
+        if (buffer.remaining() < 8) throw new IOException("truncated field");
+        return buffer.getLong();
+    }
+
+    // int32 fields are encoded as 64-bit varints, negative ones with all 10 bytes
+    private int readVarint32() throws IOException {
+        return (int) readVarint();
+    }
+
+    private int length() throws IOException {
+        final long length = readVarint();
+        if (length < 0 || length > buffer.remaining()) throw new IOException("truncated field");
+        return (int) length;
+    }
+
+    private void skip(int type) throws IOException {
+        final int n;
+        switch (type) {
+            case VARINT: readVarint(); return;
+            case FIXED64: n = 8; break;
+            case LENGTH_DELIMITED: n = length(); break;
+            case FIXED32: n = 4; break;
+            default: throw new IOException("unsupported wire type " + type);
+        }
+        if (n > buffer.remaining()) throw new IOException("truncated field");
+        buffer.position(buffer.position() + n);
+    }
+
+    /** @return the start of the export window (unix seconds), -1 if not read yet */
+    long getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    long getEndTimestamp() {
+        return endTimestamp;
+    }
+
+    String getRegion() {
+        return region;
+    }
+
+    /** @return the number of keys skipped so far because of missing data or an invalid rolling period */
+    int getInvalidKeyCount() {
+        return invalidKeys;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) file.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: GaenExport export.zip|export.bin...");
+            System.exit(1);
+        }
+        for (String path : args) {
+            try (GaenExport export = open(new File(path))) {
+                for (DiagnosisKey key = export.next(); key != null; key = export.next()) {
+                    System.out.println(key.toJson());
+                }
+                if (export.getInvalidKeyCount() > 0) {
+                    System.err.println(path + ": skipped " + export.getInvalidKeyCount() + " invalid key(s)");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.example.coronasniffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Converts binary sighting journals (or sighting segments) written by the Android sniffer
+ * to the JSON lines output by android/parse_logs.py, which can be POSTed to the backend
+ * with linux/agent.py.
+ *
+ * Usage: JournalToJson sightings.bin|DAY-SEQ.seg...
+ */
+class JournalToJson {
+    static String toJson(SightingRecord r) {
+        // same shape (and field order) as parse_app_log in parse_logs.py
+        final double lat = r.first.latitude, lng = r.first.longitude;
+        return String.format(Locale.ROOT,
+                "{\"scan\": {\"contact_tracing\": {\"apple_google_en\": {\"rpi\": \"%s\", \"aem\": \"%s\"}}}, "
+                        + "\"agent\": {\"id\": \"android-location-%f,%f\", "
+                        + "\"location\": {\"latitude\": %s, \"longitude\": %s}}}",
+                r.rpiHex(), r.aemHex(), lat, lng, Double.toString(lat), Double.toString(lng));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: JournalToJson sightings.bin|DAY-SEQ.seg...");
+            System.exit(1);
+        }
+        SightingRecord r = new SightingRecord();
+        for (String path : args) {
+            if (path.endsWith(".seg")) {
+                try (SightingSegment segment = SightingSegment.open(new File(path))) {
+                    for (int i = 0; i < segment.size(); ++i) {
+                        segment.read(i, r);
+                        if (r.first.valid) System.out.println(toJson(r));
+                    }
+                }
+                continue;
+            }
+            try (SightingJournal.Reader reader = new SightingJournal.Reader(new File(path))) {
+                while (reader.next(r)) {
+                    // like parse_logs.py, skip sightings without a location
+                    if (r.first.valid) System.out.println(toJson(r));
+                }
+                if (reader.isCorrupted()) System.err.println(path + ": stopped at a truncated or corrupted record");
+            }
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package org.example.coronasniffer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays recorded ranging batches through BeaconStats as fast as possible, with the
+ * clock driven by the trace. Reports the throughput, the peak number of live RPIs and
+ * whether the output (logged sightings and nearby device counts) is equivalent to a
+ * straightforward reference implementation fed with the same trace.
+ *
+ * Usage:
+ *
+ *     TraceReplay [OPTIONS] scans.trace|sniffer.log...
+ *     TraceReplay [OPTIONS] --crowd DEVICES [--minutes M] [--seed S] [--write out.trace]
+ *
+ * The input can be ScanTraces recorded by the Android sniffer or its FileLogger logs,
+ * in which case each logged sighting is expanded back to evenly spaced scans. The
+ * --crowd option generates a stadium-like trace instead, with DEVICES phones in range
+ * that rotate their RPIs independently. The options are
+ *
+ *     --no-verify          skip the reference implementation
+ *     --sightings FILE     write the logged sightings as JSON lines like the sniffer logs,
+ *                          e.g., for BulkMatcher
+ *     --rpi-filters DIR    write the per-day RPI filters like the sniffer, for the
+ *                          --prescreen of BulkMatcher
+ */
+class TraceReplay implements ScanTrace.Listener {
+    static final long SCAN_PERIOD_MILLIS = 1100;
+
+    static class ReplayClock implements Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    /** Collects copies of the logged sightings */
+    private static class CollectingSink implements AsyncSightingLog.Sink {
+        final List<SightingRecord> records = new ArrayList<>();
+
+        @Override
+        public void write(SightingRecord r) {
+            records.add(new SightingRecord().copyFrom(r));
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * The aggregation of BeaconStats without any of its optimizations: a HashMap that
+     * is scanned in full to prune and to count the nearby devices, all RSSIs stored
+     * and sorted for the percentiles, and the location fixes kept as they are.
+     */
+    static class Reference {
+        private static class Entry {
+            final SightingRecord record = new SightingRecord();
+            long firstSeen, lastSeen; // milliseconds
+            int firstFix, lastFix;
+            final List<Integer> rssis = new ArrayList<>();
+            long lastSecond;
+            int seconds;
+        }
+
+        private final Map<List<Long>, Entry> entries = new HashMap<>();
+        final List<SightingRecord> logged = new ArrayList<>();
+        private GeoPosition location = null;
+        private final List<GeoPosition> fixes = new ArrayList<>();
+
+        void beginBatch() {
+            if (location != null && (fixes.isEmpty() || fixes.get(fixes.size() - 1) != location)) {
+                fixes.add(location);
+            }
+        }
+
+        void add(long time, long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+            final List<Long> key = Arrays.asList(rpiHigh, rpiLow);
+            Entry e = entries.get(key);
+            final int observedMax = Math.max(rssi, (int) Math.round(meanRssi));
+            if (e == null) {
+                e = new Entry();
+                e.record.rpiHigh = rpiHigh;
+                e.record.rpiLow = rpiLow;
+                e.record.aem = aem;
+                e.record.nScans = 1;
+                e.record.meanRssi = meanRssi;
+                e.record.maxRssi = observedMax;
+                e.firstSeen = time;
+                e.firstFix = fixes.size() - 1;
+                e.seconds = 1;
+                entries.put(key, e);
+            } else {
+                e.record.maxRssi = Math.max(e.record.maxRssi, observedMax);
+                e.record.meanRssi = (e.record.meanRssi * e.record.nScans + meanRssi) / (e.record.nScans + 1);
+                e.record.nScans++;
+                final long second = (time - e.firstSeen) / 1000;
+                if (second != e.lastSecond) e.seconds++;
+                e.lastSecond = second;
+            }
+            e.rssis.add(Math.max(BeaconStats.MIN_RSSI, Math.min(0, rssi)));
+            e.lastSeen = time;
+            e.lastFix = fixes.size() - 1;
+        }
+
+        void onLocationChanged(GeoPosition location) {
+            this.location = location;
+        }
+
+        void prune(long now) {
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry e = it.next();
+                if ((now - e.lastSeen) / 1000 > 60 * 11) {
+                    log(e);
+                    it.remove();
+                }
+            }
+        }
+
+        int nearbyDeviceCount(long now) {
+            int count = 0;
+            for (Entry e : entries.values()) {
+                if ((now - e.lastSeen) / 1000 < 30) count++;
+            }
+            return count;
+        }
+
+        void flush() {
+            for (Entry e : entries.values()) log(e);
+            entries.clear();
+        }
+
+        private void log(Entry e) {
+            SightingRecord r = new SightingRecord().copyFrom(e.record);
+            r.firstSeen = e.firstSeen / 1000;
+            r.lastSeen = e.lastSeen / 1000;
+            setPosition(r.first, e.firstFix, e.firstSeen);
+            setPosition(r.last, e.lastFix, e.lastSeen);
+            Collections.sort(e.rssis);
+            r.p10Rssi = percentile(e.rssis, 10);
+            r.medianRssi = percentile(e.rssis, 50);
+            r.p90Rssi = percentile(e.rssis, 90);
+            r.secondsPresent = e.seconds;
+            logged.add(r);
+        }
+
+        private static int percentile(List<Integer> sorted, int percent) {
+            final int rank = (int) Math.ceil(sorted.size() * percent / 100.0);
+            return sorted.get(Math.max(0, rank - 1));
+        }
+
+        /** Interpolated between the fix known when seen and the one after it, if any */
+        private void setPosition(SightingRecord.Position p, int fix, long time) {
+            if (fix < 0) {
+                p.clear();
+                return;
+            }
+            final GeoPosition a = fixes.get(fix);
+            final GeoPosition b = fix + 1 < fixes.size() ? fixes.get(fix + 1) : a;
+            if (b.time <= a.time || time <= a.time) {
+                p.set(a.latitude, a.longitude, a.accuracy);
+            } else {
+                final double f = Math.min(1.0, (time - a.time) / (double) (b.time - a.time));
+                p.set(a.latitude + (b.latitude - a.latitude) * f, a.longitude + (b.longitude - a.longitude) * f,
+                        Math.max(a.accuracy, b.accuracy));
+            }
+        }
+    }
+
+    private final ReplayClock clock = new ReplayClock();
+    private final CollectingSink sink = new CollectingSink();
+    private final AsyncSightingLog sightingLog;
+    private final BeaconStats stats;
+    private final Reference reference;
+
+    // the current batch, buffered so that only BeaconStats is timed
+    private long batchTime;
+    private int batchSize = -1, batchFill = 0;
+    private long[] rpis = new long[256];
+    private int[] aems = new int[128];
+    private int[] rssis = new int[128];
+    private double[] meanRssis = new double[128];
+
+    private long batches = 0, sightings = 0, locations = 0;
+    private long firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+    private long replayNanos = 0, maxBatchNanos = 0;
+    private int peakSize = 0;
+    private long nearbyMismatches = 0;
+
+    TraceReplay(boolean verify) {
+        this(verify, null);
+    }
+
+    /** @param rpiFilterDir if not null, the per-day RPI filters are written there on finish() */
+    TraceReplay(boolean verify, File rpiFilterDir) {
+        reference = verify ? new Reference() : null;
+        final AsyncSightingLog.Sink out = rpiFilterDir == null ? sink : new RpiFilterSink(sink, rpiFilterDir,
+                RpiFilterSink.DEFAULT_EXPECTED_RPIS_PER_DAY, RpiFilterSink.DEFAULT_FALSE_POSITIVE_RATE,
+                clock, Long.MAX_VALUE);
+        sightingLog = new AsyncSightingLog(out, 1 << 16, 1000);
+        stats = new BeaconStats(sightingLog, clock);
+    }
+
+    @Override
+    public void onBatch(long time, int size) {
+        if (batchSize >= 0) endTruncatedBatch();
+        batchTime = time;
+        batchSize = size;
+        batchFill = 0;
+        if (size > aems.length) {
+            final int capacity = Math.max(size, 2 * aems.length);
+            rpis = new long[2 * capacity];
+            aems = new int[capacity];
+            rssis = new int[capacity];
+            meanRssis = new double[capacity];
+        }
+        if (size == 0) replayBatch();
+    }
+
+    private void endTruncatedBatch() {
+        batchSize = batchFill;
+        replayBatch();
+    }
+
+    @Override
+    public void onBeacon(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+        if (batchSize < 0) throw new IllegalStateException("beacon outside a batch");
+        final int i = batchFill++;
+        rpis[2 * i] = rpiHigh;
+        rpis[2 * i + 1] = rpiLow;
+        aems[i] = aem;
+        rssis[i] = rssi;
+        meanRssis[i] = meanRssi;
+        if (batchFill == batchSize) replayBatch();
+    }
+
+    @Override
+    public void onLocation(GeoPosition location) {
+        locations++;
+        stats.onLocationChanged(location);
+        if (reference != null) reference.onLocationChanged(location);
+    }
+
+    private void replayBatch() {
+        final int n = batchSize;
+        clock.now = batchTime;
+
+        final long start = System.nanoTime();
+        stats.beginBatch(n);
+        for (int i = 0; i < n; ++i) {
+            stats.add(rpis[2 * i], rpis[2 * i + 1], aems[i], rssis[i], meanRssis[i]);
+        }
+        final BeaconStats.Snapshot snapshot = stats.endBatch();
+        final long elapsed = System.nanoTime() - start;
+
+        replayNanos += elapsed;
+        maxBatchNanos = Math.max(maxBatchNanos, elapsed);
+        peakSize = Math.max(peakSize, snapshot.devices);
+        batches++;
+        sightings += n;
+        firstTime = Math.min(firstTime, batchTime);
+        lastTime = Math.max(lastTime, batchTime);
+        batchSize = -1;
+
+        if (reference != null) {
+            reference.beginBatch();
+            for (int i = 0; i < n; ++i) {
+                reference.add(batchTime, rpis[2 * i], rpis[2 * i + 1], aems[i], rssis[i], meanRssis[i]);
+            }
+            reference.prune(batchTime);
+            if (reference.nearbyDeviceCount(batchTime) != snapshot.nearbyDevices) nearbyMismatches++;
+        }
+    }
+
+    /** Logs the remaining entries and prints the report. @return true if the output was equivalent */
+    boolean finish() throws IOException {
+        if (batchSize >= 0) endTruncatedBatch();
+        stats.flush();
+        sightingLog.close();
+
+        final double seconds = replayNanos / 1e9;
+        final double traceSeconds = batches > 0 ? (lastTime - firstTime) / 1000.0 : 0;
+        System.out.printf(Locale.ROOT, "batches: %d, sightings: %d, locations: %d, trace duration: %.0f s%n",
+                batches, sightings, locations, traceSeconds);
+        System.out.printf(Locale.ROOT, "replay time: %.3f s (%.0fx real time), %.0f sightings/s%n",
+                seconds, traceSeconds / seconds, sightings / seconds);
+        System.out.printf(Locale.ROOT, "batch time: mean %.1f us, max %.1f us%n",
+                batches > 0 ? replayNanos / 1e3 / batches : 0, maxBatchNanos / 1e3);
+        System.out.printf(Locale.ROOT, "peak live RPIs: %d, logged sightings: %d, dropped: %d%n",
+                peakSize, sink.records.size(), sightingLog.getDropped());
+        if (reference == null) return true;
+
+        reference.flush();
+        final long recordMismatches = countMismatches(sink.records, reference.logged);
+        System.out.printf(Locale.ROOT, "reference: %d logged sightings, %d mismatched, %d mismatched nearby counts%n",
+                reference.logged.size(), recordMismatches, nearbyMismatches);
+        final boolean equivalent = recordMismatches == 0 && nearbyMismatches == 0 && sightingLog.getDropped() == 0;
+        System.out.println(equivalent ? "output equivalent to reference" : "OUTPUT DIFFERS FROM REFERENCE");
+        return equivalent;
+    }
+
+    /** Writes the sightings logged by BeaconStats as JSON lines. Call after finish() */
+    void writeSightings(Writer out) throws IOException {
+        for (SightingRecord r : sink.records) out.write(r.toJson() + "\n");
+    }
+
+    private static final Comparator<SightingRecord> RECORD_ORDER = new Comparator<SightingRecord>() {
+        @Override
+        public int compare(SightingRecord a, SightingRecord b) {
+            int c = Long.compare(a.rpiHigh, b.rpiHigh);
+            if (c == 0) c = Long.compare(a.rpiLow, b.rpiLow);
+            if (c == 0) c = Long.compare(a.firstSeen, b.firstSeen);
+            return c;
+        }
+    };
+
+    /** @return the number of records in either list without an identical one in the other */
+    static long countMismatches(List<SightingRecord> a, List<SightingRecord> b) {
+        a = new ArrayList<>(a);
+        b = new ArrayList<>(b);
+        Collections.sort(a, RECORD_ORDER);
+        Collections.sort(b, RECORD_ORDER);
+        long mismatches = 0;
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            final int c = RECORD_ORDER.compare(a.get(i), b.get(j));
+            if (c == 0 && !sameRecord(a.get(i), b.get(j))) mismatches += 2;
+            if (c < 0) {
+                mismatches++;
+                i++;
+            } else if (c > 0) {
+                mismatches++;
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return mismatches + (a.size() - i) + (b.size() - j);
+    }
+
+    static boolean sameRecord(SightingRecord a, SightingRecord b) {
+        return a.rpiHigh == b.rpiHigh && a.rpiLow == b.rpiLow && a.aem == b.aem
+                && a.firstSeen == b.firstSeen && a.lastSeen == b.lastSeen && a.nScans == b.nScans
+                && a.maxRssi == b.maxRssi && a.meanRssi == b.meanRssi
+                && a.p10Rssi == b.p10Rssi && a.medianRssi == b.medianRssi && a.p90Rssi == b.p90Rssi
+                && a.secondsPresent == b.secondsPresent
+                && samePosition(a.first, b.first) && samePosition(a.last, b.last);
+    }
+
+    /** Up to the quantization of LocationTrack */
+    private static boolean samePosition(SightingRecord.Position a, SightingRecord.Position b) {
+        return a.valid == b.valid && Math.abs(a.latitude - b.latitude) < 1e-7
+                && Math.abs(a.longitude - b.longitude) < 1e-7 && Math.abs(a.accuracy - b.accuracy) < 0.051;
+    }
+
+    /**
+     * A crowd of phones that all stay in range, like a stadium audience. Each one
+     * rotates its RPI every 10-20 minutes, independently of the others, and is picked up
+     * by a given scan with a probability of 80%.
+     */
+    static void generateCrowd(int devices, int minutes, long seed, ScanTrace.Listener out) {
+        final Random rng = new Random(seed);
+        final long start = 1600000000000L;
+        final long end = start + minutes * 60000L;
+        final long[] rpis = new long[2 * devices];
+        final long[] rotateAt = new long[devices];
+        final int[] aems = new int[devices];
+        final int[] baseRssi = new int[devices];
+        final double[] meanRssi = new double[devices];
+        for (int d = 0; d < devices; ++d) {
+            rotateAt[d] = start + (long) (rng.nextDouble() * 20 * 60000);
+            rpis[2 * d] = rng.nextLong();
+            rpis[2 * d + 1] = rng.nextLong();
+            aems[d] = rng.nextInt();
+            baseRssi[d] = -95 + rng.nextInt(50);
+            meanRssi[d] = baseRssi[d];
+        }
+
+        final int[] seen = new int[devices];
+        final int[] rssi = new int[devices];
+        long nextLocation = start;
+        for (long now = start; now < end; now += SCAN_PERIOD_MILLIS) {
+            if (now >= nextLocation) {
+                out.onLocation(new GeoPosition(60.1874 + rng.nextGaussian() * 1e-5,
+                        24.9277 + rng.nextGaussian() * 1e-5, 5 + rng.nextInt(20), now));
+                nextLocation = now + 5000;
+            }
+            int n = 0;
+            for (int d = 0; d < devices; ++d) {
+                if (now >= rotateAt[d]) {
+                    rpis[2 * d] = rng.nextLong();
+                    rpis[2 * d + 1] = rng.nextLong();
+                    aems[d] = rng.nextInt();
+                    meanRssi[d] = baseRssi[d];
+                    rotateAt[d] = now + 10 * 60000 + (long) (rng.nextDouble() * 10 * 60000);
+                }
+                if (rng.nextInt(5) == 0) continue;
+                rssi[n] = baseRssi[d] + (int) Math.round(rng.nextGaussian() * 4);
+                meanRssi[d] = 0.8 * meanRssi[d] + 0.2 * rssi[n];
+                seen[n++] = d;
+            }
+            out.onBatch(now, n);
+            for (int i = 0; i < n; ++i) {
+                final int d = seen[i];
+                out.onBeacon(rpis[2 * d], rpis[2 * d + 1], aems[d], rssi[i], meanRssi[d]);
+            }
+        }
+    }
+
+    private static final Pattern RPI = DiagnosisKey.jsonField("rpi", "\"([0-9a-fA-F]{32})\"");
+    private static final Pattern AEM = DiagnosisKey.jsonField("aem", "\"([0-9a-fA-F]{1,8})\"");
+    private static final Pattern N_SCANS = DiagnosisKey.jsonField("nScans", "(\\d+)");
+    private static final Pattern MAX_RSSI = DiagnosisKey.jsonField("maxRssi", "(-?\\d+)");
+    private static final Pattern MEAN_RSSI = DiagnosisKey.jsonField("meanRssi", "(-?[0-9.eE+-]+)");
+    private static final Pattern FIRST = DiagnosisKey.jsonField("first", "\\{([^}]*)\\}");
+    private static final Pattern LAST = DiagnosisKey.jsonField("last", "\\{([^}]*)\\}");
+    private static final Pattern SEEN = DiagnosisKey.jsonField("seen", "\"([^\"]+)\"");
+    private static final Pattern LATITUDE = DiagnosisKey.jsonField("latitude", "(-?[0-9.eE+-]+)");
+    private static final Pattern LONGITUDE = DiagnosisKey.jsonField("longitude", "(-?[0-9.eE+-]+)");
+    private static final Pattern ACCURACY = DiagnosisKey.jsonField("accuracy", "([0-9.]+)");
+
+    /**
+     * Expands the sightings logged by the sniffer back to scans: nScans evenly spaced
+     * beacons between the first and last sighting, with the logged mean RSSI, and the
+     * logged locations at the first and last sighting. Lines that are not sightings are
+     * skipped.
+     */
+    static void expandSightingLog(BufferedReader in, ScanTrace.Listener out) throws IOException {
+        final SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.UK);
+        // events as {time, kind, index}, kind 0 for locations and 1 for beacons
+        final List<long[]> events = new ArrayList<>();
+        final List<GeoPosition> positions = new ArrayList<>();
+        final List<long[]> beacons = new ArrayList<>(); // rpi high, low, aem, rssi, mean rssi bits
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            final Matcher rpi = RPI.matcher(line), first = FIRST.matcher(line), last = LAST.matcher(line);
+            final Matcher nScans = N_SCANS.matcher(line);
+            if (!rpi.find() || !first.find() || !last.find() || !nScans.find()) continue;
+            final long firstSeen, lastSeen;
+            try {
+                firstSeen = parseSeen(iso8601, first.group(1));
+                lastSeen = parseSeen(iso8601, last.group(1));
+            } catch (ParseException e) {
+                continue;
+            }
+            final Matcher aem = AEM.matcher(line), maxRssi = MAX_RSSI.matcher(line);
+            final Matcher meanRssi = MEAN_RSSI.matcher(line);
+            final byte[] rpiBytes = BeaconCrypto.hexToBytes(rpi.group(1));
+            final double mean = meanRssi.find() ? Double.parseDouble(meanRssi.group(1)) : -80;
+            final long[] beacon = {
+                    RpiTable.high(rpiBytes, 0), RpiTable.low(rpiBytes, 0),
+                    aem.find() ? Long.parseLong(aem.group(1), 16) : 0,
+                    maxRssi.find() ? Integer.parseInt(maxRssi.group(1)) : Math.round(mean),
+                    Double.doubleToLongBits(mean)
+            };
+            beacons.add(beacon);
+
+            addLocation(first.group(1), firstSeen, events, positions);
+            addLocation(last.group(1), lastSeen, events, positions);
+            final int n = Math.max(1, Integer.parseInt(nScans.group(1)));
+            for (int i = 0; i < n; ++i) {
+                final long time = n == 1 ? firstSeen : firstSeen + (lastSeen - firstSeen) * i / (n - 1);
+                events.add(new long[]{time, 1, beacons.size() - 1});
+            }
+        }
+
+        Collections.sort(events, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                int c = Long.compare(a[0], b[0]);
+                return c != 0 ? c : Long.compare(a[1], b[1]);
+            }
+        });
+
+        // group the beacons into batches of one scan period
+        int i = 0;
+        while (i < events.size()) {
+            final long[] e = events.get(i);
+            if (e[1] == 0) {
+                out.onLocation(positions.get((int) e[2]));
+                i++;
+                continue;
+            }
+            final long batchTime = e[0];
+            int end = i;
+            while (end < events.size() && events.get(end)[1] == 1
+                    && events.get(end)[0] < batchTime + SCAN_PERIOD_MILLIS) end++;
+            out.onBatch(batchTime, end - i);
+            for (; i < end; ++i) {
+                final long[] b = beacons.get((int) events.get(i)[2]);
+                out.onBeacon(b[0], b[1], (int) b[2], (int) b[3], Double.longBitsToDouble(b[4]));
+            }
+        }
+    }
+
+    private static long parseSeen(SimpleDateFormat iso8601, String position) throws ParseException {
+        final Matcher seen = SEEN.matcher(position);
+        if (!seen.find()) throw new ParseException(position, 0);
+        return iso8601.parse(seen.group(1)).getTime();
+    }
+
+    private static void addLocation(String position, long time, List<long[]> events, List<GeoPosition> positions) {
+        final Matcher lat = LATITUDE.matcher(position), lng = LONGITUDE.matcher(position);
+        if (!lat.find() || !lng.find()) return;
+        final Matcher accuracy = ACCURACY.matcher(position);
+        positions.add(new GeoPosition(Double.parseDouble(lat.group(1)), Double.parseDouble(lng.group(1)),
+                accuracy.find() ? Float.parseFloat(accuracy.group(1)) : 0, time));
+        events.add(new long[]{time, 0, positions.size() - 1});
+    }
+
+    private static boolean isScanTrace(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= 4 && in.readInt() == ScanTrace.MAGIC;
+        }
+    }
+
+    /** Forwards everything to two listeners */
+    private static ScanTrace.Listener tee(final ScanTrace.Listener a, final ScanTrace.Listener b) {
+        return new ScanTrace.Listener() {
+            @Override
+            public void onBatch(long time, int size) {
+                a.onBatch(time, size);
+                b.onBatch(time, size);
+            }
+
+            @Override
+            public void onBeacon(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+                a.onBeacon(rpiHigh, rpiLow, aem, rssi, meanRssi);
+                b.onBeacon(rpiHigh, rpiLow, aem, rssi, meanRssi);
+            }
+
+            @Override
+            public void onLocation(GeoPosition location) {
+                a.onLocation(location);
+                b.onLocation(location);
+            }
+        };
+    }
+
+    private static void usage() {
+        System.err.println("usage: TraceReplay [OPTIONS] scans.trace|sniffer.log...\n"
+                + "       TraceReplay [OPTIONS] --crowd DEVICES [--minutes M] [--seed S] [--write out.trace]\n"
+                + "options: --no-verify, --sightings out.jsonl, --rpi-filters DIR");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean verify = true;
+        int crowd = 0, minutes = 60;
+        long seed = 1;
+        File write = null, sightingsOut = null, rpiFilterDir = null;
+        final List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--no-verify": verify = false; break;
+                case "--crowd": crowd = Integer.parseInt(args[++i]); break;
+                case "--minutes": minutes = Integer.parseInt(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--write": write = new File(args[++i]); break;
+                case "--sightings": sightingsOut = new File(args[++i]); break;
+                case "--rpi-filters": rpiFilterDir = new File(args[++i]); break;
+                default: inputs.add(new File(args[i]));
+            }
+        }
+        if ((crowd > 0) == !inputs.isEmpty()) usage();
+
+        final TraceReplay replay = new TraceReplay(verify, rpiFilterDir);
+        if (crowd > 0) {
+            if (write != null && write.exists() && !write.delete()) throw new IOException("cannot overwrite " + write);
+            try (ScanTrace.Writer writer = write == null ? null : new ScanTrace.Writer(write)) {
+                generateCrowd(crowd, minutes, seed, writer == null ? replay : tee(replay, writer));
+                if (writer != null && writer.getError() != null) throw writer.getError();
+            }
+        }
+        for (File input : inputs) {
+            if (isScanTrace(input)) {
+                try (ScanTrace.Reader reader = new ScanTrace.Reader(input)) {
+                    while (reader.next(replay)) ;
+                    if (reader.isCorrupted()) System.err.println(input + ": stopped at a truncated record");
+                }
+            } else {
+                try (BufferedReader reader = BulkMatcher.open(input.getPath())) {
+                    expandSightingLog(reader, replay);
+                }
+            }
+        }
+        final boolean equivalent = replay.finish();
+        if (sightingsOut != null) {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(sightingsOut), StandardCharsets.UTF_8))) {
+                replay.writeSightings(out);
+            }
+        }
+        if (!equivalent) System.exit(2);
+    }
+}
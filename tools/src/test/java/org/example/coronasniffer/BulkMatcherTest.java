@@ -0,0 +1,57 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class BulkMatcherTest {
+    @Test
+    public void testMatch() {
+        final long t0 = 1600000000;
+        final int n = 2000;
+        List<DiagnosisKey> keys = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            byte[] tek = BeaconCrypto.AppleGoogleEN.keyFromString("key" + i);
+            keys.add(DiagnosisKey.fromUnixTimeRange(tek, t0, t0 + 24 * 60 * 60 - 1));
+        }
+
+        BulkMatcher matcher = new BulkMatcher();
+        assertFalse(matcher.addSighting("not a sighting"));
+        String otherRpi = BeaconCrypto.bytesToHex(BeaconCrypto.AppleGoogleEN.rollingProximityID(
+                BeaconCrypto.AppleGoogleEN.keyFromString("other"), t0));
+        assertTrue(matcher.addSighting("{\"rpi\":\"" + otherRpi + "\"}"));
+        // seen twice, 2 hours in
+        String rpi = BeaconCrypto.bytesToHex(BeaconCrypto.AppleGoogleEN.rollingProximityID(
+                keys.get(1234).key, t0 + 2 * 60 * 60));
+        assertTrue(matcher.addSighting("09-21 12:00:00.000 1 2 I/BeaconStats: {\"aem\":\"00000000\",\"rpi\":\"" + rpi + "\"}"));
+        assertTrue(matcher.addSighting("{\"rpi\": \"" + rpi + "\", \"n\": 2}"));
+        assertEquals(2, matcher.observedRpiCount());
+
+        List<BulkMatcher.Match> matches = matcher.match(keys, new ForkJoinPool(4));
+        assertEquals(2, matches.size());
+        for (BulkMatcher.Match m : matches) {
+            assertEquals(1234, m.keyIndex);
+            assertEquals(BeaconCrypto.AppleGoogleEN.enIntervalNumber(t0) + 12, m.enInterval);
+        }
+        assertEquals("{\"diagnosisKey\":\"" + keys.get(1234) + "\",\"enInterval\":" + matches.get(0).enInterval
+                + ",\"sighting\":{\"rpi\": \"" + rpi + "\", \"n\": 2}}", matches.get(0).toString());
+    }
+
+    @Test
+    public void testParseDiagnosisKey() {
+        DiagnosisKey key = DiagnosisKey.parse(
+                "{\"diagnosisKey\": \"6578616d706c65000000000000000000\", \"minUnixTime\": 1200, \"maxUnixTime\": 3000}",
+                0, 0);
+        assertEquals("6578616d706c65000000000000000000", key.toString());
+        assertEquals(2, key.rollingStartInterval);
+        assertEquals(4, key.rollingPeriod);
+        key = DiagnosisKey.parse("6578616d706c65000000000000000000", 0, 600 * 144 - 1);
+        assertEquals(0, key.rollingStartInterval);
+        assertEquals(144, key.rollingPeriod);
+        assertNull(DiagnosisKey.parse("", 0, 0));
+    }
+}
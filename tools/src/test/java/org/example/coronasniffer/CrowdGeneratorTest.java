@@ -0,0 +1,77 @@
+package org.example.coronasniffer;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class CrowdGeneratorTest {
+    private static BufferedReader lines(String s) {
+        return new BufferedReader(new StringReader(s));
+    }
+
+    @Test
+    public void testGeneratedCrowdMatchesGroundTruth() throws Exception {
+        CrowdGenerator generator = new CrowdGenerator();
+        generator.devices = 60;
+        generator.hours = 0.5;
+        generator.areaMeters = 100;
+        generator.diagnosedFraction = 0.2;
+        generator.extraKeys = 100;
+
+        TraceReplay replay = new TraceReplay(true);
+        generator.generate(replay);
+        assertTrue(replay.finish());
+        StringWriter sightings = new StringWriter();
+        replay.writeSightings(sightings);
+
+        StringWriter keyLines = new StringWriter(), truth = new StringWriter();
+        generator.writeDiagnosisKeys(keyLines);
+        generator.writeTruth(truth);
+        List<DiagnosisKey> keys = new ArrayList<>();
+        for (String line : keyLines.toString().split("\n")) keys.add(DiagnosisKey.parse(line, 0, 0));
+        assertTrue(keys.size() > 100);
+        assertEquals(60, truth.toString().split("\n").length);
+
+        BulkMatcher matcher = new BulkMatcher();
+        for (String line : sightings.toString().split("\n")) assertTrue(matcher.addSighting(line));
+        StringBuilder matches = new StringBuilder();
+        for (BulkMatcher.Match m : matcher.match(keys, new ForkJoinPool(2))) matches.append(m).append('\n');
+
+        // the decrypted AEMs have the transmit powers of the phones
+        Map<String, String> txPowers = new HashMap<>();
+        Pattern keyAndTxPower = Pattern.compile("\"diagnosisKey\":\"([0-9a-f]+)\".*(\"txPower\":-?\\d+)");
+        for (String line : truth.toString().split("\n")) {
+            Matcher m = keyAndTxPower.matcher(line);
+            assertTrue(m.find());
+            txPowers.put(m.group(1), m.group(2));
+        }
+        for (String line : matches.toString().split("\n")) {
+            Matcher m = keyAndTxPower.matcher(line);
+            assertTrue(m.find());
+            assertEquals(txPowers.get(m.group(1)), m.group(2));
+        }
+
+        final long[] score = CrowdGenerator.score(lines(truth.toString()), lines(matches.toString()));
+        // 3 or 4 EN intervals per diagnosed device in range
+        assertTrue(score[0] > 10);
+        assertEquals(0, score[1]);
+        assertEquals(0, score[2]);
+
+        // a missed and a wrong match
+        final String firstMatch = matches.substring(0, matches.indexOf("\n") + 1);
+        final long[] worse = CrowdGenerator.score(lines(truth.toString()), lines(
+                matches.substring(firstMatch.length()) + firstMatch.replaceFirst("\"enInterval\":\\d+", "\"enInterval\":1")));
+        assertArrayEquals(new long[] { score[0] - 1, 1, 1 }, worse);
+    }
+}
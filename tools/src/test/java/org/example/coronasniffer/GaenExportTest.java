@@ -0,0 +1,176 @@
+package org.example.coronasniffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class GaenExportTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** Minimal protocol buffer encoder */
+    private static class Proto {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Proto varint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) (v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+            return this;
+        }
+
+        Proto tag(int field, int type) {
+            return varint(field << 3 | type);
+        }
+
+        Proto int32(int field, int v) {
+            return tag(field, 0).varint(v);
+        }
+
+        Proto fixed64(int field, long v) {
+            tag(field, 1);
+            for (int i = 0; i < 8; ++i) out.write((int) (v >>> (8 * i)));
+            return this;
+        }
+
+        Proto bytes(int field, byte[] v) {
+            tag(field, 2).varint(v.length);
+            out.write(v, 0, v.length);
+            return this;
+        }
+
+        Proto message(int field, Proto v) {
+            return bytes(field, v.out.toByteArray());
+        }
+    }
+
+    private static byte[] tek(int i) {
+        return BeaconCrypto.AppleGoogleEN.keyFromString("key" + i);
+    }
+
+    private static byte[] export() {
+        Proto export = new Proto().fixed64(1, 1600000000L).fixed64(2, 1600086400L)
+                .bytes(3, "FI".getBytes(StandardCharsets.UTF_8)).int32(4, 1).int32(5, 1)
+                .message(6, new Proto().bytes(1, "signature".getBytes(StandardCharsets.UTF_8)));
+        // transmission risk level, report type and days since onset (sint32) are ignored
+        export.message(7, new Proto().bytes(1, tek(0)).int32(2, 6).int32(3, 2666592).int32(4, 144)
+                .int32(5, 1).tag(6, 0).varint(5));
+        // the default rolling period
+        export.message(7, new Proto().int32(3, 2666448).bytes(1, tek(1)));
+        // a key released the same day
+        export.message(7, new Proto().bytes(1, tek(2)).int32(3, 2666736).int32(4, 30));
+        // invalid keys
+        export.message(7, new Proto().bytes(1, new byte[8]).int32(3, 2666736));
+        export.message(7, new Proto().bytes(1, tek(3)).int32(3, 2666736).int32(4, 0));
+        // no interval: the export window
+        export.message(7, new Proto().bytes(1, tek(4)));
+        // revised keys are skipped
+        export.message(8, new Proto().bytes(1, tek(5)).int32(3, 2666736));
+        final byte[] body = export.out.toByteArray();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] header = GaenExport.HEADER.getBytes(StandardCharsets.US_ASCII);
+        out.write(header, 0, header.length);
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    private static List<DiagnosisKey> readAll(File file) throws IOException {
+        List<DiagnosisKey> keys = new ArrayList<>();
+        try (GaenExport export = GaenExport.open(file)) {
+            for (DiagnosisKey key = export.next(); key != null; key = export.next()) keys.add(key);
+            assertEquals(2, export.getInvalidKeyCount());
+            assertEquals("FI", export.getRegion());
+            assertEquals(1600000000L, export.getStartTimestamp());
+            assertEquals(1600086400L, export.getEndTimestamp());
+        }
+        return keys;
+    }
+
+    private static void checkKeys(List<DiagnosisKey> keys) {
+        assertEquals(4, keys.size());
+        assertArrayEquals(tek(0), keys.get(0).key);
+        assertEquals(2666592, keys.get(0).rollingStartInterval);
+        assertEquals(144, keys.get(0).rollingPeriod);
+        assertEquals(2666448, keys.get(1).rollingStartInterval);
+        assertEquals(144, keys.get(1).rollingPeriod);
+        assertEquals(2666736, keys.get(2).rollingStartInterval);
+        assertEquals(30, keys.get(2).rollingPeriod);
+        assertArrayEquals(tek(4), keys.get(3).key);
+        // the window is not aligned to EN intervals
+        assertEquals(2666666, keys.get(3).rollingStartInterval);
+        assertEquals(145, keys.get(3).rollingPeriod);
+    }
+
+    @Test
+    public void testReadBin() throws Exception {
+        File file = tmp.newFile("export.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(export());
+        }
+        checkKeys(readAll(file));
+        checkKeys(BulkMatcher.readKeys(file.getPath(), 0, 0));
+    }
+
+    @Test
+    public void testReadZip() throws Exception {
+        File file = tmp.newFile("export.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("export.sig"));
+            out.write(new byte[64]);
+            out.putNextEntry(new ZipEntry("export.bin"));
+            out.write(export());
+        }
+        checkKeys(readAll(file));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        File file = tmp.newFile("export.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not an export".getBytes(StandardCharsets.US_ASCII));
+        }
+        try {
+            GaenExport.open(file).close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a GAEN export"));
+        }
+
+        // truncated in the middle of a key
+        final byte[] export = export();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(export, 0, export.length - 40);
+        }
+        try (GaenExport reader = GaenExport.open(file)) {
+            while (reader.next() != null) ;
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+    }
+
+    @Test
+    public void testToJson() {
+        DiagnosisKey key = new DiagnosisKey(tek(0), 2666592, 144);
+        assertEquals("{\"diagnosisKey\":\"" + key + "\",\"maxUnixTime\":1600041599,\"minUnixTime\":1599955200}",
+                key.toJson());
+        DiagnosisKey parsed = DiagnosisKey.parse(key.toJson(), 0, 0);
+        assertEquals(key.rollingStartInterval, parsed.rollingStartInterval);
+        assertEquals(key.rollingPeriod, parsed.rollingPeriod);
+    }
+}
@@ -0,0 +1,62 @@
+package org.example.coronasniffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class TraceReplayTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testCrowdReplayMatchesReference() throws Exception {
+        File file = new File(tmp.getRoot(), "crowd.trace");
+        try (ScanTrace.Writer writer = new ScanTrace.Writer(file)) {
+            TraceReplay.generateCrowd(200, 40, 1, writer);
+        }
+        TraceReplay replay = new TraceReplay(true);
+        try (ScanTrace.Reader reader = new ScanTrace.Reader(file)) {
+            while (reader.next(replay)) ;
+        }
+        assertTrue(replay.finish());
+    }
+
+    @Test
+    public void testExpandSightingLog() throws Exception {
+        final String log = "2020-06-01 12:00:00 I/BeaconStats: {\"aem\":\"a0b0c0d0\","
+                + "\"first\":{\"accuracy\":12,\"latitude\":60.1,\"longitude\":24.9,\"seen\":\"2020-06-01T12:00:00+0000\"},"
+                + "\"last\":{\"seen\":\"2020-06-01T12:00:10+0000\"},"
+                + "\"maxRssi\":-60,\"meanRssi\":-70.50,\"nScans\":3,\"rpi\":\"0000000000000001000000000000002a\"}\n"
+                + "some other line\n";
+        final StringBuilder events = new StringBuilder();
+        TraceReplay.expandSightingLog(new BufferedReader(new StringReader(log)), new ScanTrace.Listener() {
+            @Override
+            public void onBatch(long time, int size) {
+                events.append("B").append(time / 1000 % 60).append(' ');
+            }
+
+            @Override
+            public void onBeacon(long rpiHigh, long rpiLow, int aem, int rssi, double meanRssi) {
+                assertEquals(1, rpiHigh);
+                assertEquals(42, rpiLow);
+                assertEquals(0xa0b0c0d0, aem);
+                assertEquals(-60, rssi);
+                assertEquals(-70.5, meanRssi, 0);
+                events.append("R ");
+            }
+
+            @Override
+            public void onLocation(GeoPosition location) {
+                assertEquals(60.1, location.latitude, 0);
+                events.append("L ");
+            }
+        });
+        assertEquals("L B0 R B5 R B10 R ", events.toString());
+    }
+}